@@ -0,0 +1,64 @@
+package uricomputer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import uricomputer.UriComputer.ServerDetails;
+
+/**
+ * Выбор k разных серверов getNextServers(k) в сравнении с повторными getNextServer() и отбрасыванием повторов
+ */
+@State(Scope.Benchmark)
+public class DistinctServersBenchmark {
+    @Param({"ALIAS", "TREE"})
+    public Implementation implementation;
+
+    @Param({"100", "10000"})
+    public int poolSize;
+
+    @Param({"UNIFORM", "ZIPF", "HOT"})
+    public UriComputerBenchmark.Skew skew;
+
+    @Param({"3", "10"})
+    public int k;
+
+    private UriComputer uriComputer;
+
+    public enum Implementation {
+        ALIAS, TREE
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<ServerDetails> serverDetails = UriComputerBenchmark.serverDetails(poolSize, skew, 0.0);
+        uriComputer = implementation == Implementation.ALIAS
+                ? new WeightedRoundRobinAlias(serverDetails)
+                : new WeightedRoundRobinTreeDoubleInterval(serverDetails);
+    }
+
+    @Benchmark
+    public List<ServerDetails> getNextServersDistinct() {
+        return uriComputer.getNextServers(k);
+    }
+
+    /**
+     * наивный выбор: повторять getNextServer(), пока не наберется k разных
+     */
+    @Benchmark
+    public List<ServerDetails> retryWithDedup() {
+        List<ServerDetails> servers = new ArrayList<>(k);
+        while (servers.size() < k) {
+            ServerDetails server = uriComputer.getNextServer();
+            if (!servers.contains(server))
+                servers.add(server);
+        }
+        return servers;
+    }
+}
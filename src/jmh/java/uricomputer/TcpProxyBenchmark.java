@@ -0,0 +1,175 @@
+package uricomputer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import uricomputer.UriComputer.ServerDetails;
+import uricomputer.UriComputer.Weight;
+
+/**
+ * Пропускная способность TcpProxy: эхо payloadSize байт через прокси на локальные эхо-сервера
+ * в сравнении с прямым соединением к эхо-серверу (DIRECT). Каждый поток бенчмарка держит свое соединение,
+ * байт в секунду = ops/s * payloadSize
+ */
+@State(Scope.Benchmark)
+public class TcpProxyBenchmark {
+    static final int BACKENDS = 3;
+
+    public enum Target {PROXY, DIRECT}
+
+    @Param({"PROXY", "DIRECT"})
+    public Target target;
+
+    @Param({"1024", "65536", "1048576"})
+    public int payloadSize;
+
+    @Param({"1", "2", "4"})
+    public int workerThreads;
+
+    private final List<EchoServer> backends = new ArrayList<>();
+    private TcpProxy tcpProxy;
+    private InetSocketAddress address;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        List<ServerDetails> serverDetails = new ArrayList<>();
+        for (int i = 0; i < BACKENDS; i++) {
+            EchoServer backend = new EchoServer();
+            backends.add(backend);
+            serverDetails.add(new ServerDetails(new Weight(1.0), URI.create("tcp://127.0.0.1:" + backend.port())));
+        }
+        if (target == Target.PROXY) {
+            tcpProxy = new TcpProxy(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                    new WeightedRoundRobinAlias(serverDetails), new TcpProxy.Settings().workerThreads(workerThreads));
+            address = new InetSocketAddress(InetAddress.getLoopbackAddress(), tcpProxy.getLocalAddress().getPort());
+        } else {
+            address = new InetSocketAddress(InetAddress.getLoopbackAddress(), backends.get(0).port());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (tcpProxy != null)
+            tcpProxy.close();
+        for (EchoServer backend : backends) {
+            backend.close();
+        }
+    }
+
+    @Benchmark
+    public int echo(Client client) throws IOException {
+        return client.echo();
+    }
+
+    /**
+     * соединение потока бенчмарка, блокирующий SocketChannel с direct буферами
+     */
+    @State(Scope.Thread)
+    public static class Client {
+        private SocketChannel channel;
+        private ByteBuffer payload;
+        private ByteBuffer response;
+
+        @Setup(Level.Trial)
+        public void setUp(TcpProxyBenchmark benchmark) throws IOException {
+            channel = SocketChannel.open(benchmark.address);
+            channel.socket().setTcpNoDelay(true);
+            payload = ByteBuffer.allocateDirect(benchmark.payloadSize);
+            response = ByteBuffer.allocateDirect(benchmark.payloadSize);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            channel.close();
+        }
+
+        /**
+         * запись и чтение идут частями, чтобы большой payload не заблокировал обе стороны на полных буферах сокетов
+         */
+        int echo() throws IOException {
+            payload.clear();
+            response.clear();
+            while (response.hasRemaining()) {
+                if (payload.hasRemaining()) {
+                    int limit = Math.min(payload.capacity(), payload.position() + 16 * 1024);
+                    payload.limit(limit);
+                    channel.write(payload);
+                    payload.limit(payload.capacity());
+                }
+                while (response.position() < payload.position()) {
+                    if (channel.read(response) < 0)
+                        throw new IOException("connection closed");
+                }
+            }
+            return response.position();
+        }
+    }
+
+    /**
+     * эхо-сервер, поток на соединение
+     */
+    static final class EchoServer implements AutoCloseable {
+        private final ServerSocket serverSocket;
+
+        EchoServer() throws IOException {
+            serverSocket = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+            Thread acceptor = new Thread(this::accept, "echo-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int port() {
+            return serverSocket.getLocalPort();
+        }
+
+        private void accept() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    socket.setTcpNoDelay(true);
+                    Thread echo = new Thread(() -> echo(socket), "echo");
+                    echo.setDaemon(true);
+                    echo.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private static void echo(Socket socket) {
+            byte[] buffer = new byte[64 * 1024];
+            try (Socket closing = socket; InputStream in = closing.getInputStream(); OutputStream out = closing.getOutputStream()) {
+                for (int read; (read = in.read(buffer)) >= 0; ) {
+                    out.write(buffer, 0, read);
+                }
+            } catch (SocketException e) {
+                // клиент закрыл соединение
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+}
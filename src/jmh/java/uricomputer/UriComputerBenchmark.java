@@ -0,0 +1,141 @@
+package uricomputer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+import uricomputer.UriComputer.ServerDetails;
+import uricomputer.UriComputer.Weight;
+
+/**
+ * Скорость выбора getNextServer() и пакетного getNextServers() для всех реализаций UriComputer
+ * Кол-во потоков задается при запуске: gradle jmh -PjmhThreads=64,
+ * режимы (thrpt, avgt) и профайлер gc (allocation rate) - в build.gradle
+ */
+@State(Scope.Benchmark)
+public class UriComputerBenchmark {
+    static final int BATCH_SIZE = 32;
+
+    @Param({"ARRAY", "LINEAR", "TREE", "ALIAS", "SMOOTH", "FENWICK", "COMPACT_ARRAY", "SWAPPABLE_ALIAS", "POWER_OF_TWO_CHOICES",
+            "PEAK_EWMA", "CONSISTENT_HASH", "MAGLEV", "VECTOR", "INSTRUMENTED_ALIAS"})
+    public Implementation implementation;
+
+    @Param({"10", "100", "1000", "10000", "100000"})
+    public int poolSize;
+
+    @Param({"UNIFORM", "ZIPF", "HOT"})
+    public Skew skew;
+
+    /**
+     * доля серверов, вес которых совпадает с весом другого сервера
+     */
+    @Param({"0.0", "0.5", "0.9"})
+    public double duplicateRatio;
+
+    private UriComputer uriComputer;
+    private final ServerDetails[] batch = new ServerDetails[BATCH_SIZE];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        uriComputer = implementation.create(serverDetails(poolSize, skew, duplicateRatio));
+    }
+
+    @Benchmark
+    public ServerDetails getNextServer() {
+        return uriComputer.getNextServer();
+    }
+
+    /**
+     * время на один сервер при пакетном выборе, сравнивается с getNextServer
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public ServerDetails[] getNextServers() {
+        uriComputer.getNextServers(batch, BATCH_SIZE);
+        return batch;
+    }
+
+    /**
+     * веса с одним знаком после запятой от 0.1 до 100, генератор с фиксированным seed
+     */
+    static List<ServerDetails> serverDetails(int poolSize, Skew skew, double duplicateRatio) {
+        Random random = new Random(42);
+        List<ServerDetails> serverDetails = new ArrayList<>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            double weight = i > 0 && random.nextDouble() < duplicateRatio
+                    ? serverDetails.get(random.nextInt(i)).getWeight().getValue()
+                    : Math.max(1, Math.round(skew.weight(i, poolSize, random) * 10)) / 10.0;
+            serverDetails.add(new ServerDetails(new Weight(weight), URI.create("http://10.0." + (i >>> 8) + "." + (i & 0xFF))));
+        }
+        return serverDetails;
+    }
+
+    public enum Skew {
+        /**
+         * равномерно от 1 до 10
+         */
+        UNIFORM {
+            double weight(int index, int poolSize, Random random) {
+                return 1 + 9 * random.nextDouble();
+            }
+        },
+        /**
+         * закон Ципфа: вес обратно пропорционален рангу
+         */
+        ZIPF {
+            double weight(int index, int poolSize, Random random) {
+                return 100.0 / (index + 1);
+            }
+        },
+        /**
+         * 1% серверов с весом 100, остальные с весом около 1
+         */
+        HOT {
+            double weight(int index, int poolSize, Random random) {
+                return index % 100 == 0 ? 100 : 1 + random.nextDouble();
+            }
+        };
+
+        abstract double weight(int index, int poolSize, Random random);
+    }
+
+    public enum Implementation {
+        ARRAY(serverDetails -> new WeightedRoundRobinArray(serverDetails, 1)),
+        LINEAR(WeightedRoundRobinLinearDoubleInterval::new),
+        TREE(WeightedRoundRobinTreeDoubleInterval::new),
+        ALIAS(WeightedRoundRobinAlias::new),
+        SMOOTH(serverDetails -> new WeightedRoundRobinSmooth(serverDetails, 1, Integer.MAX_VALUE)),
+        FENWICK(WeightedRoundRobinFenwickTree::new),
+        COMPACT_ARRAY(WeightedRoundRobinCompactArray::new),
+        SWAPPABLE_ALIAS(serverDetails -> new SwappableUriComputer(serverDetails, WeightedRoundRobinAlias::new)),
+        POWER_OF_TWO_CHOICES(WeightedPowerOfTwoChoices::new),
+        PEAK_EWMA(WeightedPeakEwma::new),
+        CONSISTENT_HASH(WeightedConsistentHash::new),
+        MAGLEV(serverDetails -> new WeightedMaglev(serverDetails, 1_000_003)),
+        VECTOR(WeightedRoundRobinVectorInterval::new),
+        /**
+         * стоимость метрик: сравнивается с ALIAS
+         */
+        INSTRUMENTED_ALIAS(serverDetails -> new InstrumentedUriComputer(new WeightedRoundRobinAlias(serverDetails), serverDetails));
+
+        private final Function<List<ServerDetails>, UriComputer> factory;
+
+        Implementation(Function<List<ServerDetails>, UriComputer> factory) {
+            this.factory = factory;
+        }
+
+        UriComputer create(List<ServerDetails> serverDetails) {
+            return factory.apply(serverDetails);
+        }
+    }
+}
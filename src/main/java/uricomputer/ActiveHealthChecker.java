@@ -0,0 +1,555 @@
+package uricomputer;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import uricomputer.UriComputer.ServerDetails;
+import uricomputer.UriComputer.Weight;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Активная проверка здоровья серверов из одного потока на одном java.nio.channels.Selector:
+ * TCP connect или HTTP GET (статус 2xx) без потока на сервер, тысячи серверов проверяются одним потоком.
+ * Интервал проверки каждого сервера сдвигается случайно на ±jitter, чтобы проверки не шли пачками.
+ * Сервер становится нездоровым после unhealthyThreshold неудачных проверок подряд
+ * и здоровым после healthyThreshold удачных; до первой смены состояния сервер считается здоровым.
+ * Смена состояния передается Listener, например ZoneAwareUriComputer::setHealthy,
+ * вызов идет из потока проверки и должен быть быстрым; исключение Listener только пишется в лог.
+ * Имена хостов разрешаются отдельным потоком и заново раз в resolveInterval, поток Selector не блокируется:
+ * пока имя разрешается, проверка идет по прошлому адресу, а первая проверка сервера ждет адреса
+ */
+public class ActiveHealthChecker implements AutoCloseable {
+    static final int STATUS_LINE_LENGTH = 12; // "HTTP/1.1 200"
+    private static final Logger LOGGER = Logger.getLogger(ActiveHealthChecker.class.getName());
+
+    private final Settings settings;
+    private final Listener listener;
+    private final Selector selector;
+    private final Thread thread;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(4096);
+    private final Map<URI, Target> targets = new HashMap<>();
+    private final PriorityQueue<Target> schedule = new PriorityQueue<>((a, b) -> Long.compare(a.nextProbeNanos, b.nextProbeNanos));
+    private final ArrayDeque<Deadline> deadlines = new ArrayDeque<>(); // по возрастанию: таймаут у всех проверок один
+    private final AtomicReference<List<ServerDetails>> pendingUpdate = new AtomicReference<>();
+    private final ExecutorService resolver;
+    private final ConcurrentLinkedQueue<Resolution> resolutions = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        HttpServer ok = startServer(200);
+        HttpServer unavailable = startServer(503);
+        ServerSocketChannel closed = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        URI closedUri = URI.create("http://127.0.0.1:" + ((InetSocketAddress) closed.getLocalAddress()).getPort());
+        closed.close(); // порт свободен: connection refused
+        List<ServerDetails> serverDetails = asList(
+                new ServerDetails(new Weight(1.0), URI.create("http://127.0.0.1:" + ok.getAddress().getPort()))
+                , new ServerDetails(new Weight(1.0), URI.create("http://127.0.0.1:" + unavailable.getAddress().getPort()))
+                , new ServerDetails(new Weight(1.0), closedUri)
+        );
+        ZoneAwareUriComputer uriComputer = new ZoneAwareUriComputer(serverDetails,
+                ServerDetails.UNKNOWN_LOCALITY, ServerDetails.UNKNOWN_LOCALITY, WeightedRoundRobinAlias::new);
+        try (ActiveHealthChecker healthChecker = new ActiveHealthChecker(serverDetails, uriComputer::setHealthy,
+                new Settings().interval(100, TimeUnit.MILLISECONDS).httpPath("/health"))) {
+            Thread.sleep(1000);
+            for (ServerDetails server : serverDetails) {
+                System.out.println(server.address + " healthy " + healthChecker.isHealthy(server.address));
+            }
+            Set<URI> picked = new HashSet<>();
+            for (int i = 0; i < 1000; i++) {
+                picked.add(uriComputer.getNextServerUri());
+            }
+            System.out.println("picked " + picked);
+        } finally {
+            ok.stop(0);
+            unavailable.stop(0);
+        }
+    }
+
+    /**
+     * запускает поток проверки
+     */
+    public ActiveHealthChecker(List<ServerDetails> serverDetailsList, Listener listener, Settings settings) throws IOException {
+        this.settings = settings.copy();
+        this.listener = listener;
+        this.selector = Selector.open();
+        resolver = Executors.newSingleThreadExecutor(runnable -> {
+            Thread resolverThread = new Thread(runnable, "active-health-checker-resolver");
+            resolverThread.setDaemon(true);
+            return resolverThread;
+        });
+        pendingUpdate.set(serverDetailsList);
+        thread = new Thread(this::run, "active-health-checker");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * заменяет список проверяемых серверов; состояние оставшихся серверов сохраняется
+     */
+    public void update(List<ServerDetails> serverDetailsList) {
+        pendingUpdate.set(serverDetailsList);
+        selector.wakeup();
+    }
+
+    /**
+     * @return false если сервер признан нездоровым; сервера, которых нет в списке, считаются здоровыми
+     */
+    public boolean isHealthy(URI address) {
+        Target target;
+        synchronized (targets) {
+            target = targets.get(address);
+        }
+        return target == null || target.healthy;
+    }
+
+    /**
+     * останавливает поток проверки и закрывает соединения
+     */
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        resolver.shutdownNow();
+        selector.close();
+    }
+
+    /**
+     * ошибка Selector не останавливает проверку: пишется в лог, следующая попытка через timeout
+     */
+    private void run() {
+        try {
+            while (running) {
+                long now = System.nanoTime();
+                applyUpdate(now);
+                applyResolutions(now);
+                while (!schedule.isEmpty() && schedule.peek().nextProbeNanos - now <= 0) {
+                    startProbe(schedule.poll(), now);
+                }
+                long nextEvent = expireProbes(now);
+                long waitNanos = Math.max(0, nextEvent - now);
+                try {
+                    if (waitNanos > 0)
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+                    else
+                        selector.selectNow();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "health checker select failed", e);
+                    LockSupport.parkNanos(settings.timeoutNanos);
+                    continue;
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    onReady((Target) key.attachment(), key);
+                }
+            }
+        } finally {
+            for (Target target : targets.values()) {
+                closeChannel(target);
+            }
+        }
+    }
+
+    private void applyUpdate(long now) {
+        List<ServerDetails> serverDetailsList = pendingUpdate.getAndSet(null);
+        if (serverDetailsList == null)
+            return;
+        Map<URI, Target> current = new HashMap<>();
+        for (ServerDetails serverDetails : serverDetailsList) {
+            Target target = targets.get(serverDetails.address);
+            if (target == null) {
+                target = new Target(serverDetails.address);
+                resolve(target, now);
+                // первая проверка в случайный момент интервала
+                target.nextProbeNanos = now + ThreadLocalRandom.current().nextLong(settings.intervalNanos);
+                schedule.add(target);
+            }
+            current.put(serverDetails.address, target);
+        }
+        for (Target target : targets.values()) {
+            if (!current.containsKey(target.address)) {
+                target.removed = true;
+                closeChannel(target);
+                schedule.remove(target);
+            }
+        }
+        synchronized (targets) {
+            targets.clear();
+            targets.putAll(current);
+        }
+    }
+
+    /**
+     * разрешает имя в потоке resolver, результат забирает applyResolutions
+     */
+    private void resolve(Target target, long now) {
+        target.resolving = true;
+        target.resolvedNanos = now;
+        resolver.execute(() -> {
+            InetSocketAddress address = target.address.getHost() == null ? null
+                    : new InetSocketAddress(target.address.getHost(), port(target.address));
+            resolutions.add(new Resolution(target, address == null || address.isUnresolved() ? null : address));
+            selector.wakeup();
+        });
+    }
+
+    /**
+     * при неудаче разрешения остается прошлый адрес; проверка, ждавшая первого адреса, запускается сразу
+     */
+    private void applyResolutions(long now) {
+        Resolution resolution;
+        while ((resolution = resolutions.poll()) != null) {
+            Target target = resolution.target;
+            target.resolving = false;
+            if (resolution.address != null)
+                target.socketAddress = resolution.address;
+            else
+                LOGGER.fine("no resolved host in " + target.address);
+            if (target.waitingForAddress && !target.removed) {
+                target.waitingForAddress = false;
+                startProbe(target, now);
+            }
+        }
+    }
+
+    private void startProbe(Target target, long now) {
+        if (!target.resolving && now - target.resolvedNanos >= settings.resolveIntervalNanos)
+            resolve(target, now);
+        if (target.socketAddress == null && target.resolving) {
+            target.waitingForAddress = true;
+            return;
+        }
+        target.deadlineNanos = now + settings.timeoutNanos;
+        target.statusLength = 0;
+        try {
+            InetSocketAddress address = target.socketAddress;
+            if (address == null)
+                throw new IOException("no resolved host in " + target.address);
+            SocketChannel channel = SocketChannel.open();
+            target.channel = channel;
+            deadlines.addLast(new Deadline(target, channel));
+            channel.configureBlocking(false);
+            if (channel.connect(address))
+                onConnected(target, channel.register(selector, 0, target));
+            else
+                channel.register(selector, SelectionKey.OP_CONNECT, target);
+        } catch (IOException e) {
+            finishProbe(target, false);
+        }
+    }
+
+    private void onReady(Target target, SelectionKey key) {
+        if (!key.isValid())
+            return;
+        try {
+            if (key.isConnectable()) {
+                ((SocketChannel) key.channel()).finishConnect();
+                onConnected(target, key);
+            } else if (key.isWritable()) {
+                writeRequest(target, key);
+            } else if (key.isReadable()) {
+                readStatus(target, key);
+            }
+        } catch (IOException e) {
+            finishProbe(target, false);
+        }
+    }
+
+    private void onConnected(Target target, SelectionKey key) throws IOException {
+        if (settings.httpPath == null) {
+            finishProbe(target, true);
+            return;
+        }
+        target.request = ByteBuffer.wrap(settings.httpRequest(target.address));
+        writeRequest(target, key);
+    }
+
+    private void writeRequest(Target target, SelectionKey key) throws IOException {
+        target.channel.write(target.request);
+        key.interestOps(target.request.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    /**
+     * читает только строку статуса "HTTP/1.1 200", остальной ответ не нужен
+     */
+    private void readStatus(Target target, SelectionKey key) throws IOException {
+        readBuffer.clear();
+        int read = target.channel.read(readBuffer);
+        if (read < 0) {
+            finishProbe(target, false);
+            return;
+        }
+        readBuffer.flip();
+        while (readBuffer.hasRemaining() && target.statusLength < STATUS_LINE_LENGTH) {
+            target.status[target.statusLength++] = readBuffer.get();
+        }
+        if (target.statusLength == STATUS_LINE_LENGTH)
+            finishProbe(target, target.status[9] == '2' && startsWithHttp(target.status));
+    }
+
+    /**
+     * снимает с головы очереди только истекшие проверки и уже завершенные (их канал закрыт или заменен)
+     * @return момент ближайшего события: следующей проверки или таймаута выполняющейся
+     */
+    private long expireProbes(long now) {
+        long nextDeadline = now + settings.intervalNanos;
+        Deadline deadline;
+        while ((deadline = deadlines.peekFirst()) != null) {
+            if (deadline.target.channel == deadline.channel && deadline.deadlineNanos - now > 0) {
+                nextDeadline = deadline.deadlineNanos;
+                break;
+            }
+            deadlines.pollFirst();
+            if (deadline.target.channel == deadline.channel)
+                finishProbe(deadline.target, false);
+        }
+        if (schedule.isEmpty() || nextDeadline - schedule.peek().nextProbeNanos < 0)
+            return nextDeadline;
+        return schedule.peek().nextProbeNanos;
+    }
+
+    private void finishProbe(Target target, boolean success) {
+        closeChannel(target);
+        if (target.removed)
+            return;
+        if (success) {
+            target.failures = 0;
+            if (!target.healthy && ++target.successes >= settings.healthyThreshold)
+                setHealthy(target, true);
+        } else {
+            target.successes = 0;
+            if (target.healthy && ++target.failures >= settings.unhealthyThreshold)
+                setHealthy(target, false);
+        }
+        long jitter = (long) (settings.intervalNanos * settings.jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1));
+        target.nextProbeNanos = System.nanoTime() + settings.intervalNanos + jitter;
+        schedule.add(target);
+    }
+
+    private void setHealthy(Target target, boolean healthy) {
+        target.healthy = healthy;
+        target.successes = 0;
+        target.failures = 0;
+        try {
+            listener.onHealthChanged(target.address, healthy);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "health listener failed for " + target.address, e);
+        }
+    }
+
+    private static void closeChannel(Target target) {
+        if (target.channel == null)
+            return;
+        try {
+            target.channel.close();
+        } catch (IOException ignored) {
+            // соединение проверки больше не нужно
+        }
+        target.channel = null;
+    }
+
+    /**
+     * порт из URI, иначе по схеме: 443 для https, 80 для остальных
+     */
+    static int port(URI address) {
+        if (address.getPort() >= 0)
+            return address.getPort();
+        return "https".equalsIgnoreCase(address.getScheme()) ? 443 : 80;
+    }
+
+    private static boolean startsWithHttp(byte[] status) {
+        return status[0] == 'H' && status[1] == 'T' && status[2] == 'T' && status[3] == 'P';
+    }
+
+    private static HttpServer startServer(int status) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+        });
+        server.start();
+        return server;
+    }
+
+    /**
+     * состояние проверки одного сервера, меняется только потоком проверки (healthy читается и снаружи)
+     */
+    private static final class Target {
+        final URI address;
+        final byte[] status = new byte[STATUS_LINE_LENGTH];
+        SocketChannel channel;
+        ByteBuffer request;
+        int statusLength;
+        long nextProbeNanos;
+        long deadlineNanos;
+        int successes;
+        int failures;
+        volatile boolean healthy = true;
+        boolean removed;
+        InetSocketAddress socketAddress; // null пока имя не разрешено или если в URI нет хоста
+        long resolvedNanos;
+        boolean resolving;
+        boolean waitingForAddress;
+
+        Target(URI address) {
+            this.address = address;
+        }
+    }
+
+    /**
+     * результат разрешения имени из потока resolver, null - не разрешилось
+     */
+    private static final class Resolution {
+        final Target target;
+        final InetSocketAddress address;
+
+        Resolution(Target target, InetSocketAddress address) {
+            this.target = target;
+            this.address = address;
+        }
+    }
+
+    /**
+     * таймаут одной проверки; устаревает, когда канал проверки закрыт
+     */
+    private static final class Deadline {
+        final Target target;
+        final SocketChannel channel;
+        final long deadlineNanos;
+
+        Deadline(Target target, SocketChannel channel) {
+            this.target = target;
+            this.channel = channel;
+            this.deadlineNanos = target.deadlineNanos;
+        }
+    }
+
+    public interface Listener {
+        void onHealthChanged(URI address, boolean healthy);
+    }
+
+    /**
+     * параметры проверки
+     */
+    public static final class Settings {
+        long intervalNanos = TimeUnit.SECONDS.toNanos(5);
+        long timeoutNanos = TimeUnit.SECONDS.toNanos(1);
+        long resolveIntervalNanos = TimeUnit.SECONDS.toNanos(30);
+        double jitter = 0.1;
+        int healthyThreshold = 2;
+        int unhealthyThreshold = 3;
+        String httpPath; // null - только TCP connect
+
+        /**
+         * интервал проверки одного сервера, по умолчанию 5 секунд
+         */
+        public Settings interval(long interval, TimeUnit unit) {
+            if (interval <= 0)
+                throw new IllegalArgumentException("interval must be more then 0");
+            this.intervalNanos = unit.toNanos(interval);
+            return this;
+        }
+
+        /**
+         * таймаут проверки (connect и ответ), по умолчанию 1 секунда
+         */
+        public Settings timeout(long timeout, TimeUnit unit) {
+            if (timeout <= 0)
+                throw new IllegalArgumentException("timeout must be more then 0");
+            this.timeoutNanos = unit.toNanos(timeout);
+            return this;
+        }
+
+        /**
+         * как часто имя хоста разрешается заново, по умолчанию 30 секунд
+         */
+        public Settings resolveInterval(long interval, TimeUnit unit) {
+            if (interval <= 0)
+                throw new IllegalArgumentException("resolve interval must be more then 0");
+            this.resolveIntervalNanos = unit.toNanos(interval);
+            return this;
+        }
+
+        /**
+         * случайный сдвиг интервала, доля от интервала от 0 до 1, по умолчанию 0.1
+         */
+        public Settings jitter(double jitter) {
+            if (!(jitter >= 0.0 && jitter < 1.0))
+                throw new IllegalArgumentException("jitter must be from 0 to 1");
+            this.jitter = jitter;
+            return this;
+        }
+
+        /**
+         * кол-во проверок подряд для смены состояния, по умолчанию 2 удачных и 3 неудачных
+         */
+        public Settings thresholds(int healthyThreshold, int unhealthyThreshold) {
+            if (healthyThreshold < 1 || unhealthyThreshold < 1)
+                throw new IllegalArgumentException("thresholds must be more then 0");
+            this.healthyThreshold = healthyThreshold;
+            this.unhealthyThreshold = unhealthyThreshold;
+            return this;
+        }
+
+        /**
+         * HTTP GET path вместо TCP connect, сервер здоров при статусе 2xx (https не поддерживается)
+         */
+        public Settings httpPath(String path) {
+            if (path == null || !path.startsWith("/"))
+                throw new IllegalArgumentException("path must start with /");
+            this.httpPath = path;
+            return this;
+        }
+
+        byte[] httpRequest(URI address) {
+            String host = address.getPort() >= 0 ? address.getHost() + ":" + address.getPort() : address.getHost();
+            return ("GET " + httpPath + " HTTP/1.1\r\nHost: " + host + "\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+        }
+
+        Settings copy() {
+            Settings copy = new Settings();
+            copy.intervalNanos = intervalNanos;
+            copy.timeoutNanos = timeoutNanos;
+            copy.resolveIntervalNanos = resolveIntervalNanos;
+            copy.jitter = jitter;
+            copy.healthyThreshold = healthyThreshold;
+            copy.unhealthyThreshold = unhealthyThreshold;
+            copy.httpPath = httpPath;
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package uricomputer;
+
+/**
+ * Проверка аргументов пакетного выбора: границы проверяются один раз на пакет, а не на каждый элемент
+ */
+final class Batch {
+
+    private Batch() {
+    }
+
+    static void check(int length, int n) {
+        if (n < 0 || n > length)
+            throw new IllegalArgumentException("n must be from 0 to out.length " + length + ", but was " + n);
+    }
+}
@@ -0,0 +1,369 @@
+package uricomputer;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Адаптивный лимит одновременных запросов для каждого сервера (TCP Vegas):
+ * по завершении запроса оценивается очередь на сервере queue = limit * (1 - rttNoLoad / rtt),
+ * где rttNoLoad - минимальное rtt сервера (переизмеряется раз в probeInterval при пониженном лимите, см. probe);
+ * queue меньше alpha = 3 * log10(limit) - лимит растет на log10(limit), больше beta = 6 * log10(limit) - уменьшается,
+ * ошибка уменьшает лимит на 10%. Пока выполняется меньше половины лимита, rtt о нагрузке не говорит и лимит не растет.
+ * Выбор: сервер согласно весам (alias), сервер на лимите пропускается и выбирается заново (MAX_REDRAWS раз),
+ * затем сервер выбирается согласно весам среди оставшихся ниже лимита (DistinctSampler: повторный выбор
+ * с отбрасыванием серверов на лимите, затем A-ExpJ); если все на лимите - запрос сразу отклоняется (load shedding).
+ * Учет без блокировок: выполняющиеся запросы, лимиты (биты double), rtt и состояние замера - CAS в PaddedCounters
+ */
+public class ConcurrencyLimitedUriComputer implements UriComputer {
+    static final int DEFAULT_INITIAL_LIMIT = 20;
+    static final int DEFAULT_MIN_LIMIT = 1;
+    static final int DEFAULT_MAX_LIMIT = 1000;
+    static final int MAX_REDRAWS = 3;
+    static final long DEFAULT_PROBE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+    static final int PROBE_SAMPLES = 25;
+    static final int PROBE_LIMIT = 3;
+    static final double BACKOFF_RATIO = 0.9;
+
+    private final ServerDetails[] servers;
+    private final WeightedRoundRobinAlias sampler;
+    private final DistinctSampler distinctSampler;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int probeLimit;
+    private final long probeIntervalNanos;
+    private final PaddedCounters inFlight;
+    private final PaddedCounters limits;
+    private final PaddedCounters noLoadRttNanos;
+    private final PaddedCounters probeRemaining;
+    private final PaddedCounters probeMinRttNanos;
+    private final PaddedCounters nextProbeNanos;
+    private final ServerLease.Owner leaseOwner = this::release;
+    private final IntPredicate belowLimit = this::isBelowLimit;
+
+    public static void main(String[] args) throws URISyntaxException, InterruptedException {
+        URI smallUri = new URI("0.0.0.1");
+        URI bigUri = new URI("0.0.0.2");
+        ConcurrencyLimitedUriComputer limited = new ConcurrencyLimitedUriComputer(asList(
+                new ServerDetails(new Weight(1.0), smallUri)
+                , new ServerDetails(new Weight(1.0), bigUri)
+        ), DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT, 1, TimeUnit.SECONDS);
+        // одинаковые веса, но сервер 0 обрабатывает без очереди 10 запросов, сервер 1 - 50;
+        // ответ через 10 мс, растет пропорционально выполняющимся запросам сверх емкости; 200 клиентов,
+        // отклоненный клиент повторяет через 1 мс. Лимит колеблется, поэтому выводится среднее за прогон
+        Map<URI, Long> capacity = new HashMap<>();
+        capacity.put(smallUri, 10L);
+        capacity.put(bigUri, 50L);
+        ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
+        long endNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        for (int client = 0; client < 200; client++) {
+            executor.execute(() -> request(limited, capacity, executor, endNanos));
+        }
+        double smallLimit = 0.0;
+        double bigLimit = 0.0;
+        int samples = 0;
+        for (; System.nanoTime() - endNanos < 0; samples++) {
+            Thread.sleep(10);
+            smallLimit += limited.getLimit(smallUri);
+            bigLimit += limited.getLimit(bigUri);
+        }
+        executor.shutdownNow();
+        System.out.println("small capacity 10, mean limit " + smallLimit / samples
+                + "\nbig capacity 50, mean limit " + bigLimit / samples);
+    }
+
+    private static void request(ConcurrencyLimitedUriComputer limited, Map<URI, Long> capacity,
+                                ScheduledExecutorService executor, long endNanos) {
+        if (System.nanoTime() - endNanos >= 0)
+            return;
+        ServerLease lease = limited.tryAcquire();
+        if (lease == null) {
+            executor.schedule(() -> request(limited, capacity, executor, endNanos), 1, TimeUnit.MILLISECONDS);
+            return;
+        }
+        long serverCapacity = capacity.get(lease.getAddress());
+        long load = limited.getInFlight(lease.getAddress());
+        executor.schedule(() -> {
+            lease.complete();
+            request(limited, capacity, executor, endNanos);
+        }, 10_000 * Math.max(serverCapacity, load) / serverCapacity, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * сервер ниже лимита без учета запроса
+     * @throws RejectedExecutionException все сервера на лимите
+     */
+    public ServerDetails getNextServer() {
+        return servers[nextIndex(ThreadLocalRandom.current())];
+    }
+
+    public URI getNextServerUri() {
+        return getNextServer().address;
+    }
+
+    /**
+     * индексы серверов ниже лимита без учета запросов, как n вызовов getNextServer()
+     * @throws RejectedExecutionException все сервера на лимите
+     */
+    @Override
+    public int getNextServerIndexes(int[] out, int n) {
+        Batch.check(out.length, n);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < n; i++) {
+            out[i] = nextIndex(random);
+        }
+        return n;
+    }
+
+    /**
+     * k разных серверов ниже лимита, последовательно согласно весам среди них, без учета запросов
+     * @throws IllegalArgumentException   k меньше 1 или больше кол-ва серверов с ненулевым весом
+     * @throws RejectedExecutionException ниже лимита меньше k серверов
+     */
+    @Override
+    public List<ServerDetails> getNextServers(int k) {
+        distinctSampler.checkSize(k);
+        int[] indexes = new int[k];
+        if (distinctSampler.sampleIndexes(k, sampler::nextServerIndex, belowLimit, indexes) < k)
+            throw new RejectedExecutionException("less then " + k + " servers are below their concurrency limit");
+        List<ServerDetails> sample = new ArrayList<>(k);
+        for (int index : indexes) {
+            sample.add(servers[index]);
+        }
+        return sample;
+    }
+
+    public ConcurrencyLimitedUriComputer(List<ServerDetails> serverDetailsList) {
+        this(serverDetailsList, DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT,
+                DEFAULT_PROBE_INTERVAL_NANOS, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param initialLimit  начальный лимит каждого сервера
+     * @param minLimit      ниже этого лимит не опускается
+     * @param maxLimit      выше этого лимит не растет
+     * @param probeInterval период замера rtt без нагрузки, на время замера лимит max(minLimit, PROBE_LIMIT)
+     */
+    public ConcurrencyLimitedUriComputer(List<ServerDetails> serverDetailsList, int initialLimit, int minLimit, int maxLimit,
+                                         long probeInterval, TimeUnit unit) {
+        if (minLimit < 1 || minLimit > initialLimit || initialLimit > maxLimit)
+            throw new IllegalArgumentException("limits must be more then 0 and minLimit <= initialLimit <= maxLimit");
+        if (probeInterval <= 0)
+            throw new IllegalArgumentException("probeInterval must be more then 0");
+        this.probeLimit = Math.max(minLimit, PROBE_LIMIT);
+        this.probeIntervalNanos = unit.toNanos(probeInterval);
+        sampler = new WeightedRoundRobinAlias(serverDetailsList);
+        servers = serverDetailsList.toArray(new ServerDetails[0]);
+        distinctSampler = new DistinctSampler(servers);
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        inFlight = new PaddedCounters(servers.length);
+        limits = new PaddedCounters(servers.length);
+        noLoadRttNanos = new PaddedCounters(servers.length);
+        probeRemaining = new PaddedCounters(servers.length);
+        probeMinRttNanos = new PaddedCounters(servers.length);
+        nextProbeNanos = new PaddedCounters(servers.length);
+        long firstProbe = System.nanoTime() + probeIntervalNanos;
+        for (int i = 0; i < servers.length; i++) {
+            limits.set(i, Double.doubleToRawLongBits(initialLimit));
+            nextProbeNanos.set(i, firstProbe);
+        }
+    }
+
+    /**
+     * выбирает сервер ниже лимита и учитывает в нем запрос до освобождения lease
+     * @throws RejectedExecutionException все сервера на лимите
+     */
+    public ServerLease acquire() {
+        ServerLease lease = tryAcquire();
+        if (lease == null)
+            throw new RejectedExecutionException("all servers are at their concurrency limit");
+        return lease;
+    }
+
+    /**
+     * как acquire(), но без исключения
+     * @return null если все сервера на лимите
+     */
+    public ServerLease tryAcquire() {
+        int index = tryAcquireIndex(ThreadLocalRandom.current());
+        return index < 0 ? null : new ServerLease(servers[index], index, leaseOwner);
+    }
+
+    /**
+     * @return текущий лимит сервера, 0 если сервера нет
+     */
+    public int getLimit(URI address) {
+        for (int i = 0; i < servers.length; i++) {
+            if (servers[i].address.equals(address))
+                return limit(i);
+        }
+        return 0;
+    }
+
+    /**
+     * @return кол-во выполняющихся запросов сервера, 0 если сервера нет
+     */
+    public long getInFlight(URI address) {
+        for (int i = 0; i < servers.length; i++) {
+            if (servers[i].address.equals(address))
+                return inFlight.get(i);
+        }
+        return 0;
+    }
+
+    /**
+     * @throws RejectedExecutionException все сервера на лимите
+     */
+    private int nextIndex(ThreadLocalRandom random) {
+        for (int i = 0; i < MAX_REDRAWS; i++) {
+            int index = sampler.nextServerIndex(random);
+            if (isBelowLimit(index))
+                return index;
+        }
+        int index = belowLimitIndex();
+        if (index < 0)
+            throw new RejectedExecutionException("all servers are at their concurrency limit");
+        return index;
+    }
+
+    /**
+     * @return индекс сервера, в котором учтен запрос, -1 если все сервера на лимите
+     */
+    int tryAcquireIndex(ThreadLocalRandom random) {
+        for (int i = 0; i < MAX_REDRAWS; i++) {
+            int index = sampler.nextServerIndex(random);
+            if (tryIncrement(index))
+                return index;
+        }
+        for (int index; (index = belowLimitIndex()) >= 0; ) {
+            if (tryIncrement(index)) // иначе другой поток занял последнее место, выбор заново
+                return index;
+        }
+        return -1;
+    }
+
+    /**
+     * сервер согласно весам среди серверов ниже лимита
+     * @return -1 если все сервера на лимите
+     */
+    private int belowLimitIndex() {
+        int[] index = new int[1];
+        return distinctSampler.sampleIndexes(1, sampler::nextServerIndex, belowLimit, index) == 1 ? index[0] : -1;
+    }
+
+    /**
+     * завершение запроса: освобождает место и пересчитывает лимит по rtt
+     */
+    void release(int index, long rttNanos, boolean success) {
+        long inFlightBefore = inFlight.decrement(index) + 1;
+        rttNanos = Math.max(1, rttNanos);
+        if (probe(index, rttNanos, inFlightBefore, System.nanoTime()))
+            return;
+        long noLoad = updateNoLoadRtt(index, rttNanos);
+        long bits;
+        double limit;
+        double newLimit;
+        do {
+            bits = limits.get(index);
+            limit = Double.longBitsToDouble(bits);
+            newLimit = nextLimit(limit, noLoad, rttNanos, inFlightBefore, success);
+        } while (newLimit != limit && !limits.compareAndSet(index, bits, Double.doubleToRawLongBits(newLimit)));
+    }
+
+    private double nextLimit(double limit, long noLoadRttNanos, long rttNanos, long inFlight, boolean success) {
+        if (!success)
+            return Math.max(minLimit, limit * BACKOFF_RATIO);
+        double log = Math.max(1.0, Math.log10(limit));
+        double queue = limit * (1.0 - (double) noLoadRttNanos / rttNanos);
+        if (queue > 6 * log)
+            return Math.max(minLimit, limit - log);
+        if (queue < 3 * log && inFlight * 2 >= limit)
+            return Math.min(maxLimit, limit + log);
+        return limit;
+    }
+
+    /**
+     * замер rttNoLoad раз в probeInterval: лимит сервера временно опускается до probeLimit,
+     * ответы запросов, начатых до замера, пропускаются, минимум rtt следующих PROBE_SAMPLES ответов
+     * становится новым rttNoLoad. Иначе на постоянно загруженном сервере rtt без очереди не наблюдается
+     * @return ответ относится к замеру, лимит по нему не пересчитывается
+     */
+    private boolean probe(int index, long rttNanos, long inFlightBefore, long nowNanos) {
+        long remaining;
+        do {
+            remaining = probeRemaining.get(index);
+            if (remaining == 0)
+                return startProbe(index, inFlightBefore, nowNanos);
+        } while (!probeRemaining.compareAndSet(index, remaining, remaining - 1));
+        remaining--;
+        if (remaining < PROBE_SAMPLES) {
+            long min;
+            do {
+                min = probeMinRttNanos.get(index);
+            } while (rttNanos < min && !probeMinRttNanos.compareAndSet(index, min, rttNanos));
+        }
+        if (remaining == 0)
+            noLoadRttNanos.set(index, probeMinRttNanos.get(index));
+        return true;
+    }
+
+    /**
+     * замер начинает один поток, выигравший CAS времени следующего замера
+     */
+    private boolean startProbe(int index, long inFlightBefore, long nowNanos) {
+        long nextProbe = nextProbeNanos.get(index);
+        if (nowNanos - nextProbe < 0 || !nextProbeNanos.compareAndSet(index, nextProbe, nowNanos + probeIntervalNanos))
+            return false;
+        probeMinRttNanos.set(index, Long.MAX_VALUE);
+        probeRemaining.set(index, inFlightBefore - 1 + PROBE_SAMPLES);
+        return true;
+    }
+
+    /**
+     * минимум rtt между замерами
+     */
+    private long updateNoLoadRtt(int index, long rttNanos) {
+        long noLoad;
+        do {
+            noLoad = noLoadRttNanos.get(index);
+            if (noLoad != 0 && noLoad <= rttNanos)
+                return noLoad;
+        } while (!noLoadRttNanos.compareAndSet(index, noLoad, rttNanos));
+        return rttNanos;
+    }
+
+    private boolean tryIncrement(int index) {
+        int limit = effectiveLimit(index);
+        long current;
+        do {
+            current = inFlight.get(index);
+            if (current >= limit)
+                return false;
+        } while (!inFlight.compareAndSet(index, current, current + 1));
+        return true;
+    }
+
+    private boolean isBelowLimit(int index) {
+        return inFlight.get(index) < effectiveLimit(index);
+    }
+
+    private int effectiveLimit(int index) {
+        return probeRemaining.get(index) > 0 ? probeLimit : limit(index);
+    }
+
+    private int limit(int index) {
+        return (int) Double.longBitsToDouble(limits.get(index));
+    }
+}
@@ -0,0 +1,330 @@
+package uricomputer;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import uricomputer.UriComputer.ServerDetails;
+
+/**
+ * Пул keep-alive соединений по адресу сервера (ServerDetails.address).
+ * Для каждого сервера ограничены свободные (maxIdle) и все открытые (maxTotal) соединения.
+ * borrow / release без блокировок: свободные соединения лежат в стеке ConcurrentLinkedDeque (LIFO - самое теплое сверху),
+ * счетчики меняются CAS. Свободное соединение старше idleTimeout закрывается при borrow или evictIdle().
+ * hasIdle(address) - признак теплого соединения для выбора сервера, см. WarmConnectionUriComputer.
+ * borrow возвращает PooledConnection, привязанный к пулу сервера, который открыл соединение:
+ * если сервер удален update() (и, возможно, добавлен заново), соединение при release закрывается
+ * и учитывается в своем, а не в новом пуле сервера
+ * <pre>
+ * PooledConnection&lt;C&gt; connection = pool.borrow(server.address);
+ * try {
+ *     send(connection.get());
+ *     connection.release();
+ * } catch (IOException e) {
+ *     connection.discard();
+ * }
+ * </pre>
+ * @param <C> тип соединения
+ */
+public class ConnectionPool<C> implements AutoCloseable {
+    static final int DEFAULT_MAX_IDLE = 8;
+    static final int DEFAULT_MAX_TOTAL = 64;
+    static final long DEFAULT_IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private final Connector<C> connector;
+    private final int maxIdle;
+    private final int maxTotal;
+    private final long idleTimeoutNanos;
+    private final ConcurrentHashMap<URI, ServerPool<C>> pools = new ConcurrentHashMap<>();
+
+    public static void main(String[] args) throws IOException {
+        URI address = URI.create("tcp://0.0.0.1:80");
+        AtomicInteger opened = new AtomicInteger();
+        ConnectionPool<Integer> pool = new ConnectionPool<>(new Connector<Integer>() {
+            public Integer open(URI uri) {
+                return opened.incrementAndGet();
+            }
+
+            public void close(Integer connection) {
+            }
+        }, 1, 2, 60, TimeUnit.SECONDS);
+
+        for (int i = 0; i < 1_000; i++) {
+            pool.borrow(address).release();
+        }
+        System.out.println("1000 requests, opened " + opened.get() + ", idle " + pool.getIdleCount(address));
+        PooledConnection<Integer> first = pool.borrow(address);
+        PooledConnection<Integer> second = pool.borrow(address);
+        System.out.println("maxTotal 2 borrowed, next borrow " + pool.borrow(address));
+        first.release();
+        second.release();
+        System.out.println("maxIdle 1, idle " + pool.getIdleCount(address) + ", open " + pool.getTotalCount(address));
+    }
+
+    public ConnectionPool(Connector<C> connector) {
+        this(connector, DEFAULT_MAX_IDLE, DEFAULT_MAX_TOTAL, DEFAULT_IDLE_TIMEOUT_NANOS, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param connector   открывает и закрывает соединения
+     * @param maxIdle     свободных соединений на сервер, остальные закрываются при release
+     * @param maxTotal    открытых (свободных и выданных) соединений на сервер
+     * @param idleTimeout сколько свободное соединение может ждать в пуле
+     */
+    public ConnectionPool(Connector<C> connector, int maxIdle, int maxTotal, long idleTimeout, TimeUnit unit) {
+        if (maxIdle < 0)
+            throw new IllegalArgumentException("maxIdle must not be less then 0");
+        if (maxTotal < 1 || maxTotal < maxIdle)
+            throw new IllegalArgumentException("maxTotal must be more then 0 and not less then maxIdle");
+        if (idleTimeout <= 0)
+            throw new IllegalArgumentException("idleTimeout must be more then 0");
+        this.connector = connector;
+        this.maxIdle = maxIdle;
+        this.maxTotal = maxTotal;
+        this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+    }
+
+    /**
+     * свободное соединение или новое, если свободных нет
+     * @return null если у сервера уже открыто maxTotal соединений
+     * @throws IOException ошибка открытия нового соединения
+     */
+    public PooledConnection<C> borrow(URI address) throws IOException {
+        ServerPool<C> pool = pool(address);
+        long now = System.nanoTime();
+        for (IdleConnection<C> idle; (idle = pool.idle.pollFirst()) != null; ) {
+            pool.idleCount.decrementAndGet();
+            if (now - idle.sinceNanos < idleTimeoutNanos && connector.isReusable(idle.connection))
+                return new PooledConnection<>(this, pool, idle.connection);
+            close(pool, idle.connection);
+        }
+        int total;
+        do {
+            total = pool.total.get();
+            if (total >= maxTotal)
+                return null;
+        } while (!pool.total.compareAndSet(total, total + 1));
+        try {
+            return new PooledConnection<>(this, pool, connector.open(address));
+        } catch (IOException | RuntimeException e) {
+            pool.total.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * сверх maxIdle или если пул сервера уже не текущий (сервер удален update()) соединение закрывается
+     */
+    private void release(ServerPool<C> pool, C connection) {
+        int idle;
+        do {
+            idle = pool.idleCount.get();
+            if (idle >= maxIdle || pool.closed || pools.get(pool.address) != pool) {
+                close(pool, connection);
+                return;
+            }
+        } while (!pool.idleCount.compareAndSet(idle, idle + 1));
+        pool.idle.offerFirst(new IdleConnection<>(connection, System.nanoTime()));
+        if (pool.closed)
+            drain(pool);
+    }
+
+    /**
+     * есть ли у сервера свободное соединение; без блокировок, значение может сразу устареть
+     */
+    public boolean hasIdle(URI address) {
+        ServerPool<C> pool = pools.get(address);
+        return pool != null && pool.idleCount.get() > 0;
+    }
+
+    public int getIdleCount(URI address) {
+        ServerPool<C> pool = pools.get(address);
+        return pool == null ? 0 : pool.idleCount.get();
+    }
+
+    /**
+     * @return открытые соединения сервера, свободные и выданные
+     */
+    public int getTotalCount(URI address) {
+        ServerPool<C> pool = pools.get(address);
+        return pool == null ? 0 : pool.total.get();
+    }
+
+    /**
+     * закрывает свободные соединения серверов, которых нет в новом списке;
+     * выданные соединения таких серверов закроются при release, даже если сервер добавлен заново
+     */
+    public void update(List<ServerDetails> serverDetailsList) {
+        Set<URI> addresses = new HashSet<>();
+        for (ServerDetails serverDetails : serverDetailsList) {
+            addresses.add(serverDetails.address);
+        }
+        Iterator<ServerPool<C>> iterator = pools.values().iterator();
+        while (iterator.hasNext()) {
+            ServerPool<C> pool = iterator.next();
+            if (!addresses.contains(pool.address)) {
+                iterator.remove();
+                pool.closed = true;
+                drain(pool);
+            }
+        }
+    }
+
+    /**
+     * закрывает свободные соединения старше idleTimeout
+     */
+    public void evictIdle() {
+        long now = System.nanoTime();
+        for (ServerPool<C> pool : pools.values()) {
+            Iterator<IdleConnection<C>> iterator = pool.idle.descendingIterator();
+            while (iterator.hasNext()) {
+                IdleConnection<C> idle = iterator.next();
+                if (now - idle.sinceNanos < idleTimeoutNanos)
+                    break; // дальше к вершине стека только более новые
+                // соединение могли одновременно выдать, закрывает только тот, кто удалил его из стека
+                if (pool.idle.removeFirstOccurrence(idle)) {
+                    pool.idleCount.decrementAndGet();
+                    close(pool, idle.connection);
+                }
+            }
+        }
+    }
+
+    /**
+     * вызывает evictIdle() с заданным периодом
+     * @return задача, отмена которой останавливает проверку
+     */
+    public ScheduledFuture<?> scheduleEviction(ScheduledExecutorService executor, long period, TimeUnit unit) {
+        return executor.scheduleAtFixedRate(this::evictIdle, period, period, unit);
+    }
+
+    /**
+     * закрывает свободные соединения всех серверов, выданные закроются при release
+     */
+    public void close() {
+        Iterator<ServerPool<C>> iterator = pools.values().iterator();
+        while (iterator.hasNext()) {
+            ServerPool<C> pool = iterator.next();
+            iterator.remove();
+            pool.closed = true;
+            drain(pool);
+        }
+    }
+
+    private ServerPool<C> pool(URI address) {
+        ServerPool<C> pool = pools.get(address);
+        return pool != null ? pool : pools.computeIfAbsent(address, ServerPool::new);
+    }
+
+    private void drain(ServerPool<C> pool) {
+        for (IdleConnection<C> idle; (idle = pool.idle.pollFirst()) != null; ) {
+            pool.idleCount.decrementAndGet();
+            close(pool, idle.connection);
+        }
+    }
+
+    private void close(ServerPool<C> pool, C connection) {
+        pool.total.decrementAndGet();
+        connector.close(connection);
+    }
+
+    /**
+     * открытие и закрытие соединений конкретного протокола (TCP, TLS, HTTP клиент)
+     */
+    public interface Connector<C> {
+        C open(URI address) throws IOException;
+
+        /**
+         * закрывает соединение, ошибки закрытия не пробрасываются
+         */
+        void close(C connection);
+
+        /**
+         * проверка свободного соединения перед выдачей, например не закрыто ли оно сервером
+         */
+        default boolean isReusable(C connection) {
+            return true;
+        }
+    }
+
+    /**
+     * выданное соединение; освобождается один раз: release() - исправное, discard() - после ошибки,
+     * close() (для try-with-resources) - как release(), если соединение еще не освобождено
+     */
+    public static final class PooledConnection<C> implements AutoCloseable {
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<PooledConnection> RELEASED =
+                AtomicIntegerFieldUpdater.newUpdater(PooledConnection.class, "released");
+
+        private final ConnectionPool<C> owner;
+        private final ServerPool<C> pool;
+        private final C connection;
+        private volatile int released;
+
+        PooledConnection(ConnectionPool<C> owner, ServerPool<C> pool, C connection) {
+            this.owner = owner;
+            this.pool = pool;
+            this.connection = connection;
+        }
+
+        public C get() {
+            return connection;
+        }
+
+        public URI getAddress() {
+            return pool.address;
+        }
+
+        /**
+         * возвращает исправное соединение в пул
+         */
+        public void release() {
+            if (RELEASED.compareAndSet(this, 0, 1))
+                owner.release(pool, connection);
+        }
+
+        /**
+         * закрывает соединение после ошибки, место в maxTotal освобождается
+         */
+        public void discard() {
+            if (RELEASED.compareAndSet(this, 0, 1))
+                owner.close(pool, connection);
+        }
+
+        public void close() {
+            release();
+        }
+    }
+
+    private static final class ServerPool<C> {
+        final URI address;
+        final ConcurrentLinkedDeque<IdleConnection<C>> idle = new ConcurrentLinkedDeque<>();
+        final AtomicInteger idleCount = new AtomicInteger();
+        final AtomicInteger total = new AtomicInteger();
+        volatile boolean closed;
+
+        ServerPool(URI address) {
+            this.address = address;
+        }
+    }
+
+    private static final class IdleConnection<C> {
+        final C connection;
+        final long sinceNanos;
+
+        IdleConnection(C connection, long sinceNanos) {
+            this.connection = connection;
+            this.sinceNanos = sinceNanos;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package uricomputer;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import uricomputer.UriComputer.ServerDetails;
+
+/**
+ * Примитивное ядро выбора по интервалам: верхние границы интервалов в double[],
+ * индексы серверов в int[], без Weight, Double и списков на горячем пути, выбор без аллокаций.
+ * Интервалы упорядочены по весу from max to min (линейный поиск чаще заканчивается в начале),
+ * сервера с нулевым весом в интервалы не попадают.
+ * Если сервер с ненулевым весом один, выбор не тратит случайное число
+ */
+final class CumulativeWeights {
+    private final ServerDetails[] servers;
+    private final double[] upperBounds;
+    private final int[] serverIndexes;
+    private final double sumOfWeights;
+    private final int singleIndex; // -1 если серверов с ненулевым весом больше одного
+    private final DistinctSampler distinctSampler;
+
+    CumulativeWeights(List<ServerDetails> serverDetailsList) {
+        servers = serverDetailsList.toArray(new ServerDetails[0]);
+        Integer[] order = new Integer[servers.length];
+        int count = 0;
+        for (int i = 0; i < servers.length; i++) {
+            Weights.checkWeight(servers[i].weight);
+            if (servers[i].weight.value > 0.0)
+                order[count++] = i;
+        }
+        if (count == 0)
+            throw new IllegalArgumentException("sum Of All weights must be more then 0");
+        Arrays.sort(order, 0, count, (a, b) -> Double.compare(servers[b].weight.value, servers[a].weight.value));
+
+        upperBounds = new double[count];
+        serverIndexes = new int[count];
+        double sum = 0.0;
+        for (int i = 0; i < count; i++) {
+            sum += servers[order[i]].weight.value;
+            upperBounds[i] = sum;
+            serverIndexes[i] = order[i];
+        }
+        if (Double.isInfinite(sum))
+            throw new IllegalArgumentException("sum Of All weights must be finite");
+        sumOfWeights = sum;
+        singleIndex = count == 1 ? serverIndexes[0] : -1;
+        distinctSampler = new DistinctSampler(servers);
+    }
+
+    ServerDetails server(int index) {
+        return servers[index];
+    }
+
+    /**
+     * k разных серверов без возвращения, повторные выборы - бинарным поиском при любом способе поиска реализации
+     */
+    List<ServerDetails> distinctServers(int k) {
+        return distinctSampler.sample(k, this::binaryIndex);
+    }
+
+    /**
+     * индекс сервера (в порядке списка из конструктора), интервал ищется последовательно, O(n)
+     */
+    int linearIndex(ThreadLocalRandom random) {
+        if (singleIndex >= 0)
+            return singleIndex;
+        return linearIndex(random.nextDouble(sumOfWeights));
+    }
+
+    /**
+     * @param randNumb от 0 до sumOfWeights()
+     */
+    int linearIndex(double randNumb) {
+        return serverIndexes[linearSearch(upperBounds, randNumb)];
+    }
+
+    /**
+     * индекс сервера (в порядке списка из конструктора), интервал ищется бинарным поиском без ветвлений, O(log(n))
+     */
+    int binaryIndex(ThreadLocalRandom random) {
+        if (singleIndex >= 0)
+            return singleIndex;
+        return binaryIndex(random.nextDouble(sumOfWeights));
+    }
+
+    /**
+     * @param randNumb от 0 до sumOfWeights()
+     */
+    int binaryIndex(double randNumb) {
+        return serverIndexes[branchlessSearch(upperBounds, randNumb)];
+    }
+
+    double sumOfWeights() {
+        return sumOfWeights;
+    }
+
+    /**
+     * индекс сервера (в порядке списка из конструктора), интервал ищется переданной реализацией
+     */
+    int searchIndex(ThreadLocalRandom random, IntervalSearch intervalSearch) {
+        if (singleIndex >= 0)
+            return singleIndex;
+        return serverIndexes[intervalSearch.search(upperBounds, random.nextDouble(sumOfWeights))];
+    }
+
+    /**
+     * @return первый интервал, верхняя граница которого больше randNumb
+     */
+    static int linearSearch(double[] upperBounds, double randNumb) {
+        int last = upperBounds.length - 1;
+        for (int i = 0; i < last; i++) {
+            if (randNumb < upperBounds[i])
+                return i;
+        }
+        return last;
+    }
+
+    /**
+     * как linearSearch, но бинарным поиском с фиксированным кол-вом шагов:
+     * сдвиг базы выбирается условной пересылкой (cmov), а не переходом, поэтому нет промахов предсказателя
+     */
+    static int branchlessSearch(double[] upperBounds, double randNumb) {
+        int base = 0;
+        int length = upperBounds.length;
+        while (length > 1) {
+            int half = length >>> 1;
+            base = upperBounds[base + half - 1] <= randNumb ? base + half : base;
+            length -= half;
+        }
+        return base;
+    }
+}
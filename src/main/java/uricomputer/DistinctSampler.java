@@ -0,0 +1,224 @@
+package uricomputer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntPredicate;
+
+import uricomputer.UriComputer.ServerDetails;
+
+/**
+ * Выбор k разных серверов согласно весам без возвращения (реплики, кворум): вероятность каждого следующего сервера
+ * пропорциональна весу среди еще не выбранных.
+ * Сначала повторный выбор реализацией (alias, бинарный поиск) с отбрасыванием уже выбранных - O(k) при близких весах;
+ * выбранные проверяются перебором при k не больше LINEAR_CHECK_LIMIT, иначе по битовой маске.
+ * Если подряд MAX_MISSES выборов попали в уже выбранные (тяжелые сервера при сильном перекосе весов),
+ * оставшиеся сервера выбираются за один проход Efraimidis-Spirakis A-ExpJ с кучей на double[] / int[]:
+ * ключ сервера log(u) / weight, остаются k наибольших, а между заменами в куче случайное число не тратится (прыжки по весу).
+ * Переход точный: отказы независимы, поэтому следующий выбор после MAX_MISSES промахов распределен так же
+ */
+final class DistinctSampler {
+    static final int MAX_MISSES = 8;
+    static final int LINEAR_CHECK_LIMIT = 16;
+
+    private final ServerDetails[] servers;
+    private final double[] weights;
+    private final int positiveCount;
+
+    DistinctSampler(ServerDetails[] servers) {
+        this(servers, weightsOf(servers));
+    }
+
+    /**
+     * @param weights веса, с которыми на самом деле выбирает indexSampler (например, кол-во ячеек таблицы),
+     *                если они отличаются от заданных в servers из-за округления
+     */
+    DistinctSampler(ServerDetails[] servers, double[] weights) {
+        this.servers = servers;
+        this.weights = weights;
+        int count = 0;
+        for (double weight : weights) {
+            if (weight > 0.0)
+                count++;
+        }
+        positiveCount = count;
+    }
+
+    private static double[] weightsOf(ServerDetails[] servers) {
+        double[] weights = new double[servers.length];
+        for (int i = 0; i < servers.length; i++) {
+            weights[i] = servers[i].weight.value;
+        }
+        return weights;
+    }
+
+    /**
+     * @param indexSampler выбор индекса сервера (в порядке servers) согласно весам
+     * @throws IllegalArgumentException k меньше 1 или больше кол-ва серверов с ненулевым весом
+     */
+    List<ServerDetails> sample(int k, IndexSampler indexSampler) {
+        checkSize(k);
+        int[] indexes = new int[k];
+        sampleIndexes(k, indexSampler, null, indexes);
+        List<ServerDetails> sample = new ArrayList<>(k);
+        for (int index : indexes) {
+            sample.add(servers[index]);
+        }
+        return sample;
+    }
+
+    /**
+     * @throws IllegalArgumentException k меньше 1 или больше кол-ва серверов с ненулевым весом
+     */
+    void checkSize(int k) {
+        if (k < 1 || k > positiveCount)
+            throw new IllegalArgumentException("k must be from 1 to count of servers with weight more then 0 ("
+                    + positiveCount + ")");
+    }
+
+    /**
+     * то же среди серверов, для которых eligible истинно (null - среди всех):
+     * неподходящий сервер, выпавший при повторном выборе, отмечается как выбранный, но в выборку не попадает,
+     * поэтому порядок остается последовательным выбором согласно весам среди подходящих.
+     * eligible вызывается не больше одного раза для сервера
+     * @param out индексы выбранных серверов, не меньше k элементов
+     * @return кол-во выбранных, меньше k если подходящих серверов не хватило
+     */
+    int sampleIndexes(int k, IndexSampler indexSampler, IntPredicate eligible, int[] out) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (k >= positiveCount) // состав известен, порядок тоже выбирается согласно весам
+            return expJ(out, 0, Math.min(k, positiveCount), null, eligible, random);
+        long[] chosen = k > LINEAR_CHECK_LIMIT || eligible != null ? new long[(servers.length + 63) >>> 6] : null;
+        int count = 0;
+        int misses = 0;
+        while (count < k) {
+            int index = indexSampler.nextIndex(random);
+            if (!isChosen(index, chosen, out, count)) {
+                if (chosen != null)
+                    chosen[index >>> 6] |= 1L << index;
+                if (eligible == null || eligible.test(index))
+                    out[count++] = index;
+                misses = 0;
+            } else if (++misses == MAX_MISSES) {
+                if (chosen == null) {
+                    chosen = new long[(servers.length + 63) >>> 6];
+                    for (int i = 0; i < count; i++) {
+                        chosen[out[i] >>> 6] |= 1L << out[i];
+                    }
+                }
+                return expJ(out, count, k - count, chosen, eligible, random);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * при малом k уже выбранные проверяются перебором, без битовой маски на все сервера
+     */
+    private static boolean isChosen(int index, long[] chosen, int[] chosenIndexes, int count) {
+        if (chosen != null)
+            return (chosen[index >>> 6] & (1L << index)) != 0;
+        for (int i = 0; i < count; i++) {
+            if (chosenIndexes[i] == index)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * A-ExpJ по подходящим серверам, не отмеченным в chosen (null - по всем); ключи в логарифмах,
+     * чтобы малые веса не давали 0. Сервера записываются в out с позиции from по убыванию ключа -
+     * это и есть порядок последовательного выбора согласно весам
+     * @return кол-во выбранных вместе с первыми from
+     */
+    private int expJ(int[] out, int from, int m, long[] chosen, IntPredicate eligible, ThreadLocalRandom random) {
+        double[] keys = new double[m];
+        int[] indexes = new int[m];
+        int size = 0;
+        int i = 0;
+        for (; i < weights.length && size < m; i++) {
+            if (weights[i] > 0.0 && !isMarked(chosen, i) && (eligible == null || eligible.test(i))) {
+                keys[size] = Math.log(1.0 - random.nextDouble()) / weights[i];
+                indexes[size] = i;
+                siftUp(keys, indexes, size++);
+            }
+        }
+        if (size < m) { // подходящих не хватило, берутся все по убыванию ключа
+            m = size;
+            i = weights.length;
+        }
+        if (m == 0)
+            return from;
+        double threshold = keys[0]; // наименьший ключ в куче
+        double jump = Math.log(1.0 - random.nextDouble()) / threshold;
+        for (; i < weights.length && threshold < 0.0; i++) {
+            double weight = weights[i];
+            if (!(weight > 0.0) || isMarked(chosen, i) || eligible != null && !eligible.test(i))
+                continue;
+            jump -= weight;
+            if (jump <= 0.0) {
+                // ключ нового сервера равномерен выше порога: u из (threshold^weight, 1]
+                double low = Math.exp(threshold * weight);
+                keys[0] = Math.log(low + (1.0 - low) * (1.0 - random.nextDouble())) / weight;
+                indexes[0] = i;
+                siftDown(keys, indexes, m);
+                threshold = keys[0];
+                jump = Math.log(1.0 - random.nextDouble()) / threshold;
+            }
+        }
+        // пирамидальная сортировка: наименьший ключ уходит в конец, в начале остаются наибольшие
+        for (int last = m - 1; last > 0; last--) {
+            double key = keys[0];
+            int index = indexes[0];
+            keys[0] = keys[last];
+            indexes[0] = indexes[last];
+            siftDown(keys, indexes, last);
+            keys[last] = key;
+            indexes[last] = index;
+        }
+        System.arraycopy(indexes, 0, out, from, m);
+        return from + m;
+    }
+
+    private static boolean isMarked(long[] chosen, int index) {
+        return chosen != null && (chosen[index >>> 6] & (1L << index)) != 0;
+    }
+
+    private static void siftUp(double[] keys, int[] indexes, int position) {
+        double key = keys[position];
+        int index = indexes[position];
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (keys[parent] <= key)
+                break;
+            keys[position] = keys[parent];
+            indexes[position] = indexes[parent];
+            position = parent;
+        }
+        keys[position] = key;
+        indexes[position] = index;
+    }
+
+    private static void siftDown(double[] keys, int[] indexes, int size) {
+        double key = keys[0];
+        int index = indexes[0];
+        int position = 0;
+        for (int child; (child = 2 * position + 1) < size; position = child) {
+            if (child + 1 < size && keys[child + 1] < keys[child])
+                child++;
+            if (key <= keys[child])
+                break;
+            keys[position] = keys[child];
+            indexes[position] = indexes[child];
+        }
+        keys[position] = key;
+        indexes[position] = index;
+    }
+
+    /**
+     * выбор одного индекса согласно весам
+     */
+    interface IndexSampler {
+        int nextIndex(ThreadLocalRandom random);
+    }
+}
@@ -0,0 +1,337 @@
+package uricomputer;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Метрики выбора поверх любой реализации UriComputer:
+ * кол-во выборов каждого сервера (LongAdder, без общей точки конкуренции), наблюдаемая доля против заданной весом,
+ * задержка самого выбора (замеряется каждый latencySampling-й вызов, nanoTime дороже выбора)
+ * и, если вызывающий сообщает результат (acquire / onResponse), гистограмма задержек ответов каждого сервера.
+ * Метрики читаются через snapshot() или JMX (registerMBean)
+ */
+public class InstrumentedUriComputer implements UriComputer {
+    static final int DEFAULT_LATENCY_SAMPLING = 64;
+
+    private final UriComputer delegate;
+    private final ServerDetails[] servers;
+    private final double[] configuredShares;
+    private final Map<URI, Integer> indexByAddress;
+    private final LongAdder[] picks;
+    private final LongAdder[] failures;
+    private final LatencyHistogram[] responseLatency;
+    private final LatencyHistogram selectionLatency = new LatencyHistogram();
+    private final int latencySamplingMask;
+    private final ServerLease.Owner leaseOwner = this::onResponse;
+
+    public ServerDetails getNextServer() {
+        if ((ThreadLocalRandom.current().nextInt() & latencySamplingMask) != 0)
+            return countPick(delegate.getNextServer());
+        long start = System.nanoTime();
+        ServerDetails serverDetails = delegate.getNextServer();
+        selectionLatency.record(System.nanoTime() - start);
+        return countPick(serverDetails);
+    }
+
+    public URI getNextServerUri() {
+        return getNextServer().address;
+    }
+
+    /**
+     * задержка пакета записывается как задержка одного выбора (общее время / n)
+     */
+    @Override
+    public int getNextServers(ServerDetails[] out, int n) {
+        long start = System.nanoTime();
+        int filled = delegate.getNextServers(out, n);
+        if (filled > 0)
+            selectionLatency.record((System.nanoTime() - start) / filled);
+        for (int i = 0; i < filled; i++) {
+            countPick(out[i]);
+        }
+        return filled;
+    }
+
+    /**
+     * индексы делегата, поэтому делегат должен быть построен по тому же списку
+     */
+    @Override
+    public int getNextServerIndexes(int[] out, int n) {
+        long start = System.nanoTime();
+        int filled = delegate.getNextServerIndexes(out, n);
+        if (filled > 0)
+            selectionLatency.record((System.nanoTime() - start) / filled);
+        for (int i = 0; i < filled; i++) {
+            picks[out[i]].increment();
+        }
+        return filled;
+    }
+
+    /**
+     * каждый из k серверов учитывается как выбор, задержка записывается как задержка одного выбора (общее время / k)
+     */
+    @Override
+    public List<ServerDetails> getNextServers(int k) {
+        long start = System.nanoTime();
+        List<ServerDetails> sample = delegate.getNextServers(k);
+        selectionLatency.record((System.nanoTime() - start) / sample.size());
+        for (ServerDetails serverDetails : sample) {
+            countPick(serverDetails);
+        }
+        return sample;
+    }
+
+    public InstrumentedUriComputer(UriComputer delegate, List<ServerDetails> serverDetailsList) {
+        this(delegate, serverDetailsList, DEFAULT_LATENCY_SAMPLING);
+    }
+
+    /**
+     * @param delegate          реализация, построенная по serverDetailsList
+     * @param serverDetailsList сервера с заданными весами: по ним считаются заданные доли
+     * @param latencySampling   задержка выбора замеряется в среднем у одного из latencySampling вызовов, степень двойки
+     */
+    public InstrumentedUriComputer(UriComputer delegate, List<ServerDetails> serverDetailsList, int latencySampling) {
+        if (latencySampling < 1 || Integer.bitCount(latencySampling) != 1)
+            throw new IllegalArgumentException("latencySampling must be a power of two");
+        this.delegate = delegate;
+        this.latencySamplingMask = latencySampling - 1;
+        servers = serverDetailsList.toArray(new ServerDetails[0]);
+        configuredShares = new double[servers.length];
+        indexByAddress = new HashMap<>();
+        picks = new LongAdder[servers.length];
+        failures = new LongAdder[servers.length];
+        responseLatency = new LatencyHistogram[servers.length];
+        double sumOfWeights = 0.0;
+        for (ServerDetails serverDetails : servers) {
+            sumOfWeights += serverDetails.weight.value;
+        }
+        for (int i = 0; i < servers.length; i++) {
+            configuredShares[i] = sumOfWeights > 0.0 ? servers[i].weight.value / sumOfWeights : 0.0;
+            indexByAddress.put(servers[i].address, i);
+            picks[i] = new LongAdder();
+            failures[i] = new LongAdder();
+            responseLatency[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * выбирает сервер, задержка и результат запроса записываются при освобождении lease
+     */
+    public ServerLease acquire() {
+        ServerDetails serverDetails = getNextServer();
+        return new ServerLease(serverDetails, indexOf(serverDetails.address), leaseOwner);
+    }
+
+    /**
+     * записывает задержку и результат ответа сервера; адреса не из списка игнорируются
+     */
+    public void onResponse(URI address, long latencyNanos, boolean success) {
+        onResponse(indexOf(address), latencyNanos, success);
+    }
+
+    private void onResponse(int index, long latencyNanos, boolean success) {
+        if (index < 0)
+            return;
+        responseLatency[index].record(latencyNanos);
+        if (!success)
+            failures[index].increment();
+    }
+
+    public void reset() {
+        for (int i = 0; i < servers.length; i++) {
+            picks[i].reset();
+            failures[i].reset();
+            responseLatency[i].reset();
+        }
+        selectionLatency.reset();
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[servers.length];
+        long total = 0;
+        for (int i = 0; i < servers.length; i++) {
+            counts[i] = picks[i].sum();
+            total += counts[i];
+        }
+        List<ServerSnapshot> serverSnapshots = new ArrayList<>(servers.length);
+        for (int i = 0; i < servers.length; i++) {
+            serverSnapshots.add(new ServerSnapshot(servers[i].address, configuredShares[i], counts[i],
+                    total == 0 ? 0.0 : (double) counts[i] / total, failures[i].sum(), responseLatency[i].snapshot()));
+        }
+        return new Snapshot(total, selectionLatency.snapshot(), serverSnapshots);
+    }
+
+    /**
+     * регистрирует метрики в platform MBean server
+     * @param name имя MBean, например "uricomputer:type=SelectionMetrics,name=backend"
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName(name);
+        ManagementFactory.getPlatformMBeanServer()
+                .registerMBean(new StandardMBean(new Metrics(), SelectionMetricsMBean.class), objectName);
+        return objectName;
+    }
+
+    private ServerDetails countPick(ServerDetails serverDetails) {
+        int index = indexOf(serverDetails.address);
+        if (index >= 0)
+            picks[index].increment();
+        return serverDetails;
+    }
+
+    private int indexOf(URI address) {
+        Integer index = indexByAddress.get(address);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * метрики на момент вызова snapshot()
+     */
+    public static final class Snapshot {
+        private final long totalPicks;
+        private final LatencyHistogram.Snapshot selectionLatency;
+        private final List<ServerSnapshot> servers;
+
+        Snapshot(long totalPicks, LatencyHistogram.Snapshot selectionLatency, List<ServerSnapshot> servers) {
+            this.totalPicks = totalPicks;
+            this.selectionLatency = selectionLatency;
+            this.servers = Collections.unmodifiableList(servers);
+        }
+
+        public long getTotalPicks() {
+            return totalPicks;
+        }
+
+        /**
+         * задержка вызова getNextServer, только замеренные вызовы
+         */
+        public LatencyHistogram.Snapshot getSelectionLatency() {
+            return selectionLatency;
+        }
+
+        public List<ServerSnapshot> getServers() {
+            return servers;
+        }
+
+        public double getMaxShareDeviation() {
+            double max = 0.0;
+            for (ServerSnapshot server : servers) {
+                max = Math.max(max, Math.abs(server.observedShare - server.configuredShare));
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder("All " + totalPicks);
+            for (ServerSnapshot server : servers) {
+                report.append("\n ").append(server);
+            }
+            return report.append("\n max share deviation ").append(getMaxShareDeviation())
+                    .append("\n selection latency ns ").append(selectionLatency)
+                    .toString();
+        }
+    }
+
+    /**
+     * метрики одного сервера
+     */
+    public static final class ServerSnapshot {
+        private final URI address;
+        private final double configuredShare;
+        private final long picks;
+        private final double observedShare;
+        private final long failures;
+        private final LatencyHistogram.Snapshot responseLatency;
+
+        ServerSnapshot(URI address, double configuredShare, long picks, double observedShare,
+                       long failures, LatencyHistogram.Snapshot responseLatency) {
+            this.address = address;
+            this.configuredShare = configuredShare;
+            this.picks = picks;
+            this.observedShare = observedShare;
+            this.failures = failures;
+            this.responseLatency = responseLatency;
+        }
+
+        public URI getAddress() {
+            return address;
+        }
+
+        public double getConfiguredShare() {
+            return configuredShare;
+        }
+
+        public long getPicks() {
+            return picks;
+        }
+
+        public double getObservedShare() {
+            return observedShare;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        /**
+         * задержка ответов по данным вызывающего (acquire / onResponse)
+         */
+        public LatencyHistogram.Snapshot getResponseLatency() {
+            return responseLatency;
+        }
+
+        @Override
+        public String toString() {
+            String line = address + " " + observedShare + " (configured " + configuredShare + ")";
+            return responseLatency.getCount() == 0
+                    ? line
+                    : line + " failures " + failures + " response latency ns " + responseLatency;
+        }
+    }
+
+    /**
+     * адаптер для JMX: каждое чтение атрибута делает snapshot()
+     */
+    private final class Metrics implements SelectionMetricsMBean {
+
+        public long getTotalPicks() {
+            return snapshot().getTotalPicks();
+        }
+
+        public double getMaxShareDeviation() {
+            return snapshot().getMaxShareDeviation();
+        }
+
+        public long getSelectionLatencyP50Nanos() {
+            return selectionLatency.snapshot().getValueAtPercentile(50);
+        }
+
+        public long getSelectionLatencyP99Nanos() {
+            return selectionLatency.snapshot().getValueAtPercentile(99);
+        }
+
+        public String[] getServers() {
+            List<ServerSnapshot> servers = snapshot().getServers();
+            String[] lines = new String[servers.size()];
+            for (int i = 0; i < lines.length; i++) {
+                lines[i] = servers.get(i).toString();
+            }
+            return lines;
+        }
+
+        public void reset() {
+            InstrumentedUriComputer.this.reset();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package uricomputer;
+
+/**
+ * Поиск интервала по отсортированным верхним границам (CumulativeWeights)
+ */
+interface IntervalSearch {
+
+    /**
+     * @param upperBounds верхние границы интервалов по возрастанию
+     * @param randNumb    от 0 до последней границы
+     * @return первый интервал, верхняя граница которого больше randNumb (последний, если такого нет)
+     */
+    int search(double[] upperBounds, double randNumb);
+}
@@ -0,0 +1,15 @@
+package uricomputer;
+
+/**
+ * UriComputer с выбором по ключу: один и тот же ключ попадает на один и тот же сервер,
+ * пока список серверов не меняется (sticky routing, шардирование кэша)
+ */
+public interface KeyedUriComputer extends UriComputer {
+
+    ServerDetails getNextServer(long key);
+
+    /**
+     * хэш ключа считается без аллокаций и одинаково во всех JVM
+     */
+    ServerDetails getNextServer(CharSequence key);
+}
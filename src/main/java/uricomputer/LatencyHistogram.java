@@ -0,0 +1,137 @@
+package uricomputer;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Гистограмма задержек с фиксированными корзинами в примитивном массиве (как HdrHistogram):
+ * значения до 8 - точно, дальше каждая степень двойки делится на 8 корзин, погрешность не больше 12.5%.
+ * 488 корзин покрывают весь диапазон long, запись - одно атомарное увеличение без аллокаций
+ */
+public final class LatencyHistogram {
+    static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * @param value отрицательные значения считаются как 0
+     */
+    public void record(long value) {
+        counts.incrementAndGet(bucket(Math.max(0, value)));
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    /**
+     * копия счетчиков; записи, идущие параллельно, могут попасть в копию частично
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy);
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return наименьшее значение корзины
+     */
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * @return наибольшее значение корзины
+     */
+    static long upperBound(int bucket) {
+        return bucket + 1 == BUCKETS ? Long.MAX_VALUE : lowerBound(bucket + 1) - 1;
+    }
+
+    /**
+     * неизменяемая копия гистограммы
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+
+        Snapshot(long[] counts) {
+            this.counts = counts;
+            long count = 0;
+            for (long bucketCount : counts) {
+                count += bucketCount;
+            }
+            this.count = count;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @param percentile от 0 до 100
+         * @return верхняя граница корзины, в которую попадает перцентиль, 0 если записей нет
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (!(percentile >= 0.0 && percentile <= 100.0))
+                throw new IllegalArgumentException("percentile must be from 0 to 100");
+            if (count == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return upperBound(i);
+            }
+            return upperBound(counts.length - 1);
+        }
+
+        /**
+         * среднее по серединам корзин
+         */
+        public double getMean() {
+            if (count == 0)
+                return 0.0;
+            double sum = 0.0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0)
+                    sum += counts[i] * ((double) lowerBound(i) + upperBound(i)) / 2;
+            }
+            return sum / count;
+        }
+
+        public long getMax() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] != 0)
+                    return upperBound(i);
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return "count " + count
+                    + " mean " + Math.round(getMean())
+                    + " p50 " + getValueAtPercentile(50)
+                    + " p99 " + getValueAtPercentile(99)
+                    + " p99.9 " + getValueAtPercentile(99.9)
+                    + " max " + getMax();
+        }
+    }
+}
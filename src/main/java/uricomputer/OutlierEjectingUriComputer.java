@@ -0,0 +1,364 @@
+package uricomputer;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Пассивная проверка здоровья (outlier detection) поверх любой реализации UriComputer
+ * Сервер исключается из выбора после consecutiveFailures ошибок подряд
+ * или если доля ошибок за интервал между refresh() больше failureRateThreshold.
+ * Исключение длится baseEjectionNanos * 2^(кол-во недавних исключений - 1), но не больше maxEjectionNanos;
+ * исключить можно не больше maxEjectionPercent серверов и никогда все.
+ * При исключении и возврате таблица выбора один раз перестраивается фабрикой по списку здоровых серверов
+ * и публикуется volatile записью: getNextServer ничего не фильтрует
+ */
+public class OutlierEjectingUriComputer implements UpdatableUriComputer {
+    private final Function<List<ServerDetails>, ? extends UriComputer> factory;
+    private final Settings settings;
+    private volatile State state;
+    private volatile Table table;
+
+    public static void main(String[] args) throws URISyntaxException {
+        URI server1Uri = new URI("0.0.0.1");
+        URI server2Uri = new URI("0.0.0.2");
+        URI server3Uri = new URI("0.0.0.3");
+        OutlierEjectingUriComputer outlierEjecting = new OutlierEjectingUriComputer(asList(
+                new ServerDetails(new Weight(1.0), server1Uri)
+                , new ServerDetails(new Weight(1.0), server2Uri)
+                , new ServerDetails(new Weight(1.0), server3Uri)
+        ), WeightedRoundRobinAlias::new, new Settings().maxEjectionPercent(50));
+
+        for (int i = 0; i < 5; i++) {
+            outlierEjecting.onFailure(server2Uri);
+        }
+        int server2Count = 0;
+        for (int i = 0; i < 1_000_000; i++) {
+            if (outlierEjecting.getNextServerUri().equals(server2Uri))
+                server2Count++;
+        }
+        System.out.println("ejected " + outlierEjecting.isEjected(server2Uri) + ", server2 picks " + server2Count);
+    }
+
+    public ServerDetails getNextServer() {
+        return table.sampler.getNextServer();
+    }
+
+    public URI getNextServerUri() {
+        return getNextServer().address;
+    }
+
+    /**
+     * весь пакет выбирается из одной таблицы здоровых серверов
+     */
+    @Override
+    public int getNextServers(ServerDetails[] out, int n) {
+        return table.sampler.getNextServers(out, n);
+    }
+
+    /**
+     * индексы таблицы здоровых серверов переводятся в индексы getServerDetailsList()
+     */
+    @Override
+    public int getNextServerIndexes(int[] out, int n) {
+        Table table = this.table;
+        int filled = table.sampler.getNextServerIndexes(out, n);
+        for (int i = 0; i < filled; i++) {
+            out[i] = table.serverIndexes[out[i]];
+        }
+        return filled;
+    }
+
+    /**
+     * k разных серверов из таблицы здоровых серверов
+     */
+    @Override
+    public List<ServerDetails> getNextServers(int k) {
+        return table.sampler.getNextServers(k);
+    }
+
+    public OutlierEjectingUriComputer(List<ServerDetails> serverDetailsList,
+                                      Function<List<ServerDetails>, ? extends UriComputer> factory) {
+        this(serverDetailsList, factory, new Settings());
+    }
+
+    /**
+     * @param factory  строит таблицу выбора по списку неисключенных серверов, например WeightedRoundRobinAlias::new
+     * @param settings пороги исключения, копируются
+     */
+    public OutlierEjectingUriComputer(List<ServerDetails> serverDetailsList,
+                                      Function<List<ServerDetails>, ? extends UriComputer> factory,
+                                      Settings settings) {
+        this.factory = factory;
+        this.settings = settings.copy();
+        update(serverDetailsList);
+    }
+
+    /**
+     * выбирает сервер, результат запроса учитывается при освобождении lease (complete / fail);
+     * индекс в lease относится к State на момент выдачи, после update() сервер ищется по адресу
+     */
+    public ServerLease acquire() {
+        State leased = state;
+        ServerDetails serverDetails = getNextServer();
+        return new ServerLease(serverDetails, leased.indexOf(serverDetails.address),
+                (index, latencyNanos, success) -> onResult(leased, index, success));
+    }
+
+    public void onSuccess(URI address) {
+        State current = state;
+        onResult(current, current.indexOf(address), true);
+    }
+
+    public void onFailure(URI address) {
+        State current = state;
+        onResult(current, current.indexOf(address), false);
+    }
+
+    public boolean isEjected(URI address) {
+        State current = state;
+        int index = current.indexOf(address);
+        return index >= 0 && current.ejectedUntilNanos[index] != 0;
+    }
+
+    /**
+     * заменяет список серверов; исключенные сервера, оставшиеся в списке, остаются исключенными
+     */
+    public synchronized void update(List<ServerDetails> serverDetailsList) {
+        State previous = state;
+        State next = new State(serverDetailsList);
+        if (previous != null) {
+            for (int i = 0; i < next.servers.length; i++) {
+                int old = previous.indexOf(next.servers[i].address);
+                if (old >= 0) {
+                    next.ejectedUntilNanos[i] = previous.ejectedUntilNanos[old];
+                    next.ejectionCount[i] = previous.ejectionCount[old];
+                }
+            }
+        }
+        state = next;
+        publish(next);
+    }
+
+    public List<ServerDetails> getServerDetailsList() {
+        return state.serverDetailsList;
+    }
+
+    /**
+     * закрывает интервал подсчета доли ошибок и возвращает сервера, у которых истекло время исключения
+     */
+    public synchronized void refresh() {
+        State current = state;
+        long now = System.nanoTime();
+        boolean changed = false;
+        for (int i = 0; i < current.servers.length; i++) {
+            long successes = current.successes.get(i);
+            long failures = current.failures.get(i);
+            current.successes.add(i, -successes);
+            current.failures.add(i, -failures);
+            if (current.ejectedUntilNanos[i] != 0) {
+                if (now - current.ejectedUntilNanos[i] >= 0) {
+                    current.ejectedUntilNanos[i] = 0;
+                    current.consecutiveFailures.set(i, 0);
+                    changed = true;
+                }
+            } else if (successes + failures >= settings.minRequests
+                    && failures >= settings.failureRateThreshold * (successes + failures)) {
+                changed |= eject(current, i, now);
+            } else if (failures == 0 && current.ejectionCount[i] > 0) {
+                current.ejectionCount[i]--; // интервал без ошибок: следующее исключение будет короче
+            }
+        }
+        if (changed)
+            publish(current);
+    }
+
+    /**
+     * вызывает refresh() с заданным периодом (интервал подсчета доли ошибок)
+     * @return задача, отмена которой останавливает проверку
+     */
+    public ScheduledFuture<?> scheduleRefresh(ScheduledExecutorService executor, long period, TimeUnit unit) {
+        return executor.scheduleAtFixedRate(this::refresh, period, period, unit);
+    }
+
+    private void onResult(State leased, int index, boolean success) {
+        if (index < 0)
+            return;
+        State current = state;
+        if (leased != current) // список заменен после выдачи lease
+            index = current.indexOf(leased.servers[index].address);
+        if (index < 0)
+            return;
+        if (success) {
+            current.successes.increment(index);
+            if (current.consecutiveFailures.get(index) != 0)
+                current.consecutiveFailures.set(index, 0);
+        } else {
+            current.failures.increment(index);
+            if (current.consecutiveFailures.increment(index) >= settings.consecutiveFailures)
+                ejectOnFailures(current, index);
+        }
+    }
+
+    private synchronized void ejectOnFailures(State current, int index) {
+        if (current == state && current.ejectedUntilNanos[index] == 0 && eject(current, index, System.nanoTime()))
+            publish(current);
+    }
+
+    /**
+     * @return false если лимит исключенных серверов исчерпан
+     */
+    private boolean eject(State current, int index, long now) {
+        int ejected = 0;
+        for (long ejectedUntil : current.ejectedUntilNanos) {
+            if (ejectedUntil != 0)
+                ejected++;
+        }
+        int allowed = settings.maxEjectionPercent == 0 ? 0 : Math.min(current.servers.length - 1,
+                Math.max(1, current.servers.length * settings.maxEjectionPercent / 100));
+        if (ejected >= allowed)
+            return false;
+        int ejectionCount = ++current.ejectionCount[index];
+        long duration = settings.baseEjectionNanos << Math.min(ejectionCount - 1, 30);
+        if (duration <= 0 || duration > settings.maxEjectionNanos)
+            duration = settings.maxEjectionNanos;
+        long ejectedUntil = now + duration;
+        current.ejectedUntilNanos[index] = ejectedUntil == 0 ? 1 : ejectedUntil; // 0 означает "не исключен"
+        return true;
+    }
+
+    private void publish(State current) {
+        List<ServerDetails> healthy = new ArrayList<>(current.servers.length);
+        int[] serverIndexes = new int[current.servers.length];
+        for (int i = 0; i < current.servers.length; i++) {
+            if (current.ejectedUntilNanos[i] == 0) {
+                serverIndexes[healthy.size()] = i;
+                healthy.add(current.servers[i]);
+            }
+        }
+        table = new Table(factory.apply(healthy), serverIndexes);
+    }
+
+    /**
+     * таблица выбора по здоровым серверам и индексы этих серверов в State
+     */
+    private static final class Table {
+        final UriComputer sampler;
+        final int[] serverIndexes;
+
+        Table(UriComputer sampler, int[] serverIndexes) {
+            this.sampler = sampler;
+            this.serverIndexes = serverIndexes;
+        }
+    }
+
+    /**
+     * список серверов и счетчики по их индексам
+     * ejectedUntilNanos и ejectionCount меняются только под монитором OutlierEjectingUriComputer
+     */
+    private static final class State {
+        final List<ServerDetails> serverDetailsList;
+        final ServerDetails[] servers;
+        final Map<URI, Integer> indexByAddress = new HashMap<>();
+        final PaddedCounters consecutiveFailures;
+        final PaddedCounters successes;
+        final PaddedCounters failures;
+        final long[] ejectedUntilNanos;
+        final int[] ejectionCount;
+
+        State(List<ServerDetails> serverDetailsList) {
+            this.serverDetailsList = Collections.unmodifiableList(new ArrayList<>(serverDetailsList));
+            servers = serverDetailsList.toArray(new ServerDetails[0]);
+            for (int i = 0; i < servers.length; i++) {
+                indexByAddress.put(servers[i].address, i);
+            }
+            consecutiveFailures = new PaddedCounters(servers.length);
+            successes = new PaddedCounters(servers.length);
+            failures = new PaddedCounters(servers.length);
+            ejectedUntilNanos = new long[servers.length];
+            ejectionCount = new int[servers.length];
+        }
+
+        int indexOf(URI address) {
+            Integer index = indexByAddress.get(address);
+            return index == null ? -1 : index;
+        }
+    }
+
+    /**
+     * пороги исключения
+     */
+    public static final class Settings {
+        int consecutiveFailures = 5;
+        double failureRateThreshold = 0.5;
+        long minRequests = 20;
+        long baseEjectionNanos = TimeUnit.SECONDS.toNanos(30);
+        long maxEjectionNanos = TimeUnit.MINUTES.toNanos(5);
+        int maxEjectionPercent = 10;
+
+        /**
+         * ошибок подряд для исключения, по умолчанию 5
+         */
+        public Settings consecutiveFailures(int consecutiveFailures) {
+            if (consecutiveFailures < 1)
+                throw new IllegalArgumentException("consecutiveFailures must be more then 0");
+            this.consecutiveFailures = consecutiveFailures;
+            return this;
+        }
+
+        /**
+         * доля ошибок за интервал для исключения и минимальное кол-во запросов в интервале,
+         * по умолчанию 0.5 и 20
+         */
+        public Settings failureRate(double failureRateThreshold, long minRequests) {
+            if (!(failureRateThreshold > 0.0 && failureRateThreshold <= 1.0) || minRequests < 1)
+                throw new IllegalArgumentException("failureRateThreshold must be from 0 to 1, minRequests more then 0");
+            this.failureRateThreshold = failureRateThreshold;
+            this.minRequests = minRequests;
+            return this;
+        }
+
+        /**
+         * базовое и максимальное время исключения, по умолчанию 30 секунд и 5 минут
+         */
+        public Settings ejectionTime(long baseEjection, long maxEjection, TimeUnit unit) {
+            if (baseEjection <= 0 || maxEjection < baseEjection)
+                throw new IllegalArgumentException("baseEjection must be more then 0 and not more then maxEjection");
+            this.baseEjectionNanos = unit.toNanos(baseEjection);
+            this.maxEjectionNanos = unit.toNanos(maxEjection);
+            return this;
+        }
+
+        /**
+         * максимальный процент исключенных серверов, по умолчанию 10
+         * (при проценте больше 0 хотя бы один сервер можно исключить, 0 - исключение выключено)
+         */
+        public Settings maxEjectionPercent(int maxEjectionPercent) {
+            if (maxEjectionPercent < 0 || maxEjectionPercent > 100)
+                throw new IllegalArgumentException("maxEjectionPercent must be from 0 to 100");
+            this.maxEjectionPercent = maxEjectionPercent;
+            return this;
+        }
+
+        Settings copy() {
+            Settings copy = new Settings();
+            copy.consecutiveFailures = consecutiveFailures;
+            copy.failureRateThreshold = failureRateThreshold;
+            copy.minRequests = minRequests;
+            copy.baseEjectionNanos = baseEjectionNanos;
+            copy.maxEjectionNanos = maxEjectionNanos;
+            copy.maxEjectionPercent = maxEjectionPercent;
+            return copy;
+        }
+    }
+}
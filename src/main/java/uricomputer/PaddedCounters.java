@@ -0,0 +1,44 @@
+package uricomputer;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Счетчики по индексу сервера, каждый в своей кэш-линии (без false sharing между соседними серверами)
+ */
+final class PaddedCounters {
+    private static final int STRIDE = 16; // 16 * 8 байт = 128, две кэш-линии с учетом adjacent line prefetch
+
+    private final AtomicLongArray values;
+
+    PaddedCounters(int size) {
+        values = new AtomicLongArray((size + 1) * STRIDE);
+    }
+
+    long get(int index) {
+        return values.get(offset(index));
+    }
+
+    long increment(int index) {
+        return values.incrementAndGet(offset(index));
+    }
+
+    long decrement(int index) {
+        return values.decrementAndGet(offset(index));
+    }
+
+    long add(int index, long delta) {
+        return values.addAndGet(offset(index), delta);
+    }
+
+    void set(int index, long value) {
+        values.set(offset(index), value);
+    }
+
+    boolean compareAndSet(int index, long expect, long update) {
+        return values.compareAndSet(offset(index), expect, update);
+    }
+
+    private static int offset(int index) {
+        return (index + 1) * STRIDE; // первый счетчик тоже отделен от заголовка массива
+    }
+}
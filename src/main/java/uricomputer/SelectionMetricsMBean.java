@@ -0,0 +1,25 @@
+package uricomputer;
+
+/**
+ * Метрики InstrumentedUriComputer для JMX, регистрируется через InstrumentedUriComputer.registerMBean
+ */
+public interface SelectionMetricsMBean {
+
+    long getTotalPicks();
+
+    /**
+     * @return наибольшее отклонение наблюдаемой доли сервера от заданной весом
+     */
+    double getMaxShareDeviation();
+
+    long getSelectionLatencyP50Nanos();
+
+    long getSelectionLatencyP99Nanos();
+
+    /**
+     * @return по строке на сервер: адрес, заданная и наблюдаемая доля, задержка ответов
+     */
+    String[] getServers();
+
+    void reset();
+}
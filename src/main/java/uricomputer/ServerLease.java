@@ -0,0 +1,88 @@
+package uricomputer;
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import uricomputer.UriComputer.ServerDetails;
+
+/**
+ * Выбранный сервер вместе с учетом запроса в нем: пока lease не освобожден, запрос считается выполняющимся
+ * Освобождается один раз: complete() - успешный ответ, fail() - ошибка,
+ * close() (для try-with-resources) - как complete(), если lease еще не освобожден
+ * <pre>
+ * ServerLease lease = uriComputer.acquire();
+ * try {
+ *     send(lease.getAddress());
+ *     lease.complete();
+ * } catch (IOException e) {
+ *     lease.fail();
+ * }
+ * </pre>
+ */
+public final class ServerLease implements AutoCloseable {
+    private static final AtomicIntegerFieldUpdater<ServerLease> RELEASED =
+            AtomicIntegerFieldUpdater.newUpdater(ServerLease.class, "released");
+
+    private final ServerDetails serverDetails;
+    private final int index;
+    private final long startNanos;
+    private final Owner owner;
+    private volatile int released;
+
+    ServerLease(ServerDetails serverDetails, int index, Owner owner) {
+        this.serverDetails = serverDetails;
+        this.index = index;
+        this.owner = owner;
+        this.startNanos = System.nanoTime();
+    }
+
+    public ServerDetails getServerDetails() {
+        return serverDetails;
+    }
+
+    public URI getAddress() {
+        return serverDetails.address;
+    }
+
+    /**
+     * @return время от выдачи lease
+     */
+    public long elapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * запрос завершился успешно
+     */
+    public void complete() {
+        release(true);
+    }
+
+    /**
+     * запрос завершился ошибкой
+     */
+    public void fail() {
+        release(false);
+    }
+
+    public void close() {
+        release(true);
+    }
+
+    private void release(boolean success) {
+        if (RELEASED.compareAndSet(this, 0, 1))
+            owner.onRelease(index, elapsedNanos(), success);
+    }
+
+    /**
+     * UriComputer, который ведет учет выполняющихся запросов
+     */
+    interface Owner {
+        /**
+         * @param index        индекс сервера у владельца
+         * @param latencyNanos время выполнения запроса
+         * @param success      успешен ли запрос
+         */
+        void onRelease(int index, long latencyNanos, boolean success);
+    }
+}
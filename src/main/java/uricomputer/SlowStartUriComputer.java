@@ -0,0 +1,230 @@
+package uricomputer;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Плавный ввод (slow start) серверов, добавленных через update(): эффективный вес нового сервера растет
+ * от weight * minWeightFactor до weight за slowStartNanos по кривой (t / slowStartNanos)^(1 / aggression):
+ * aggression 1 - линейно, больше 1 - быстрый рост в начале и медленный в конце.
+ * Сервера из первого списка считаются прогретыми.
+ * Таблица выбора строится фабрикой по эффективным весам в refresh() (вручную или по таймеру через scheduleRefresh)
+ * и публикуется volatile записью, выбор остается таким же, как у реализации из фабрики
+ */
+public class SlowStartUriComputer implements UpdatableUriComputer {
+    static final double DEFAULT_MIN_WEIGHT_FACTOR = 0.1;
+    static final double DEFAULT_AGGRESSION = 1.0;
+
+    private final Function<List<ServerDetails>, ? extends UriComputer> factory;
+    private final long slowStartNanos;
+    private final double minWeightFactor;
+    private final double aggression;
+    private final Map<URI, Long> addedAtNanos = new HashMap<>();
+    private volatile Table table;
+
+    public static void main(String[] args) throws URISyntaxException {
+        URI server3Uri = new URI("0.0.0.3");
+        List<ServerDetails> serverDetails = asList(
+                new ServerDetails(new Weight(1.0), new URI("0.0.0.1"))
+                , new ServerDetails(new Weight(1.0), new URI("0.0.0.2"))
+        );
+        SlowStartUriComputer slowStart = new SlowStartUriComputer(serverDetails, WeightedRoundRobinAlias::new,
+                60, TimeUnit.SECONDS, 0.1, 2.0);
+        List<ServerDetails> withServer3 = new ArrayList<>(serverDetails);
+        withServer3.add(new ServerDetails(new Weight(1.0), server3Uri));
+        long now = System.nanoTime();
+        slowStart.update(withServer3, now);
+        for (int seconds = 0; seconds <= 60; seconds += 10) {
+            slowStart.refresh(now + TimeUnit.SECONDS.toNanos(seconds));
+            System.out.println(seconds + "s server3 weight " + slowStart.getEffectiveWeight(server3Uri));
+        }
+    }
+
+    public ServerDetails getNextServer() {
+        return table.original(table.sampler.getNextServer());
+    }
+
+    public URI getNextServerUri() {
+        return getNextServer().address;
+    }
+
+    @Override
+    public int getNextServers(ServerDetails[] out, int n) {
+        Table table = this.table;
+        int filled = table.sampler.getNextServers(out, n);
+        if (table.originals != null) {
+            for (int i = 0; i < filled; i++) {
+                out[i] = table.original(out[i]);
+            }
+        }
+        return filled;
+    }
+
+    /**
+     * эффективный список в том же порядке, что и заданный, поэтому индексы таблицы выбора не пересчитываются
+     */
+    @Override
+    public int getNextServerIndexes(int[] out, int n) {
+        return table.sampler.getNextServerIndexes(out, n);
+    }
+
+    @Override
+    public List<ServerDetails> getNextServers(int k) {
+        Table table = this.table;
+        List<ServerDetails> sample = table.sampler.getNextServers(k);
+        if (table.originals != null)
+            sample.replaceAll(table::original);
+        return sample;
+    }
+
+    public SlowStartUriComputer(List<ServerDetails> serverDetailsList,
+                                Function<List<ServerDetails>, ? extends UriComputer> factory,
+                                long slowStart, TimeUnit unit) {
+        this(serverDetailsList, factory, slowStart, unit, DEFAULT_MIN_WEIGHT_FACTOR, DEFAULT_AGGRESSION);
+    }
+
+    /**
+     * @param factory         строит таблицу выбора по эффективным весам, например WeightedRoundRobinAlias::new
+     * @param slowStart       длительность разгона нового сервера
+     * @param minWeightFactor доля веса в начале разгона, от 0 до 1
+     * @param aggression      1 - линейный рост, больше 1 - быстрее в начале
+     */
+    public SlowStartUriComputer(List<ServerDetails> serverDetailsList,
+                                Function<List<ServerDetails>, ? extends UriComputer> factory,
+                                long slowStart, TimeUnit unit, double minWeightFactor, double aggression) {
+        if (slowStart <= 0)
+            throw new IllegalArgumentException("slowStart must be more then 0");
+        if (!(minWeightFactor > 0.0 && minWeightFactor <= 1.0))
+            throw new IllegalArgumentException("minWeightFactor must be from 0 to 1");
+        if (!(aggression > 0.0) || Double.isInfinite(aggression))
+            throw new IllegalArgumentException("aggression must be more then 0");
+        this.factory = factory;
+        this.slowStartNanos = unit.toNanos(slowStart);
+        this.minWeightFactor = minWeightFactor;
+        this.aggression = aggression;
+        this.table = publish(Collections.unmodifiableList(new ArrayList<>(serverDetailsList)), System.nanoTime());
+    }
+
+    /**
+     * заменяет список серверов; сервера, которых не было в предыдущем списке, начинают разгон
+     */
+    public void update(List<ServerDetails> serverDetailsList) {
+        update(serverDetailsList, System.nanoTime());
+    }
+
+    synchronized void update(List<ServerDetails> serverDetailsList, long nowNanos) {
+        Set<URI> previous = new HashSet<>();
+        for (ServerDetails serverDetails : table.serverDetailsList) {
+            previous.add(serverDetails.address);
+        }
+        Set<URI> current = new HashSet<>();
+        for (ServerDetails serverDetails : serverDetailsList) {
+            current.add(serverDetails.address);
+            if (!previous.contains(serverDetails.address))
+                addedAtNanos.put(serverDetails.address, nowNanos);
+        }
+        addedAtNanos.keySet().retainAll(current);
+        table = publish(Collections.unmodifiableList(new ArrayList<>(serverDetailsList)), nowNanos);
+    }
+
+    public List<ServerDetails> getServerDetailsList() {
+        return table.serverDetailsList;
+    }
+
+    /**
+     * @return текущий эффективный вес сервера, NaN если сервера нет
+     */
+    public double getEffectiveWeight(URI address) {
+        for (ServerDetails serverDetails : table.effective) {
+            if (serverDetails.address.equals(address))
+                return serverDetails.weight.value;
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * пересчитывает эффективные веса разгоняющихся серверов; если таких нет, ничего не делает
+     */
+    public void refresh() {
+        refresh(System.nanoTime());
+    }
+
+    synchronized void refresh(long nowNanos) {
+        if (!addedAtNanos.isEmpty())
+            table = publish(table.serverDetailsList, nowNanos);
+    }
+
+    /**
+     * вызывает refresh() с заданным периодом, например slowStart / 20
+     * @return задача, отмена которой останавливает пересчет
+     */
+    public ScheduledFuture<?> scheduleRefresh(ScheduledExecutorService executor, long period, TimeUnit unit) {
+        return executor.scheduleAtFixedRate(this::refresh, period, period, unit);
+    }
+
+    /**
+     * разгоняющиеся сервера заменяются копиями с эффективным весом, остальные остаются теми же объектами
+     */
+    private Table publish(List<ServerDetails> serverDetailsList, long nowNanos) {
+        List<ServerDetails> effective = new ArrayList<>(serverDetailsList.size());
+        Map<ServerDetails, ServerDetails> originals = new IdentityHashMap<>();
+        for (ServerDetails serverDetails : serverDetailsList) {
+            Long addedAt = addedAtNanos.get(serverDetails.address);
+            long elapsed = addedAt == null ? slowStartNanos : nowNanos - addedAt;
+            if (elapsed >= slowStartNanos) {
+                addedAtNanos.remove(serverDetails.address);
+                effective.add(serverDetails);
+                continue;
+            }
+            double factor = Math.max(minWeightFactor,
+                    Math.pow(Math.max(0, elapsed) / (double) slowStartNanos, 1.0 / aggression));
+            ServerDetails ramping = new ServerDetails(new Weight(serverDetails.weight.value * factor),
+                    serverDetails.address, serverDetails.zone, serverDetails.region);
+            originals.put(ramping, serverDetails);
+            effective.add(ramping);
+        }
+        return new Table(serverDetailsList, effective, factory.apply(effective), originals.isEmpty() ? null : originals);
+    }
+
+    /**
+     * заданный и эффективный списки и таблица выбора публикуются вместе
+     */
+    private static final class Table {
+        final List<ServerDetails> serverDetailsList;
+        final List<ServerDetails> effective;
+        final UriComputer sampler;
+        final Map<ServerDetails, ServerDetails> originals; // null если никто не разгоняется
+
+        Table(List<ServerDetails> serverDetailsList, List<ServerDetails> effective, UriComputer sampler,
+              Map<ServerDetails, ServerDetails> originals) {
+            this.serverDetailsList = serverDetailsList;
+            this.effective = effective;
+            this.sampler = sampler;
+            this.originals = originals;
+        }
+
+        /**
+         * исходный сервер вместо копии с эффективным весом
+         */
+        ServerDetails original(ServerDetails serverDetails) {
+            if (originals == null)
+                return serverDetails;
+            ServerDetails original = originals.get(serverDetails);
+            return original == null ? serverDetails : original;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package uricomputer;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Делает любую реализацию UriComputer обновляемой (RCU):
+ * на update фабрика строит новый экземпляр поверх копии списка, затем он публикуется в volatile поле.
+ * Читатели делают одно volatile чтение на выбор и никогда не ждут писателя
+ */
+public class SwappableUriComputer implements UpdatableUriComputer {
+    private final Function<List<ServerDetails>, ? extends UriComputer> factory;
+    private volatile Table table;
+
+    /**
+     * @param serverDetailsList начальный список серверов
+     * @param factory           строит реализацию по списку, например WeightedRoundRobinAlias::new
+     */
+    public SwappableUriComputer(List<ServerDetails> serverDetailsList,
+                                Function<List<ServerDetails>, ? extends UriComputer> factory) {
+        this.factory = factory;
+        this.table = initTable(serverDetailsList);
+    }
+
+    public ServerDetails getNextServer() {
+        return table.uriComputer.getNextServer();
+    }
+
+    public URI getNextServerUri() {
+        return getNextServer().address;
+    }
+
+    /**
+     * весь пакет выбирается из одной таблицы
+     */
+    @Override
+    public int getNextServers(ServerDetails[] out, int n) {
+        return table.uriComputer.getNextServers(out, n);
+    }
+
+    /**
+     * индексы в списке той же таблицы, см. getServerDetailsList()
+     */
+    @Override
+    public int getNextServerIndexes(int[] out, int n) {
+        return table.uriComputer.getNextServerIndexes(out, n);
+    }
+
+    @Override
+    public List<ServerDetails> getNextServers(int k) {
+        return table.uriComputer.getNextServers(k);
+    }
+
+    /**
+     * строит новую таблицу вне горячего пути и публикует ее
+     * писатели сериализуются между собой, чтобы более старый список не перезаписал более новый
+     */
+    public synchronized void update(List<ServerDetails> serverDetailsList) {
+        table = initTable(serverDetailsList);
+    }
+
+    public List<ServerDetails> getServerDetailsList() {
+        return table.serverDetailsList;
+    }
+
+    private Table initTable(List<ServerDetails> serverDetailsList) {
+        List<ServerDetails> snapshot = Collections.unmodifiableList(new ArrayList<>(serverDetailsList));
+        return new Table(snapshot, factory.apply(snapshot));
+    }
+
+    /**
+     * список и построенный по нему UriComputer публикуются вместе
+     */
+    private static final class Table {
+        final List<ServerDetails> serverDetailsList;
+        final UriComputer uriComputer;
+
+        Table(List<ServerDetails> serverDetailsList, UriComputer uriComputer) {
+            this.serverDetailsList = serverDetailsList;
+            this.uriComputer = uriComputer;
+        }
+    }
+}
@@ -0,0 +1,600 @@
+package uricomputer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import uricomputer.UriComputer.ServerDetails;
+import uricomputer.UriComputer.Weight;
+
+/**
+ * TCP прокси (L4): принимает соединение, выбирает сервер через UriComputer.getNextServer()
+ * и пересылает байты в обе стороны до закрытия; если connect не удался, выбирается другой сервер,
+ * всего не больше connectAttempts попыток на соединение.
+ * Имена серверов разрешаются отдельным потоком и кэшируются на resolveTtl: устаревший адрес используется,
+ * пока разрешается заново, а соединение к еще не разрешенному имени ждет адреса без блокировки потока.
+ * acceptorThreads потоков принимают соединения и раздают их по кругу workerThreads потокам,
+ * у каждого потока свой Selector и свой пул direct ByteBuffer (без блокировок, пул ограничен).
+ * Данные идут socket - direct buffer - socket без копирования в heap;
+ * splice между сокетами в NIO недоступен (transferTo работает только из FileChannel).
+ * Запуск: TcpProxy listenPort host:port[=weight] ...
+ */
+public class TcpProxy implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(TcpProxy.class.getName());
+    static final long SELECT_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final UriComputer uriComputer;
+    private final Settings settings;
+    private final ServerSocketChannel serverChannel;
+    private final Thread[] acceptors;
+    private final Worker[] workers;
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    private final ExecutorService resolver;
+    private final ConcurrentHashMap<URI, Resolved> resolved = new ConcurrentHashMap<>();
+    private final Set<URI> refreshing = ConcurrentHashMap.newKeySet();
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("usage: TcpProxy listenPort host:port[=weight] ...");
+            return;
+        }
+        List<ServerDetails> serverDetails = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            String[] addressAndWeight = args[i].split("=");
+            double weight = addressAndWeight.length > 1 ? Double.parseDouble(addressAndWeight[1]) : 1.0;
+            serverDetails.add(new ServerDetails(new Weight(weight), URI.create("tcp://" + addressAndWeight[0])));
+        }
+        TcpProxy tcpProxy = new TcpProxy(new InetSocketAddress(Integer.parseInt(args[0])),
+                new WeightedRoundRobinAlias(serverDetails), new Settings());
+        System.out.println("listening " + tcpProxy.getLocalAddress() + ", servers " + serverDetails.size());
+    }
+
+    /**
+     * открывает порт и запускает потоки
+     */
+    public TcpProxy(InetSocketAddress listenAddress, UriComputer uriComputer, Settings settings) throws IOException {
+        this.uriComputer = uriComputer;
+        this.settings = settings.copy();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(listenAddress, this.settings.backlog);
+        resolver = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "tcp-proxy-resolver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        workers = new Worker[this.settings.workerThreads];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i);
+        }
+        acceptors = new Thread[this.settings.acceptorThreads];
+        for (int i = 0; i < acceptors.length; i++) {
+            acceptors[i] = new Thread(this::accept, "tcp-proxy-acceptor-" + i);
+            acceptors[i].start();
+        }
+    }
+
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    /**
+     * закрывает порт и все соединения
+     */
+    public void close() throws IOException {
+        running = false;
+        serverChannel.close();
+        for (Worker worker : workers) {
+            worker.selector.wakeup();
+        }
+        try {
+            for (Thread acceptor : acceptors) {
+                acceptor.join();
+            }
+            for (Worker worker : workers) {
+                worker.thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        resolver.shutdownNow();
+    }
+
+    /**
+     * блокирующий accept, ServerSocketChannel.accept потокобезопасен
+     */
+    private void accept() {
+        while (running) {
+            SocketChannel client;
+            try {
+                client = serverChannel.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                continue; // ошибка одного соединения (например, сброшено до accept) не останавливает прием
+            }
+            try {
+                client.configureBlocking(false);
+                client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Worker worker = workers[(nextWorker.getAndIncrement() & Integer.MAX_VALUE) % workers.length];
+                worker.accepted.add(client);
+                worker.selector.wakeup();
+            } catch (IOException e) {
+                closeQuietly(client);
+            }
+        }
+    }
+
+    /**
+     * @return адрес из кэша, устаревший разрешается заново в фоне; null - имя еще не разрешалось
+     */
+    private InetSocketAddress cachedAddress(URI address) {
+        Resolved cached = resolved.get(address);
+        if (cached == null)
+            return null;
+        if (System.nanoTime() - cached.expiresNanos >= 0 && refreshing.add(address)) {
+            resolver.execute(() -> {
+                try {
+                    resolve(address);
+                } finally {
+                    refreshing.remove(address);
+                }
+            });
+        }
+        return cached.address;
+    }
+
+    /**
+     * разрешает имя в потоке resolver, если в кэше нет свежего адреса; callback вызывается всегда
+     * и получает null, если имя не разрешилось, - тогда соединение переходит к другому серверу
+     */
+    private void resolveAsync(URI address, Consumer<InetSocketAddress> callback) {
+        resolver.execute(() -> {
+            InetSocketAddress socketAddress;
+            try {
+                Resolved cached = resolved.get(address);
+                socketAddress = cached != null && System.nanoTime() - cached.expiresNanos < 0 ? cached.address : resolve(address);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "failed to resolve " + address, e);
+                socketAddress = null;
+            }
+            callback.accept(socketAddress);
+        });
+    }
+
+    /**
+     * блокирующее разрешение, только в потоке resolver; при неудаче в кэше остается прошлый адрес.
+     * Порт без указания в URI - как у ActiveHealthChecker: 443 для https, иначе 80
+     */
+    private InetSocketAddress resolve(URI address) {
+        if (address.getHost() == null) {
+            LOGGER.warning("no host in " + address);
+            return null;
+        }
+        InetSocketAddress socketAddress = new InetSocketAddress(address.getHost(), ActiveHealthChecker.port(address));
+        if (socketAddress.isUnresolved()) {
+            LOGGER.fine("no resolved host in " + address);
+            return null;
+        }
+        resolved.put(address, new Resolved(socketAddress, System.nanoTime() + settings.resolveTtlNanos));
+        return socketAddress;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // соединение уже не нужно
+        }
+    }
+
+    /**
+     * поток с собственным Selector: все соединения потока обрабатываются только им
+     */
+    private final class Worker {
+        final Selector selector;
+        final Thread thread;
+        final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // из потока resolver
+        final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<>();
+
+        Worker(int number) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this::run, "tcp-proxy-worker-" + number);
+            thread.start();
+        }
+
+        /**
+         * ошибка select или одного соединения не останавливает поток: acceptors продолжают отдавать ему клиентов
+         */
+        void run() {
+            try {
+                while (running) {
+                    try {
+                        selector.select();
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "tcp proxy select failed", e);
+                        LockSupport.parkNanos(SELECT_RETRY_NANOS);
+                        continue;
+                    }
+                    for (SocketChannel client; (client = accepted.poll()) != null; ) {
+                        open(client);
+                    }
+                    for (Runnable task; (task = tasks.poll()) != null; ) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Endpoint endpoint = (Endpoint) key.attachment();
+                        try {
+                            endpoint.onReady(key);
+                        } catch (IOException e) {
+                            endpoint.connection.close();
+                        } catch (RuntimeException e) {
+                            LOGGER.log(Level.WARNING, "tcp proxy connection failed", e);
+                            endpoint.connection.close();
+                        }
+                    }
+                }
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() != null)
+                        ((Endpoint) key.attachment()).connection.close();
+                    else
+                        closeQuietly((SocketChannel) key.channel()); // ждет адреса сервера
+                }
+                for (SocketChannel client; (client = accepted.poll()) != null; ) {
+                    closeQuietly(client);
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                    // поток завершается
+                }
+            }
+        }
+
+        /**
+         * регистрирует клиента без интереса к событиям, пока нет соединения с сервером
+         */
+        void open(SocketChannel client) {
+            try {
+                connect(client.register(selector, 0, null), 1);
+            } catch (IOException | RuntimeException e) {
+                closeQuietly(client);
+            }
+        }
+
+        /**
+         * выбирает сервер и начинает неблокирующее соединение с ним; адрес берется из кэша или разрешается в фоне
+         */
+        void connect(SelectionKey clientKey, int attempt) {
+            SocketChannel client = (SocketChannel) clientKey.channel();
+            if (!running || !clientKey.isValid())
+                return;
+            if (attempt > settings.connectAttempts) {
+                closeQuietly(client);
+                return;
+            }
+            try {
+                ServerDetails server = uriComputer.getNextServer();
+                InetSocketAddress address = cachedAddress(server.address);
+                if (address != null) {
+                    connect(clientKey, attempt, address);
+                    return;
+                }
+                resolveAsync(server.address, resolvedAddress -> {
+                    tasks.add(() -> {
+                        if (resolvedAddress != null)
+                            connect(clientKey, attempt, resolvedAddress);
+                        else
+                            connect(clientKey, attempt + 1);
+                    });
+                    selector.wakeup();
+                });
+            } catch (RuntimeException e) { // в том числе нет серверов
+                closeQuietly(client);
+            }
+        }
+
+        private void connect(SelectionKey clientKey, int attempt, InetSocketAddress address) {
+            if (!running || !clientKey.isValid())
+                return;
+            SocketChannel backend = null;
+            try {
+                backend = SocketChannel.open();
+                backend.configureBlocking(false);
+                backend.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                boolean connected = backend.connect(address);
+                Connection connection = new Connection(this, (SocketChannel) clientKey.channel(), backend, attempt);
+                connection.client.key = clientKey;
+                clientKey.attach(connection.client);
+                connection.backend.key = backend.register(selector, connected ? 0 : SelectionKey.OP_CONNECT, connection.backend);
+                if (connected)
+                    connection.updateInterest();
+            } catch (IOException | RuntimeException e) {
+                if (backend != null)
+                    closeQuietly(backend);
+                connect(clientKey, attempt + 1);
+            }
+        }
+
+        ByteBuffer borrow() {
+            ByteBuffer buffer = bufferPool.pollFirst();
+            return buffer != null ? buffer : ByteBuffer.allocateDirect(settings.bufferSize);
+        }
+
+        void release(ByteBuffer buffer) {
+            buffer.clear();
+            if (bufferPool.size() < settings.maxPooledBuffers)
+                bufferPool.addFirst(buffer);
+        }
+    }
+
+    /**
+     * пара сокетов и два направления пересылки
+     */
+    private static final class Connection {
+        final Worker worker;
+        final Endpoint client;
+        final Endpoint backend;
+        final Pipe upstream;   // client -> backend
+        final Pipe downstream; // backend -> client
+        final int attempt;
+        boolean closed;
+
+        Connection(Worker worker, SocketChannel clientChannel, SocketChannel backendChannel, int attempt) {
+            this.worker = worker;
+            this.attempt = attempt;
+            client = new Endpoint(this, clientChannel);
+            backend = new Endpoint(this, backendChannel);
+            upstream = new Pipe(client, backend, worker.borrow());
+            downstream = new Pipe(backend, client, worker.borrow());
+            client.in = upstream;
+            client.out = downstream;
+            backend.in = downstream;
+            backend.out = upstream;
+        }
+
+        void updateInterest() {
+            if (upstream.done && downstream.done) {
+                close();
+                return;
+            }
+            client.updateInterest();
+            backend.updateInterest();
+        }
+
+        void close() {
+            if (closed)
+                return;
+            closed = true;
+            closeQuietly(client.channel);
+            closeQuietly(backend.channel);
+            worker.release(upstream.buffer);
+            worker.release(downstream.buffer);
+        }
+
+        /**
+         * сервер не принял соединение: до connect клиент не читался, поэтому клиент переходит к другому серверу
+         */
+        void connectFailed() {
+            closed = true;
+            closeQuietly(backend.channel);
+            worker.release(upstream.buffer);
+            worker.release(downstream.buffer);
+            client.key.attach(null);
+            worker.connect(client.key, attempt + 1);
+        }
+    }
+
+    /**
+     * один сокет соединения: из него читает in, в него пишет out
+     */
+    private static final class Endpoint {
+        final Connection connection;
+        final SocketChannel channel;
+        SelectionKey key;
+        Pipe in;
+        Pipe out;
+
+        Endpoint(Connection connection, SocketChannel channel) {
+            this.connection = connection;
+            this.channel = channel;
+        }
+
+        void onReady(SelectionKey key) throws IOException {
+            if (!key.isValid())
+                return;
+            if (key.isConnectable()) {
+                try {
+                    channel.finishConnect();
+                } catch (IOException e) {
+                    connection.connectFailed();
+                    return;
+                }
+            } else {
+                if (key.isWritable())
+                    out.flush();
+                if (key.isReadable())
+                    in.read();
+            }
+            connection.updateInterest();
+        }
+
+        void updateInterest() {
+            if (!key.isValid())
+                return;
+            int ops = (in.canRead() ? SelectionKey.OP_READ : 0) | (out.hasPending() ? SelectionKey.OP_WRITE : 0);
+            if (key.interestOps() != ops)
+                key.interestOps(ops);
+        }
+    }
+
+    /**
+     * одно направление: буфер всегда в режиме записи, position - кол-во непереданных байт
+     */
+    private static final class Pipe {
+        final Endpoint source;
+        final Endpoint sink;
+        final ByteBuffer buffer;
+        boolean eof;
+        boolean done;
+
+        Pipe(Endpoint source, Endpoint sink, ByteBuffer buffer) {
+            this.source = source;
+            this.sink = sink;
+            this.buffer = buffer;
+        }
+
+        boolean canRead() {
+            return !eof && buffer.hasRemaining() && sink.channel.isConnected();
+        }
+
+        boolean hasPending() {
+            return buffer.position() > 0;
+        }
+
+        /**
+         * читает и сразу пытается отправить, не дожидаясь OP_WRITE
+         */
+        void read() throws IOException {
+            if (source.channel.read(buffer) < 0)
+                eof = true;
+            flush();
+        }
+
+        void flush() throws IOException {
+            if (buffer.position() > 0) {
+                buffer.flip();
+                sink.channel.write(buffer);
+                buffer.compact();
+            }
+            if (eof && buffer.position() == 0 && !done) {
+                done = true;
+                sink.channel.shutdownOutput(); // передает half-close дальше
+            }
+        }
+    }
+
+    /**
+     * разрешенный адрес сервера и момент, после которого имя разрешается заново
+     */
+    private static final class Resolved {
+        final InetSocketAddress address;
+        final long expiresNanos;
+
+        Resolved(InetSocketAddress address, long expiresNanos) {
+            this.address = address;
+            this.expiresNanos = expiresNanos;
+        }
+    }
+
+    /**
+     * параметры прокси
+     */
+    public static final class Settings {
+        int acceptorThreads = 1;
+        int workerThreads = Runtime.getRuntime().availableProcessors();
+        int bufferSize = 64 * 1024;
+        int maxPooledBuffers = 1024;
+        int backlog = 1024;
+        int connectAttempts = 3;
+        long resolveTtlNanos = TimeUnit.SECONDS.toNanos(30);
+
+        /**
+         * потоки accept, по умолчанию 1
+         */
+        public Settings acceptorThreads(int acceptorThreads) {
+            if (acceptorThreads < 1)
+                throw new IllegalArgumentException("acceptorThreads must be more then 0");
+            this.acceptorThreads = acceptorThreads;
+            return this;
+        }
+
+        /**
+         * потоки пересылки, по умолчанию кол-во процессоров
+         */
+        public Settings workerThreads(int workerThreads) {
+            if (workerThreads < 1)
+                throw new IllegalArgumentException("workerThreads must be more then 0");
+            this.workerThreads = workerThreads;
+            return this;
+        }
+
+        /**
+         * размер буфера одного направления и кол-во свободных буферов, которое хранит каждый поток,
+         * по умолчанию 64 Кб и 1024
+         */
+        public Settings buffers(int bufferSize, int maxPooledBuffers) {
+            if (bufferSize < 1 || maxPooledBuffers < 0)
+                throw new IllegalArgumentException("bufferSize must be more then 0, maxPooledBuffers not less then 0");
+            this.bufferSize = bufferSize;
+            this.maxPooledBuffers = maxPooledBuffers;
+            return this;
+        }
+
+        public Settings backlog(int backlog) {
+            this.backlog = backlog;
+            return this;
+        }
+
+        /**
+         * кол-во серверов, с которыми пробуется соединиться, пока connect не удастся, по умолчанию 3
+         */
+        public Settings connectAttempts(int connectAttempts) {
+            if (connectAttempts < 1)
+                throw new IllegalArgumentException("connectAttempts must be more then 0");
+            this.connectAttempts = connectAttempts;
+            return this;
+        }
+
+        /**
+         * сколько адрес сервера используется без повторного разрешения имени, по умолчанию 30 секунд
+         */
+        public Settings resolveTtl(long ttl, TimeUnit unit) {
+            if (ttl <= 0)
+                throw new IllegalArgumentException("ttl must be more then 0");
+            this.resolveTtlNanos = unit.toNanos(ttl);
+            return this;
+        }
+
+        Settings copy() {
+            Settings copy = new Settings();
+            copy.acceptorThreads = acceptorThreads;
+            copy.workerThreads = workerThreads;
+            copy.bufferSize = bufferSize;
+            copy.maxPooledBuffers = maxPooledBuffers;
+            copy.backlog = backlog;
+            copy.connectAttempts = connectAttempts;
+            copy.resolveTtlNanos = resolveTtlNanos;
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package uricomputer;
+
+import java.util.List;
+
+/**
+ * UriComputer, у которого можно заменить список серверов и веса без пересоздания экземпляра
+ * Новая таблица выбора строится в потоке, вызвавшем update, и публикуется одной volatile записью:
+ * потоки, вызывающие getNextServer, не блокируются и видят либо старую, либо новую таблицу целиком
+ */
+public interface UpdatableUriComputer extends UriComputer {
+
+    /**
+     * @param serverDetailsList новый список серверов, копируется
+     */
+    void update(List<ServerDetails> serverDetailsList);
+
+    /**
+     * @return текущий (опубликованный) список серверов, неизменяемый
+     */
+    List<ServerDetails> getServerDetailsList();
+}
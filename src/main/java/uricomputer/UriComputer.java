@@ -2,21 +2,83 @@ package uricomputer;
 
 
 import java.net.URI;
+import java.util.List;
 
 import static java.util.Objects.hash;
-
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Выбирает сервер согласно весам
+ * Реализации потокобезопасны: один экземпляр можно вызывать из любого кол-ва потоков
+ * без внешней синхронизации. Случайные числа берутся из ThreadLocalRandom.current()
+ * в момент вызова, генератор не сохраняется в поле (иначе все потоки делят генератор создавшего потока)
+ */
 public interface UriComputer {
 
     URI getNextServerUri();
     ServerDetails getNextServer();
 
+    /**
+     * заполняет out[0..n) выбранными серверами (с повторениями), как n вызовов getNextServer(),
+     * но без повторения накладных расходов на каждый вызов
+     * @return кол-во заполненных элементов (n)
+     */
+    default int getNextServers(ServerDetails[] out, int n) {
+        Batch.check(out.length, n);
+        for (int i = 0; i < n; i++) {
+            out[i] = getNextServer();
+        }
+        return n;
+    }
+
+    /**
+     * как getNextServers, но заполняет индексы серверов в порядке списка, переданного в конструктор;
+     * у UpdatableUriComputer - в порядке getServerDetailsList(): если update() может идти параллельно,
+     * индексы относятся к списку, который getServerDetailsList() вернул (тем же объектом) до и после пакета
+     * @return кол-во заполненных элементов (n)
+     * @throws UnsupportedOperationException если реализация не нумерует сервера
+     *                                       (обертка над реализацией без getNextServerIndexes)
+     */
+    default int getNextServerIndexes(int[] out, int n) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " has no stable server indexes");
+    }
+
+    /**
+     * k разных серверов, выбранных согласно весам без возвращения (запись в k реплик, кворум):
+     * каждый следующий сервер выбирается пропорционально весу среди еще не выбранных
+     * @throws IllegalArgumentException      k меньше 1 или больше кол-ва серверов с ненулевым весом
+     * @throws UnsupportedOperationException если реализация не поддерживает выбор без возвращения:
+     *                                       детерминированный WeightedRoundRobinSmooth,
+     *                                       выбор по ключу WeightedMaglev и WeightedConsistentHash
+     */
+    default List<ServerDetails> getNextServers(int k) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support sampling without replacement");
+    }
+
     class ServerDetails {
+        /**
+         * зона и регион не заданы
+         */
+        public static final String UNKNOWN_LOCALITY = "";
+
         final Weight weight;
         final URI address;
+        final String zone;
+        final String region;
 
         public ServerDetails(Weight weight, URI address) {
+            this(weight, address, UNKNOWN_LOCALITY, UNKNOWN_LOCALITY);
+        }
+
+        /**
+         * @param zone   зона (стойка, дата-центр), например "eu-west-1a"
+         * @param region регион, в котором находится зона, например "eu-west-1"
+         */
+        public ServerDetails(Weight weight, URI address, String zone, String region) {
             this.weight = weight;
             this.address = address;
+            this.zone = requireNonNull(zone, "zone");
+            this.region = requireNonNull(region, "region");
         }
 
         public Weight getWeight() {
@@ -27,18 +89,28 @@ public interface UriComputer {
             return address;
         }
 
+        public String getZone() {
+            return zone;
+        }
+
+        public String getRegion() {
+            return region;
+        }
+
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
             if (o == null || getClass() != o.getClass()) return false;
             ServerDetails that = (ServerDetails) o;
             return weight.equals(that.weight) &&
-                    address.equals(that.address);
+                    address.equals(that.address) &&
+                    zone.equals(that.zone) &&
+                    region.equals(that.region);
         }
 
         @Override
         public int hashCode() {
-            return hash(weight, address);
+            return hash(weight, address, zone, region);
         }
     }
 
@@ -0,0 +1,429 @@
+package uricomputer;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import uricomputer.UriComputer.ServerDetails;
+import uricomputer.UriComputer.Weight;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Неблокирующее выполнение запроса поверх UriComputer: сервер выбирается UriComputer, запрос отправляет Transport.
+ * При ошибке или таймауте попытки запрос повторяется на другом сервере (уже опрошенные исключаются из выбора),
+ * всего не больше maxAttempts попыток. С hedging, если ответа нет дольше p95 задержки успешных ответов,
+ * параллельно отправляется дополнительный запрос на другой сервер, результатом становится первый успешный ответ.
+ * Таймауты и hedging - через ScheduledExecutorService, потоки на ожидание ответа не блокируются
+ * (если сам Transport неблокирующий; Transport.blocking переносит блокирующий вызов в executor)
+ * @param <Q> запрос
+ * @param <R> ответ
+ */
+public class UriComputerClient<Q, R> implements AutoCloseable {
+    static final int MAX_EXCLUDING_DRAWS = 16;
+    static final int MIN_HEDGE_SAMPLES = 100;
+    static final int HEDGE_DELAY_UPDATE_INTERVAL = 256;
+    static final int LATENCY_WINDOW = 4096;
+
+    private final UriComputer uriComputer;
+    private final Transport<Q, R> transport;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownScheduler;
+    private final int maxAttempts;
+    private final long attemptTimeoutNanos;
+    private final Predicate<Throwable> retryable;
+    private final ResponseListener listener;
+    private final double hedgePercentile; // 0 - без hedging
+    private final long minHedgeDelayNanos;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong successes = new AtomicLong();
+    private volatile long hedgeDelayNanos = Long.MAX_VALUE; // пока замеров меньше MIN_HEDGE_SAMPLES, hedging выключен
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("sun.net.httpserver.nodelay", "true"); // без задержки Нейгла на маленьких ответах
+        HttpServer failing = startServer("failing", 500, 0);
+        HttpServer slow = startServer("slow", 200, 300);
+        HttpServer fast = startServer("fast", 200, 0);
+        List<ServerDetails> serverDetails = asList(
+                new ServerDetails(new Weight(1.0), URI.create("http://127.0.0.1:" + failing.getAddress().getPort()))
+                , new ServerDetails(new Weight(0.05), URI.create("http://127.0.0.1:" + slow.getAddress().getPort()))
+                , new ServerDetails(new Weight(1.0), URI.create("http://127.0.0.1:" + fast.getAddress().getPort()))
+        );
+        ExecutorService ioExecutor = Executors.newCachedThreadPool();
+        try (UriComputerClient<String, String> client = new Builder<String, String>(
+                new WeightedRoundRobinAlias(serverDetails), Transport.blocking(UriComputerClient::httpGet, ioExecutor))
+                .maxAttempts(3)
+                .attemptTimeout(1, TimeUnit.SECONDS)
+                .hedging(95, 10, TimeUnit.MILLISECONDS)
+                .build()) {
+            // failing всегда отвечает 500 и повторяется на другом сервере, slow обгоняется hedging
+            Map<String, Integer> responses = new HashMap<>();
+            long start = System.nanoTime();
+            for (int i = 0; i < 1000; i++) {
+                responses.merge(client.execute("/").get(), 1, Integer::sum);
+            }
+            System.out.println("responses " + responses + ", hedge delay ns " + client.getHedgeDelayNanos()
+                    + "\n Время выполнения" + (System.nanoTime() - start));
+        } finally {
+            ioExecutor.shutdown();
+            failing.stop(0);
+            slow.stop(0);
+            fast.stop(0);
+        }
+    }
+
+    private UriComputerClient(Builder<Q, R> builder) {
+        this.uriComputer = builder.uriComputer;
+        this.transport = builder.transport;
+        this.ownScheduler = builder.scheduler == null;
+        this.scheduler = ownScheduler ? newScheduler() : builder.scheduler;
+        this.maxAttempts = builder.maxAttempts;
+        this.attemptTimeoutNanos = builder.attemptTimeoutNanos;
+        this.retryable = builder.retryable;
+        this.listener = builder.listener;
+        this.hedgePercentile = builder.hedgePercentile;
+        this.minHedgeDelayNanos = builder.minHedgeDelayNanos;
+    }
+
+    /**
+     * выполняет запрос с повторами и hedging
+     * @return ответ первой успешной попытки или ошибка последней попытки
+     */
+    public CompletableFuture<R> execute(Q request) {
+        Call call = new Call(request);
+        // после результата (в том числе отмены вызывающим) оставшиеся попытки отменяются
+        call.result.whenComplete((response, error) -> cancelAttempts(call));
+        startAttempt(call);
+        if (hedgePercentile > 0.0 && maxAttempts > 1) {
+            long delay = Math.max(minHedgeDelayNanos, hedgeDelayNanos);
+            if (delay < attemptTimeoutNanos) {
+                ScheduledFuture<?> hedge = scheduler.schedule(() -> startAttempt(call), delay, TimeUnit.NANOSECONDS);
+                call.result.whenComplete((response, error) -> hedge.cancel(false));
+            }
+        }
+        return call.result;
+    }
+
+    /**
+     * @return текущая задержка hedging, Long.MAX_VALUE пока успешных ответов меньше MIN_HEDGE_SAMPLES
+     */
+    public long getHedgeDelayNanos() {
+        return hedgeDelayNanos;
+    }
+
+    /**
+     * останавливает собственный планировщик (если он не был передан в Builder)
+     */
+    public void close() {
+        if (ownScheduler)
+            scheduler.shutdownNow();
+    }
+
+    /**
+     * @return false если попыток больше не осталось или результат уже есть
+     */
+    private boolean startAttempt(Call call) {
+        URI server;
+        synchronized (call) {
+            if (call.result.isDone() || call.attempts >= maxAttempts)
+                return false;
+            call.attempts++;
+            call.inFlight++;
+            server = pickExcluding(call.tried);
+            call.tried.add(server);
+        }
+        long start = System.nanoTime();
+        CompletableFuture<R> attempt;
+        try {
+            attempt = transport.send(server, call.request);
+        } catch (RuntimeException e) {
+            attempt = new CompletableFuture<>();
+            attempt.completeExceptionally(e);
+        }
+        CompletableFuture<R> attemptFuture = attempt;
+        synchronized (call) {
+            call.attemptFutures.add(attemptFuture);
+        }
+        if (call.result.isDone()) // результат появился, пока попытка отправлялась
+            attemptFuture.cancel(true);
+        ScheduledFuture<?> timeout = scheduler.schedule(() -> attemptFuture.completeExceptionally(
+                new TimeoutException("no response from " + server + " in " + attemptTimeoutNanos + " ns")),
+                attemptTimeoutNanos, TimeUnit.NANOSECONDS);
+        attemptFuture.whenComplete((response, error) -> {
+            timeout.cancel(false);
+            onAttemptDone(call, server, System.nanoTime() - start, response, error);
+        });
+        return true;
+    }
+
+    /**
+     * отмененные попытки (проигравшие hedging, отмена вызывающим) и ошибки после результата в listener не попадают:
+     * сервер не ответил, и его ошибка была бы ложной
+     */
+    private void onAttemptDone(Call call, URI server, long latencyNanos, R response, Throwable error) {
+        if (error == null) {
+            if (listener != null)
+                listener.onResponse(server, latencyNanos, true);
+            recordLatency(latencyNanos);
+            call.result.complete(response);
+            return;
+        }
+        boolean last;
+        synchronized (call) {
+            call.inFlight--;
+            call.lastError = error;
+            last = call.inFlight == 0;
+        }
+        if (call.result.isDone())
+            return;
+        if (listener != null && !(unwrap(error) instanceof CancellationException))
+            listener.onResponse(server, latencyNanos, false);
+        boolean retried = retryable.test(error) && startAttempt(call);
+        if (!retried && last)
+            call.result.completeExceptionally(error);
+    }
+
+    private void cancelAttempts(Call call) {
+        List<CompletableFuture<R>> attempts;
+        synchronized (call) {
+            attempts = new ArrayList<>(call.attemptFutures);
+        }
+        for (CompletableFuture<R> attempt : attempts) {
+            attempt.cancel(true);
+        }
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    /**
+     * выбор с исключением уже опрошенных серверов: не больше MAX_EXCLUDING_DRAWS попыток,
+     * затем допускается повтор (серверов меньше, чем попыток, или остальные с нулевым весом)
+     */
+    private URI pickExcluding(Set<URI> excluded) {
+        URI server = uriComputer.getNextServerUri();
+        for (int draw = 1; draw < MAX_EXCLUDING_DRAWS && excluded.contains(server); draw++) {
+            server = uriComputer.getNextServerUri();
+        }
+        return server;
+    }
+
+    /**
+     * p-перцентиль пересчитывается раз в HEDGE_DELAY_UPDATE_INTERVAL ответов по последним ~LATENCY_WINDOW ответам
+     */
+    private void recordLatency(long latencyNanos) {
+        if (hedgePercentile == 0.0)
+            return;
+        latency.record(latencyNanos);
+        if (successes.incrementAndGet() % HEDGE_DELAY_UPDATE_INTERVAL != 0)
+            return;
+        LatencyHistogram.Snapshot snapshot = latency.snapshot();
+        if (snapshot.getCount() >= MIN_HEDGE_SAMPLES)
+            hedgeDelayNanos = snapshot.getValueAtPercentile(hedgePercentile);
+        if (snapshot.getCount() >= LATENCY_WINDOW)
+            latency.reset();
+    }
+
+    private static ScheduledExecutorService newScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "uri-computer-client-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    private static String httpGet(URI server, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) server.resolve(path).toURL().openConnection();
+        try {
+            if (connection.getResponseCode() / 100 != 2)
+                throw new IOException(server + " responded " + connection.getResponseCode());
+            try (InputStream in = connection.getInputStream()) {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                for (int read; (read = in.read(buffer)) > 0; ) {
+                    body.write(buffer, 0, read);
+                }
+                return new String(body.toByteArray(), StandardCharsets.UTF_8);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static HttpServer startServer(String name, int status, long delayMillis) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = name.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        return server;
+    }
+
+    /**
+     * состояние одного execute(): поля меняются под монитором Call
+     */
+    private final class Call {
+        final Q request;
+        final CompletableFuture<R> result = new CompletableFuture<>();
+        final Set<URI> tried = new HashSet<>();
+        final List<CompletableFuture<R>> attemptFutures = new ArrayList<>(2);
+        int attempts;
+        int inFlight;
+        Throwable lastError;
+
+        Call(Q request) {
+            this.request = request;
+        }
+    }
+
+    /**
+     * отправка запроса на сервер; future завершается ответом или ошибкой.
+     * Future может быть завершен снаружи (таймаут) или отменен (пришел ответ другой попытки)
+     */
+    public interface Transport<Q, R> {
+
+        CompletableFuture<R> send(URI server, Q request);
+
+        /**
+         * адаптер для блокирующего клиента: вызов выполняется в executor
+         */
+        static <Q, R> Transport<Q, R> blocking(BlockingCall<Q, R> call, Executor executor) {
+            return (server, request) -> {
+                CompletableFuture<R> future = new CompletableFuture<>();
+                executor.execute(() -> {
+                    if (future.isDone())
+                        return;
+                    try {
+                        future.complete(call.call(server, request));
+                    } catch (Exception e) {
+                        future.completeExceptionally(e);
+                    }
+                });
+                return future;
+            };
+        }
+    }
+
+    public interface BlockingCall<Q, R> {
+        R call(URI server, Q request) throws Exception;
+    }
+
+    /**
+     * результат каждой попытки, например InstrumentedUriComputer::onResponse
+     */
+    public interface ResponseListener {
+        void onResponse(URI address, long latencyNanos, boolean success);
+    }
+
+    public static final class Builder<Q, R> {
+        private final UriComputer uriComputer;
+        private final Transport<Q, R> transport;
+        private ScheduledExecutorService scheduler;
+        private int maxAttempts = 3;
+        private long attemptTimeoutNanos = TimeUnit.SECONDS.toNanos(10);
+        private Predicate<Throwable> retryable = error -> true;
+        private ResponseListener listener;
+        private double hedgePercentile;
+        private long minHedgeDelayNanos;
+
+        public Builder(UriComputer uriComputer, Transport<Q, R> transport) {
+            this.uriComputer = uriComputer;
+            this.transport = transport;
+        }
+
+        /**
+         * всего попыток, включая первую и hedging, по умолчанию 3
+         */
+        public Builder<Q, R> maxAttempts(int maxAttempts) {
+            if (maxAttempts < 1)
+                throw new IllegalArgumentException("maxAttempts must be more then 0");
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        /**
+         * таймаут одной попытки, по умолчанию 10 секунд
+         */
+        public Builder<Q, R> attemptTimeout(long attemptTimeout, TimeUnit unit) {
+            if (attemptTimeout <= 0)
+                throw new IllegalArgumentException("attemptTimeout must be more then 0");
+            this.attemptTimeoutNanos = unit.toNanos(attemptTimeout);
+            return this;
+        }
+
+        /**
+         * какие ошибки повторять, по умолчанию все
+         */
+        public Builder<Q, R> retryable(Predicate<Throwable> retryable) {
+            this.retryable = retryable;
+            return this;
+        }
+
+        public Builder<Q, R> listener(ResponseListener listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        /**
+         * включает hedging: дополнительная попытка, если ответа нет дольше percentile задержки успешных ответов
+         * @param percentile от 0 до 100, например 95
+         * @param minDelay   нижняя граница задержки
+         */
+        public Builder<Q, R> hedging(double percentile, long minDelay, TimeUnit unit) {
+            if (!(percentile > 0.0 && percentile <= 100.0) || minDelay < 0)
+                throw new IllegalArgumentException("percentile must be from 0 to 100, minDelay not less then 0");
+            this.hedgePercentile = percentile;
+            this.minHedgeDelayNanos = unit.toNanos(minDelay);
+            return this;
+        }
+
+        /**
+         * планировщик таймаутов и hedging; по умолчанию клиент создает свой поток и останавливает его в close()
+         */
+        public Builder<Q, R> scheduler(ScheduledExecutorService scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        public UriComputerClient<Q, R> build() {
+            return new UriComputerClient<>(this);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package uricomputer;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Выбор с предпочтением серверов, у которых в ConnectionPool есть свободное (теплое) соединение:
+ * кандидат выбирается реализацией-делегатом согласно весам; если у него нет свободного соединения,
+ * выбирается второй кандидат, и он побеждает, если у него свободное соединение есть,
+ * а веса кандидатов близки (меньший не меньше (1 - weightTolerance) от большего).
+ * Так новое соединение открывается реже, а сервер с малым весом не забирает трафик только за счет теплого соединения
+ */
+public class WarmConnectionUriComputer implements UriComputer {
+    static final double DEFAULT_WEIGHT_TOLERANCE = 0.25;
+
+    private final UriComputer delegate;
+    private final ConnectionPool<?> connectionPool;
+    private final double minWeightRatio;
+
+    public static void main(String[] args) throws URISyntaxException, IOException {
+        URI warmUri = new URI("0.0.0.1");
+        URI coldUri = new URI("0.0.0.2");
+        URI lightUri = new URI("0.0.0.3");
+        ConnectionPool<URI> connectionPool = new ConnectionPool<>(new ConnectionPool.Connector<URI>() {
+            public URI open(URI address) {
+                return address;
+            }
+
+            public void close(URI connection) {
+            }
+        });
+        List<ServerDetails> serverDetails = asList(
+                new ServerDetails(new Weight(1.0), warmUri)
+                , new ServerDetails(new Weight(1.0), coldUri)
+                , new ServerDetails(new Weight(0.2), lightUri)
+        );
+        WarmConnectionUriComputer warmConnection = new WarmConnectionUriComputer(
+                new WeightedRoundRobinAlias(serverDetails), connectionPool);
+        connectionPool.borrow(warmUri).release();
+
+        int warmCount = 0;
+        int commonCount = 0;
+        for (; commonCount < 1_000_000; commonCount++) {
+            if (warmConnection.getNextServerUri().equals(warmUri))
+                warmCount++;
+        }
+        System.out.println("warm share " + (double) warmCount / commonCount + " (by weight 0.45)");
+
+        connectionPool.borrow(lightUri).release();
+        int lightCount = 0;
+        for (commonCount = 0; commonCount < 1_000_000; commonCount++) {
+            if (warmConnection.getNextServerUri().equals(lightUri))
+                lightCount++;
+        }
+        System.out.println("warm light share " + (double) lightCount / commonCount + " (by weight 0.09)");
+    }
+
+    public ServerDetails getNextServer() {
+        ServerDetails first = delegate.getNextServer();
+        if (connectionPool.hasIdle(first.address))
+            return first;
+        ServerDetails second = delegate.getNextServer();
+        if (second != first && connectionPool.hasIdle(second.address) && isClose(first.weight.value, second.weight.value))
+            return second;
+        return first;
+    }
+
+    public URI getNextServerUri() {
+        return getNextServer().address;
+    }
+
+    /**
+     * индексы делегата без предпочтения теплых соединений: по индексу не узнать адрес сервера,
+     * а список делегата обертке не передается
+     */
+    @Override
+    public int getNextServerIndexes(int[] out, int n) {
+        return delegate.getNextServerIndexes(out, n);
+    }
+
+    /**
+     * k разных серверов делегата: запрос уходит на все, поэтому теплые соединения на выбор не влияют
+     */
+    @Override
+    public List<ServerDetails> getNextServers(int k) {
+        return delegate.getNextServers(k);
+    }
+
+    public WarmConnectionUriComputer(UriComputer delegate, ConnectionPool<?> connectionPool) {
+        this(delegate, connectionPool, DEFAULT_WEIGHT_TOLERANCE);
+    }
+
+    /**
+     * @param delegate        выбор кандидатов согласно весам
+     * @param connectionPool  пул, по которому проверяются свободные соединения
+     * @param weightTolerance относительная разница весов (от 0 до 1), при которой веса считаются близкими
+     */
+    public WarmConnectionUriComputer(UriComputer delegate, ConnectionPool<?> connectionPool, double weightTolerance) {
+        if (!(weightTolerance >= 0.0 && weightTolerance <= 1.0))
+            throw new IllegalArgumentException("weightTolerance must be from 0 to 1");
+        this.delegate = delegate;
+        this.connectionPool = connectionPool;
+        this.minWeightRatio = 1.0 - weightTolerance;
+    }
+
+    private boolean isClose(double first, double second) {
+        return Math.min(first, second) >= Math.max(first, second) * minWeightRatio;
+    }
+}
@@ -0,0 +1,259 @@
+package uricomputer;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Взвешенное консистентное хэширование: кольцо виртуальных узлов, кол-во узлов сервера = weight * virtualNodesPerWeight.
+ * Узлы сервера зависят только от его адреса и веса, поэтому при добавлении или удалении сервера
+ * переезжают только ключи этого сервера.
+ * Кольцо хранится как отсортированный long[] хэшей и int[] индексов серверов, поиск - бинарный, O(log(n)).
+ * Режим bounded load (loadFactor > 1): запросы учитываются через acquire(key) / ServerLease,
+ * и если у сервера выполняется больше loadFactor * (его доля по весу) от всех запросов,
+ * ключ переходит к следующему по кольцу серверу.
+ * getNextServers(k) не поддерживается (UnsupportedOperationException): сервер определяется ключом,
+ * реплики ключа - следующие по кольцу сервера, а не случайная выборка
+ */
+public class WeightedConsistentHash implements KeyedUriComputer {
+    static final int DEFAULT_VIRTUAL_NODES = 100;
+    static final int MAX_RING_SIZE = 1 << 24;
+
+    private final ServerDetails[] servers;
+    private final long[] ringHashes;
+    private final int[] ringServers;
+    private final double[] shares;
+    private final double loadFactor;
+    private final PaddedCounters inFlight;
+    private final AtomicLong totalInFlight = new AtomicLong();
+    private final ServerLease.Owner leaseOwner = (index, latencyNanos, success) -> releaseIndex(index);
+
+    public static void main(String[] args) throws URISyntaxException {
+        List<ServerDetails> serverDetails = asList(
+                new ServerDetails(new Weight(1.0), new URI("0.0.0.1"))
+                , new ServerDetails(new Weight(2.0), new URI("0.0.0.2"))
+                , new ServerDetails(new Weight(3.0), new URI("0.0.0.3"))
+        );
+        WeightedConsistentHash consistentHash = new WeightedConsistentHash(serverDetails);
+        WeightedConsistentHash withoutServer3 = new WeightedConsistentHash(serverDetails.subList(0, 2));
+
+        int[] serverCount = new int[serverDetails.size()];
+        int moved = 0;
+        int commonCount = 0;
+        for (; commonCount < 1_000_000; commonCount++) {
+            String key = "session-" + commonCount;
+            ServerDetails server = consistentHash.getNextServer(key);
+            serverCount[serverDetails.indexOf(server)]++;
+            if (server != serverDetails.get(2) && server != withoutServer3.getNextServer(key))
+                moved++;
+        }
+        System.out.println("All " + commonCount
+                + "\n server1 " + (double) serverCount[0] / (double) commonCount
+                + "\n server2 " + (double) serverCount[1] / (double) commonCount
+                + "\n server3 " + (double) serverCount[2] / (double) commonCount
+                + "\n moved without server3 " + moved);
+    }
+
+    /**
+     * случайный ключ
+     */
+    public ServerDetails getNextServer() {
+        return getNextServer(ThreadLocalRandom.current().nextLong());
+    }
+
+    public URI getNextServerUri() {
+        return getNextServer().address;
+    }
+
+    /**
+     * случайные ключи
+     */
+    @Override
+    public int getNextServers(ServerDetails[] out, int n) {
+        Batch.check(out.length, n);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < n; i++) {
+            out[i] = servers[indexFor(Hashing.mix64(random.nextLong()))];
+        }
+        return n;
+    }
+
+    @Override
+    public int getNextServerIndexes(int[] out, int n) {
+        Batch.check(out.length, n);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < n; i++) {
+            out[i] = indexFor(Hashing.mix64(random.nextLong()));
+        }
+        return n;
+    }
+
+    public ServerDetails getNextServer(long key) {
+        return servers[indexFor(Hashing.mix64(key))];
+    }
+
+    public ServerDetails getNextServer(CharSequence key) {
+        return servers[indexFor(Hashing.hash(key))];
+    }
+
+    /**
+     * масштаб по среднему весу: у сервера со средним весом около DEFAULT_VIRTUAL_NODES узлов,
+     * всего около DEFAULT_VIRTUAL_NODES * (кол-во серверов) узлов при любом порядке весов.
+     * Масштаб округлен до степени двойки, поэтому пока средний вес меняется меньше чем в ~1.4 раза,
+     * узлы остальных серверов не меняются и переезжают только ключи добавленного или удаленного сервера
+     */
+    public WeightedConsistentHash(List<ServerDetails> serverDetailsList) {
+        this(serverDetailsList, defaultVirtualNodesPerWeight(serverDetailsList), 0.0);
+    }
+
+    /**
+     * DEFAULT_VIRTUAL_NODES / (средний ненулевой вес), округленный до ближайшей степени двойки
+     */
+    static double defaultVirtualNodesPerWeight(List<ServerDetails> serverDetailsList) {
+        double sum = 0.0;
+        int count = 0;
+        for (ServerDetails serverDetails : serverDetailsList) {
+            if (serverDetails.weight.value != null && serverDetails.weight.value > 0.0) {
+                sum += serverDetails.weight.value;
+                count++;
+            }
+        }
+        if (count == 0 || Double.isInfinite(sum))
+            return DEFAULT_VIRTUAL_NODES;
+        double exponent = Math.rint(Math.log(DEFAULT_VIRTUAL_NODES * count / sum) / Math.log(2.0));
+        return Math.scalb(1.0, (int) Math.max(Double.MIN_EXPONENT, Math.min(Double.MAX_EXPONENT, exponent)));
+    }
+
+    /**
+     * virtualNodesPerWeight, при котором у сервера со средним весом virtualNodes узлов, - для весов далеких от 1.
+     * Значение зависит от списка: его нужно посчитать один раз и передавать то же при изменении списка,
+     * иначе меняются узлы всех серверов и ключи переезжают по всему кольцу
+     */
+    public static double virtualNodesPerWeight(List<ServerDetails> serverDetailsList, int virtualNodes) {
+        if (virtualNodes < 1)
+            throw new IllegalArgumentException("virtualNodes must be more then 0");
+        return virtualNodes / meanWeight(serverDetailsList);
+    }
+
+    /**
+     * @param virtualNodesPerWeight кол-во виртуальных узлов на единицу веса (у сервера с ненулевым весом хотя бы один)
+     * @param loadFactor            0 - без ограничения нагрузки, иначе больше 1, например 1.25
+     */
+    public WeightedConsistentHash(List<ServerDetails> serverDetailsList, double virtualNodesPerWeight, double loadFactor) {
+        if (serverDetailsList.isEmpty())
+            throw new IllegalArgumentException("serverDetailsList must not be empty");
+        if (!(virtualNodesPerWeight > 0.0) || Double.isInfinite(virtualNodesPerWeight))
+            throw new IllegalArgumentException("virtualNodesPerWeight must be more then 0");
+        if (loadFactor != 0.0 && !(loadFactor > 1.0))
+            throw new IllegalArgumentException("loadFactor must be 0 or more then 1");
+        this.loadFactor = loadFactor;
+        servers = serverDetailsList.toArray(new ServerDetails[0]);
+        inFlight = new PaddedCounters(servers.length);
+        shares = new double[servers.length];
+        double sumOfWeights = 0.0;
+        for (ServerDetails serverDetails : servers) {
+            Weights.checkWeight(serverDetails.weight);
+            sumOfWeights += serverDetails.weight.value;
+        }
+        if (!(sumOfWeights > 0.0))
+            throw new IllegalArgumentException("sum Of All weights must be more then 0");
+
+        int[] nodesPerServer = new int[servers.length];
+        long ringSize = 0;
+        for (int i = 0; i < servers.length; i++) {
+            shares[i] = servers[i].weight.value / sumOfWeights;
+            nodesPerServer[i] = servers[i].weight.value == 0.0
+                    ? 0
+                    : (int) Math.min(Integer.MAX_VALUE, Math.max(1, Math.round(servers[i].weight.value * virtualNodesPerWeight)));
+            ringSize += nodesPerServer[i];
+        }
+        if (ringSize > MAX_RING_SIZE)
+            throw new IllegalArgumentException("ring size " + ringSize + " is more then " + MAX_RING_SIZE
+                    + ", reduce virtualNodesPerWeight");
+        ringHashes = new long[(int) ringSize];
+        ringServers = new int[(int) ringSize];
+        initRing(nodesPerServer);
+    }
+
+    /**
+     * выбирает сервер по ключу с учетом нагрузки и учитывает в нем запрос до освобождения lease
+     */
+    public ServerLease acquire(long key) {
+        return acquireIndex(indexFor(Hashing.mix64(key)));
+    }
+
+    public ServerLease acquire(CharSequence key) {
+        return acquireIndex(indexFor(Hashing.hash(key)));
+    }
+
+    private ServerLease acquireIndex(int index) {
+        inFlight.increment(index);
+        totalInFlight.incrementAndGet();
+        return new ServerLease(servers[index], index, leaseOwner);
+    }
+
+    private void releaseIndex(int index) {
+        inFlight.decrement(index);
+        totalInFlight.decrementAndGet();
+    }
+
+    /**
+     * первый узел кольца с хэшем не меньше hash; в режиме bounded load - первый из них с запасом по нагрузке
+     */
+    private int indexFor(long hash) {
+        int position = Arrays.binarySearch(ringHashes, hash);
+        if (position < 0)
+            position = -position - 1;
+        if (position == ringHashes.length)
+            position = 0;
+        if (loadFactor == 0.0)
+            return ringServers[position];
+
+        double total = totalInFlight.get() + 1;
+        for (int step = 0; step < ringHashes.length; step++) {
+            int index = ringServers[position];
+            if (inFlight.get(index) + 1 <= Math.ceil(loadFactor * total * shares[index]))
+                return index;
+            if (++position == ringHashes.length)
+                position = 0;
+        }
+        return ringServers[position]; // все перегружены (гонка счетчиков): исходный узел
+    }
+
+    private static double meanWeight(List<ServerDetails> serverDetailsList) {
+        double sum = 0.0;
+        for (ServerDetails serverDetails : serverDetailsList) {
+            sum += serverDetails.weight.value;
+        }
+        return sum > 0.0 ? sum / serverDetailsList.size() : 1.0;
+    }
+
+    /**
+     * хэш j-го виртуального узла сервера зависит только от адреса и j:
+     * добавление или удаление сервера не двигает узлы остальных
+     */
+    private void initRing(int[] nodesPerServer) {
+        long[] hashes = new long[ringHashes.length];
+        Integer[] order = new Integer[ringHashes.length];
+        int[] owners = new int[ringHashes.length];
+        int node = 0;
+        for (int i = 0; i < servers.length; i++) {
+            long serverHash = Hashing.hash(servers[i].address.toString());
+            for (int j = 0; j < nodesPerServer[i]; j++, node++) {
+                hashes[node] = Hashing.mix64(serverHash + j * Hashing.GOLDEN_GAMMA);
+                owners[node] = i;
+                order[node] = node;
+            }
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(hashes[a], hashes[b]));
+        for (int i = 0; i < order.length; i++) {
+            ringHashes[i] = hashes[order[i]];
+            ringServers[i] = owners[order[i]];
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package uricomputer;
+
+import java.math.BigInteger;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Взвешенное консистентное хэширование Maglev: таблица int[] фиксированного простого размера
+ * с индексами серверов, выбор по ключу - один хэш и одно чтение из массива, O(1).
+ * Таблица заполняется по перестановкам серверов (offset, skip от хэша адреса);
+ * за круг сервер занимает weight / maxWeight ячеек (с накоплением остатка), поэтому доля ячеек пропорциональна весу.
+ * При изменении одного сервера у остальных меняется малая часть ячеек (minimal disruption).
+ * update() строит новую таблицу и публикует ее одной volatile записью, конкурентные update() сериализуются.
+ * getNextServers(k) не поддерживается (UnsupportedOperationException): сервер определяется ключом,
+ * для реплик ключа нужен обход таблицы от ключа, а не случайная выборка
+ */
+public class WeightedMaglev implements KeyedUriComputer, UpdatableUriComputer {
+    static final int DEFAULT_TABLE_SIZE = 65537;
+
+    private final int tableSize;
+    private volatile Table table;
+
+    public static void main(String[] args) throws URISyntaxException {
+        List<ServerDetails> serverDetails = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) {
+            serverDetails.add(new ServerDetails(new Weight((double) i), new URI("0.0.0." + i)));
+        }
+        WeightedMaglev weightedMaglev = new WeightedMaglev(serverDetails);
+        int[] before = weightedMaglev.table.lookup.clone();
+
+        List<ServerDetails> withoutServer10 = new ArrayList<>(serverDetails.subList(0, 9));
+        weightedMaglev.update(withoutServer10);
+        int[] after = weightedMaglev.table.lookup;
+
+        int moved = 0;
+        for (int i = 0; i < before.length; i++) {
+            if (before[i] != 9 && before[i] != after[i])
+                moved++;
+        }
+        System.out.println("entries " + before.length + ", moved between remaining servers " + moved);
+    }
+
+    /**
+     * случайный ключ
+     */
+    public ServerDetails getNextServer() {
+        return getNextServer(ThreadLocalRandom.current().nextLong());
+    }
+
+    public URI getNextServerUri() {
+        return getNextServer().address;
+    }
+
+    /**
+     * случайные ключи, весь пакет выбирается из одной таблицы
+     */
+    @Override
+    public int getNextServers(ServerDetails[] out, int n) {
+        Batch.check(out.length, n);
+        Table table = this.table;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < n; i++) {
+            out[i] = table.servers[table.indexFor(random.nextLong())];
+        }
+        return n;
+    }
+
+    /**
+     * индексы в списке последнего update()
+     */
+    @Override
+    public int getNextServerIndexes(int[] out, int n) {
+        Batch.check(out.length, n);
+        Table table = this.table;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < n; i++) {
+            out[i] = table.indexFor(random.nextLong());
+        }
+        return n;
+    }
+
+    public ServerDetails getNextServer(long key) {
+        return table.serverFor(Hashing.mix64(key));
+    }
+
+    public ServerDetails getNextServer(CharSequence key) {
+        return table.serverFor(Hashing.hash(key));
+    }
+
+    public WeightedMaglev(List<ServerDetails> serverDetailsList) {
+        this(serverDetailsList, DEFAULT_TABLE_SIZE);
+    }
+
+    /**
+     * @param tableSize простое число, желательно больше 100 * кол-во серверов
+     */
+    public WeightedMaglev(List<ServerDetails> serverDetailsList, int tableSize) {
+        if (tableSize < 2 || !BigInteger.valueOf(tableSize).isProbablePrime(32))
+            throw new IllegalArgumentException("tableSize must be prime");
+        this.tableSize = tableSize;
+        update(serverDetailsList);
+    }
+
+    /**
+     * строит новую таблицу вне горячего пути и публикует ее
+     * писатели сериализуются между собой, чтобы более старый список не перезаписал более новый
+     */
+    public synchronized void update(List<ServerDetails> serverDetailsList) {
+        if (serverDetailsList.isEmpty())
+            throw new IllegalArgumentException("serverDetailsList must not be empty");
+        if (serverDetailsList.size() > tableSize)
+            throw new IllegalArgumentException("tableSize must be not less then servers count");
+        ServerDetails[] servers = serverDetailsList.toArray(new ServerDetails[0]);
+        table = new Table(Collections.unmodifiableList(asList(servers.clone())), servers, populate(servers, tableSize));
+    }
+
+    public List<ServerDetails> getServerDetailsList() {
+        return table.serverDetailsList;
+    }
+
+    /**
+     * заполнение таблицы: сервера по кругу занимают следующую свободную ячейку своей перестановки
+     * (offset + j * skip) mod tableSize; сервер с весом w за круг получает w / maxWeight попыток
+     */
+    private static int[] populate(ServerDetails[] servers, int tableSize) {
+        int n = servers.length;
+        long[] offsets = new long[n];
+        long[] skips = new long[n];
+        long[] nexts = new long[n];
+        double[] steps = new double[n];
+        double[] credits = new double[n];
+        double maxWeight = 0.0;
+        for (ServerDetails serverDetails : servers) {
+            Weights.checkWeight(serverDetails.weight);
+            maxWeight = Math.max(maxWeight, serverDetails.weight.value);
+        }
+        if (!(maxWeight > 0.0))
+            throw new IllegalArgumentException("sum Of All weights must be more then 0");
+        for (int i = 0; i < n; i++) {
+            long hash = Hashing.hash(servers[i].address.toString());
+            offsets[i] = Math.floorMod(hash, (long) tableSize);
+            skips[i] = Math.floorMod(Hashing.mix64(hash ^ Hashing.GOLDEN_GAMMA), (long) tableSize - 1) + 1;
+            steps[i] = servers[i].weight.value / maxWeight;
+        }
+
+        int[] lookup = new int[tableSize];
+        Arrays.fill(lookup, -1);
+        int filled = 0;
+        while (true) {
+            for (int i = 0; i < n; i++) {
+                credits[i] += steps[i];
+                while (credits[i] >= 1.0) {
+                    credits[i] -= 1.0;
+                    int slot = (int) ((offsets[i] + nexts[i] * skips[i]) % tableSize);
+                    while (lookup[slot] >= 0) {
+                        nexts[i]++;
+                        slot = (int) ((offsets[i] + nexts[i] * skips[i]) % tableSize);
+                    }
+                    lookup[slot] = i;
+                    nexts[i]++;
+                    if (++filled == tableSize)
+                        return lookup;
+                }
+            }
+        }
+    }
+
+    /**
+     * список, сервера и таблица публикуются вместе
+     */
+    private static final class Table {
+        final List<ServerDetails> serverDetailsList;
+        final ServerDetails[] servers;
+        final int[] lookup;
+
+        Table(List<ServerDetails> serverDetailsList, ServerDetails[] servers, int[] lookup) {
+            this.serverDetailsList = serverDetailsList;
+            this.servers = servers;
+            this.lookup = lookup;
+        }
+
+        /**
+         * ячейка по старшим 32 битам хэша умножением со сдвигом вместо деления
+         */
+        ServerDetails serverFor(long hash) {
+            return servers[indexFor(hash)];
+        }
+
+        int indexFor(long hash) {
+            return lookup[(int) (((hash >>> 32) * lookup.length) >>> 32)];
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package uricomputer;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Вычисляет uri согласно весам, скорректированным по наблюдаемой задержке (peak EWMA)
+ * эффективный вес = weight / max(ewma задержки, minLatencyNanos).
+ * EWMA затухает по времени между замерами (постоянная decayNanos), а замер больше текущего значения
+ * принимается сразу (peak): деградация сервера видна с первого медленного ответа, восстановление - плавно.
+ * Обновление EWMA - CAS по примитивному массиву, без блокировок и аллокаций.
+ * Таблица выбора (alias method, O(1)) пересчитывается не на каждый вызов, а в refresh():
+ * вручную или по таймеру через scheduleRefresh
+ */
+public class WeightedPeakEwma implements UriComputer {
+    static final long DEFAULT_DECAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+    static final long DEFAULT_INITIAL_LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final ServerDetails[] servers;
+    private final Map<URI, Integer> indexByAddress;
+    private final PaddedCounters latencyBits; // Double.doubleToRawLongBits(ewma)
+    private final PaddedCounters lastUpdateNanos;
+    private final long decayNanos;
+    private final long minLatencyNanos;
+    private final ServerLease.Owner leaseOwner = (index, latencyNanos, success) -> updateLatency(index, latencyNanos);
+    private volatile WeightedRoundRobinAlias sampler;
+
+    public static void main(String[] args) throws URISyntaxException {
+        URI server1Uri = new URI("0.0.0.1");
+        URI server2Uri = new URI("0.0.0.2");
+        WeightedPeakEwma weightedPeakEwma = new WeightedPeakEwma(asList(
+                new ServerDetails(new Weight(1.0), server1Uri)
+                , new ServerDetails(new Weight(1.0), server2Uri)
+        ));
+
+        // server2 отвечает в 4 раза медленнее
+        for (int i = 0; i < 100; i++) {
+            weightedPeakEwma.onResponse(server1Uri, TimeUnit.MILLISECONDS.toNanos(5));
+            weightedPeakEwma.onResponse(server2Uri, TimeUnit.MILLISECONDS.toNanos(20));
+        }
+        weightedPeakEwma.refresh();
+
+        int server1Count = 0;
+        int commonCount = 0;
+        for (; commonCount < 1_000_000; commonCount++) {
+            if (weightedPeakEwma.getNextServerUri().equals(server1Uri))
+                server1Count++;
+        }
+        System.out.println("All " + commonCount
+                + "\n server1 " + (double) server1Count / (double) commonCount
+                + "\n server2 " + (double) (commonCount - server1Count) / (double) commonCount);
+    }
+
+    public ServerDetails getNextServer() {
+        return servers[sampler.nextServerIndex()];
+    }
+
+    public URI getNextServerUri() {
+        return getNextServer().address;
+    }
+
+    /**
+     * весь пакет выбирается из одной таблицы, индексы alias-таблицы совпадают с индексами servers
+     */
+    @Override
+    public int getNextServers(ServerDetails[] out, int n) {
+        Batch.check(out.length, n);
+        WeightedRoundRobinAlias sampler = this.sampler;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < n; i++) {
+            out[i] = servers[sampler.nextServerIndex(random)];
+        }
+        return n;
+    }
+
+    @Override
+    public int getNextServerIndexes(int[] out, int n) {
+        return sampler.getNextServerIndexes(out, n);
+    }
+
+    /**
+     * k разных серверов последовательно согласно эффективным весам из одной таблицы
+     */
+    @Override
+    public List<ServerDetails> getNextServers(int k) {
+        int[] indexes = sampler.nextDistinctServerIndexes(k);
+        List<ServerDetails> sample = new ArrayList<>(k);
+        for (int index : indexes) {
+            sample.add(servers[index]);
+        }
+        return sample;
+    }
+
+    public WeightedPeakEwma(List<ServerDetails> serverDetailsList) {
+        this(serverDetailsList, DEFAULT_DECAY_NANOS, DEFAULT_INITIAL_LATENCY_NANOS);
+    }
+
+    /**
+     * @param decayNanos            за это время вклад старых замеров уменьшается в e раз
+     * @param initialLatencyNanos   задержка сервера до первого замера, она же нижняя граница EWMA
+     */
+    public WeightedPeakEwma(List<ServerDetails> serverDetailsList, long decayNanos, long initialLatencyNanos) {
+        if (decayNanos <= 0 || initialLatencyNanos <= 0)
+            throw new IllegalArgumentException("decayNanos and initialLatencyNanos must be more then 0");
+        this.decayNanos = decayNanos;
+        this.minLatencyNanos = initialLatencyNanos;
+        servers = serverDetailsList.toArray(new ServerDetails[0]);
+        indexByAddress = new HashMap<>();
+        latencyBits = new PaddedCounters(servers.length);
+        lastUpdateNanos = new PaddedCounters(servers.length);
+        long now = System.nanoTime();
+        for (int i = 0; i < servers.length; i++) {
+            indexByAddress.put(servers[i].address, i);
+            latencyBits.set(i, Double.doubleToRawLongBits(initialLatencyNanos));
+            lastUpdateNanos.set(i, now);
+        }
+        refresh();
+    }
+
+    /**
+     * выбирает сервер, задержка запроса будет учтена при освобождении lease
+     */
+    public ServerLease acquire() {
+        int index = sampler.nextServerIndex();
+        return new ServerLease(servers[index], index, leaseOwner);
+    }
+
+    /**
+     * учитывает задержку ответа сервера; адреса не из списка игнорируются
+     */
+    public void onResponse(URI address, long latencyNanos) {
+        Integer index = indexByAddress.get(address);
+        if (index != null)
+            updateLatency(index, latencyNanos);
+    }
+
+    /**
+     * @return текущая EWMA задержки сервера, NaN если сервера нет
+     */
+    public double getLatencyNanos(URI address) {
+        Integer index = indexByAddress.get(address);
+        return index == null ? Double.NaN : Double.longBitsToDouble(latencyBits.get(index));
+    }
+
+    /**
+     * пересчитывает эффективные веса и публикует новую таблицу выбора, O(n)
+     */
+    public void refresh() {
+        List<ServerDetails> effective = new ArrayList<>(servers.length);
+        for (int i = 0; i < servers.length; i++) {
+            double latency = Math.max(minLatencyNanos, Double.longBitsToDouble(latencyBits.get(i)));
+            effective.add(new ServerDetails(new Weight(servers[i].weight.value * minLatencyNanos / latency),
+                    servers[i].address));
+        }
+        sampler = new WeightedRoundRobinAlias(effective); // порядок совпадает с servers
+    }
+
+    /**
+     * вызывает refresh() с заданным периодом
+     * @return задача, отмена которой останавливает пересчет
+     */
+    public ScheduledFuture<?> scheduleRefresh(ScheduledExecutorService executor, long period, TimeUnit unit) {
+        return executor.scheduleAtFixedRate(this::refresh, period, period, unit);
+    }
+
+    private void updateLatency(int index, long latencyNanos) {
+        long now = System.nanoTime();
+        // отметка времени обновляется отдельно от значения: при гонке затухание посчитается от чуть другого момента
+        long elapsed = Math.max(0, now - lastUpdateNanos.get(index));
+        lastUpdateNanos.set(index, now);
+        double decay = Math.exp(-(double) elapsed / decayNanos);
+        while (true) {
+            long currentBits = latencyBits.get(index);
+            double current = Double.longBitsToDouble(currentBits);
+            double updated = latencyNanos > current
+                    ? latencyNanos
+                    : current * decay + latencyNanos * (1.0 - decay);
+            if (latencyBits.compareAndSet(index, currentBits, Double.doubleToRawLongBits(updated)))
+                return;
+        }
+    }
+}
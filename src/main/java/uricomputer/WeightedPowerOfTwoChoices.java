@@ -0,0 +1,128 @@
+package uricomputer;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Least outstanding requests через power of two choices:
+ * два кандидата выбираются согласно весам (alias method, O(1)),
+ * запрос уходит тому, у кого меньше выполняющихся запросов.
+ * Выполняющиеся запросы учитываются через acquire() / ServerLease,
+ * счетчики разнесены по разным кэш-линиям
+ */
+public class WeightedPowerOfTwoChoices implements UriComputer {
+    private final ServerDetails[] servers;
+    private final WeightedRoundRobinAlias sampler;
+    private final PaddedCounters inFlight;
+    private final ServerLease.Owner leaseOwner = (index, latencyNanos, success) -> releaseIndex(index);
+
+    public static void main(String[] args) throws URISyntaxException {
+        URI slowUri = new URI("0.0.0.1");
+        URI fastUri = new URI("0.0.0.2");
+        WeightedPowerOfTwoChoices powerOfTwoChoices = new WeightedPowerOfTwoChoices(asList(
+                new ServerDetails(new Weight(1.0), slowUri)
+                , new ServerDetails(new Weight(1.0), fastUri)
+        ));
+
+        // медленный сервер не освобождает запросы, быстрый освобождает сразу
+        int slowCount = 0;
+        int commonCount = 0;
+        for (; commonCount < 1_000; commonCount++) {
+            ServerLease lease = powerOfTwoChoices.acquire();
+            if (lease.getAddress().equals(slowUri))
+                slowCount++;
+            else
+                lease.complete();
+        }
+        System.out.println("All " + commonCount
+                + "\n slow " + (double) slowCount / (double) commonCount
+                + "\n in flight slow " + powerOfTwoChoices.getInFlight(slowUri));
+    }
+
+    /**
+     * выбор без учета запроса: сервер не узнает о том, что запрос выполняется
+     */
+    public ServerDetails getNextServer() {
+        return servers[chooseIndex()];
+    }
+
+    public URI getNextServerUri() {
+        return getNextServer().address;
+    }
+
+    /**
+     * без учета запросов, как getNextServer; счетчики сравниваются для каждой пары заново,
+     * поэтому выбор в пакете не учитывает предыдущие элементы пакета
+     */
+    @Override
+    public int getNextServers(ServerDetails[] out, int n) {
+        Batch.check(out.length, n);
+        for (int i = 0; i < n; i++) {
+            out[i] = servers[chooseIndex()];
+        }
+        return n;
+    }
+
+    @Override
+    public int getNextServerIndexes(int[] out, int n) {
+        Batch.check(out.length, n);
+        for (int i = 0; i < n; i++) {
+            out[i] = chooseIndex();
+        }
+        return n;
+    }
+
+    /**
+     * k разных серверов последовательно согласно весам (alias), без сравнения нагрузки и без учета запросов:
+     * сравнение пары для каждого следующего сервера исказило бы порядок выборки без возвращения
+     */
+    @Override
+    public List<ServerDetails> getNextServers(int k) {
+        int[] indexes = sampler.nextDistinctServerIndexes(k);
+        List<ServerDetails> sample = new ArrayList<>(k);
+        for (int index : indexes) {
+            sample.add(servers[index]);
+        }
+        return sample;
+    }
+
+    public WeightedPowerOfTwoChoices(List<ServerDetails> serverDetailsList) {
+        sampler = new WeightedRoundRobinAlias(serverDetailsList);
+        servers = serverDetailsList.toArray(new ServerDetails[0]);
+        inFlight = new PaddedCounters(servers.length);
+    }
+
+    /**
+     * выбирает сервер и учитывает в нем запрос до освобождения lease
+     */
+    public ServerLease acquire() {
+        int index = chooseIndex();
+        inFlight.increment(index);
+        return new ServerLease(servers[index], index, leaseOwner);
+    }
+
+    private void releaseIndex(int index) {
+        inFlight.decrement(index);
+    }
+
+    /**
+     * @return кол-во выполняющихся запросов сервера, 0 если сервера нет
+     */
+    public long getInFlight(URI address) {
+        for (int i = 0; i < servers.length; i++) {
+            if (servers[i].address.equals(address))
+                return inFlight.get(i);
+        }
+        return 0;
+    }
+
+    private int chooseIndex() {
+        int first = sampler.nextServerIndex();
+        int second = sampler.nextServerIndex();
+        return inFlight.get(second) < inFlight.get(first) ? second : first;
+    }
+}
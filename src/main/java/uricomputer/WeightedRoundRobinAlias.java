@@ -0,0 +1,196 @@
+package uricomputer;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Вычисляет uri согласно приориетам весов
+ * Alias method (Walker, построение таблиц по Vose). Сложность выбора O(1):
+ * одно случайное число и два чтения из массива независимо от кол-ва серверов
+ */
+public class WeightedRoundRobinAlias implements UriComputer {
+    private final ServerDetails[] servers;
+    private final double[] prob;
+    private final int[] alias;
+    private final DistinctSampler distinctSampler;
+
+    public static void main(String[] args) throws URISyntaxException {
+        List<ServerDetails> serverDetails = asList(
+                new ServerDetails(new Weight(1.0), new URI("0.0.0.1"))
+                , new ServerDetails(new Weight(2.0), new URI("0.0.0.2"))
+                , new ServerDetails(new Weight(3.0), new URI("0.0.0.3"))
+                , new ServerDetails(new Weight(4.0), new URI("0.0.0.4"))
+                , new ServerDetails(new Weight(5.0), new URI("0.0.0.5"))
+                , new ServerDetails(new Weight(6.0), new URI("0.0.0.6"))
+                , new ServerDetails(new Weight(7.0), new URI("0.0.0.7"))
+                , new ServerDetails(new Weight(8.0), new URI("0.0.0.8"))
+                , new ServerDetails(new Weight(9.0), new URI("0.0.0.9"))
+                , new ServerDetails(new Weight(10.0), new URI("0.0.0.10"))
+        );
+
+        WeightedRoundRobinAlias weightedRoundRobinAlias = new WeightedRoundRobinAlias(serverDetails);
+        int[] serverCount = new int[serverDetails.size()];
+        int commonCount = 0;
+
+        //тест
+        long start = System.nanoTime();
+
+        for (; commonCount < 1_000_000; commonCount++) {
+            serverCount[weightedRoundRobinAlias.nextServerIndex()]++;
+        }
+        StringBuilder report = new StringBuilder("All " + commonCount);
+        for (int i = 0; i < serverCount.length; i++) {
+            report.append("\n server").append(i + 1).append(' ')
+                    .append((double) serverCount[i] / (double) commonCount);
+        }
+        System.out.println(report);
+
+        long finish = System.nanoTime();
+        long timeConsumedMillis = finish - start;
+        System.out.println("Время выполнения" + timeConsumedMillis);
+    }
+
+    public ServerDetails getNextServer() {
+        return servers[nextServerIndex()];
+    }
+
+    public URI getNextServerUri() {
+        return getNextServer().address;
+    }
+
+    /**
+     * поля и генератор читаются один раз на пакет
+     */
+    @Override
+    public int getNextServers(ServerDetails[] out, int n) {
+        Batch.check(out.length, n);
+        ServerDetails[] servers = this.servers;
+        double[] prob = this.prob;
+        int[] alias = this.alias;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < n; i++) {
+            out[i] = servers[nextServerIndex(random, prob, alias)];
+        }
+        return n;
+    }
+
+    @Override
+    public int getNextServerIndexes(int[] out, int n) {
+        Batch.check(out.length, n);
+        double[] prob = this.prob;
+        int[] alias = this.alias;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < n; i++) {
+            out[i] = nextServerIndex(random, prob, alias);
+        }
+        return n;
+    }
+
+    /**
+     * повторные выборы alias, см. DistinctSampler
+     */
+    @Override
+    public List<ServerDetails> getNextServers(int k) {
+        return distinctSampler.sample(k, this::nextServerIndex);
+    }
+
+    /**
+     * getNextServers(k) индексами в порядке списка из конструктора
+     */
+    int[] nextDistinctServerIndexes(int k) {
+        distinctSampler.checkSize(k);
+        int[] indexes = new int[k];
+        distinctSampler.sampleIndexes(k, this::nextServerIndex, null, indexes);
+        return indexes;
+    }
+
+    public WeightedRoundRobinAlias(List<ServerDetails> serverDetailsList) {
+        if (serverDetailsList.isEmpty())
+            throw new IllegalArgumentException("serverDetailsList must not be empty");
+        servers = serverDetailsList.toArray(new ServerDetails[0]);
+        prob = new double[servers.length];
+        alias = new int[servers.length];
+        initAliasTable(servers, prob, alias);
+        distinctSampler = new DistinctSampler(servers);
+    }
+
+    /**
+     * индекс сервера (в порядке списка из конструктора) согласно весам
+     * из одного случайного long: старшие 32 бита - номер колонки, младшие - бросок внутри колонки
+     */
+    int nextServerIndex() {
+        return nextServerIndex(ThreadLocalRandom.current(), prob, alias);
+    }
+
+    /**
+     * для пакетного выбора в обертках: генератор берется один раз на пакет
+     */
+    int nextServerIndex(ThreadLocalRandom random) {
+        return nextServerIndex(random, prob, alias);
+    }
+
+    private static int nextServerIndex(ThreadLocalRandom random, double[] prob, int[] alias) {
+        long randNumb = random.nextLong();
+        int column = (int) (((randNumb >>> 32) * prob.length) >>> 32);
+        double toss = (randNumb & 0xFFFFFFFFL) * 0x1.0p-32;
+        return toss < prob[column] ? column : alias[column];
+    }
+
+    /**
+     * заполняет таблицы prob и alias (алгоритм Vose)
+     * колонка i выбирается с вероятностью 1/n, затем с вероятностью prob[i] остается i, иначе alias[i]
+     * @param servers сервера с весами
+     * @param prob    вероятность остаться в колонке
+     * @param alias   сервер-заместитель колонки
+     */
+    private static void initAliasTable(ServerDetails[] servers, double[] prob, int[] alias) {
+        int n = servers.length;
+        double sumOfWeights = computeSumOfWeights(servers);
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int smallSize = 0;
+        int largeSize = 0;
+
+        for (int i = 0; i < n; i++) {
+            scaled[i] = servers[i].weight.value * n / sumOfWeights;
+            alias[i] = i;
+            if (scaled[i] < 1.0)
+                small[smallSize++] = i;
+            else
+                large[largeSize++] = i;
+        }
+
+        while (smallSize > 0 && largeSize > 0) {
+            int less = small[--smallSize];
+            int more = large[--largeSize];
+            prob[less] = scaled[less];
+            alias[less] = more;
+            scaled[more] = (scaled[more] + scaled[less]) - 1.0;
+            if (scaled[more] < 1.0)
+                small[smallSize++] = more;
+            else
+                large[largeSize++] = more;
+        }
+        // остатки равны 1 с точностью до погрешности double
+        while (largeSize > 0)
+            prob[large[--largeSize]] = 1.0;
+        while (smallSize > 0)
+            prob[small[--smallSize]] = 1.0;
+    }
+
+    private static double computeSumOfWeights(ServerDetails[] servers) {
+        double sum = 0.0;
+        for (ServerDetails serverDetails : servers) {
+            Weights.checkWeight(serverDetails.weight);
+            sum += serverDetails.weight.value;
+        }
+        if (!(sum > 0.0) || Double.isInfinite(sum))
+            throw new IllegalArgumentException("sum Of All weights must be more then 0 and finite");
+        return sum;
+    }
+}
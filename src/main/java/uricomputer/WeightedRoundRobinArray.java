@@ -17,13 +17,14 @@ import static java.util.Arrays.asList;
  * точность округлена до precisionLimit из-за реализации на основе массива
  */
 public class WeightedRoundRobinArray implements UriComputer {
-    private final ThreadLocalRandom random;
     private final List<Weight> weights;
     private final double sumOfWeights;
     private final Weight maxWeight;
     private final List<ServerDetails> serverDetailsList;
+    private final int[] serverIndexes; // индекс сервера в списке из конструктора для каждого элемента serverDetailsList
     private final int weightСoefficient;
     private final int precisionLimit;
+    private final DistinctSampler distinctSampler;
 
     public static void main(String[] args) throws URISyntaxException {
         URI server1Uri = new URI("0.0.0.1");
@@ -49,58 +50,16 @@ public class WeightedRoundRobinArray implements UriComputer {
                 , new ServerDetails(new Weight(10005000.000), server10Uri)
         );
 
-        int commonCount = 0;
-        int server1Count = 0;
-        int server2Count = 0;
-        int server3Count = 0;
-        int server4Count = 0;
-        int server5Count = 0;
-        int server6Count = 0;
-        int server7Count = 0;
-        int server8Count = 0;
-        int server9Count = 0;
-        int server10Count = 0;
-
-        WeightedRoundRobinArray weightedRoundRobin = new WeightedRoundRobinArray(serverDetails, 5);
+        InstrumentedUriComputer weightedRoundRobin = new InstrumentedUriComputer(
+                new WeightedRoundRobinArray(serverDetails, 5), serverDetails);
 
         //тест
         long start = System.nanoTime();
-// поиск смысла жизни ...
-        for (; commonCount < 1_000_000; commonCount++) {
-            ServerDetails nextServer = weightedRoundRobin.getNextServer();
-            if (nextServer.address.equals(server1Uri))
-                server1Count++;
-            if (nextServer.address.equals(server2Uri))
-                server2Count++;
-            if (nextServer.address.equals(server3Uri))
-                server3Count++;
-            if (nextServer.address.equals(server4Uri))
-                server4Count++;
-            if (nextServer.address.equals(server5Uri))
-                server5Count++;
-            if (nextServer.address.equals(server6Uri))
-                server6Count++;
-            if (nextServer.address.equals(server7Uri))
-                server7Count++;
-            if (nextServer.address.equals(server8Uri))
-                server8Count++;
-            if (nextServer.address.equals(server9Uri))
-                server9Count++;
-            if (nextServer.address.equals(server10Uri))
-                server10Count++;
+
+        for (int commonCount = 0; commonCount < 1_000_000; commonCount++) {
+            weightedRoundRobin.getNextServer();
         }
-        System.out.println("All " + commonCount
-                + "\n server1 " + (double) server1Count / (double) commonCount
-                + "\n server2 " + (double) server2Count / (double) commonCount
-                + "\n server3 " + (double) server3Count / (double) commonCount
-                + "\n server4 " + (double) server4Count / (double) commonCount
-                + "\n server5 " + (double) server5Count / (double) commonCount
-                + "\n server6 " + (double) server6Count / (double) commonCount
-                + "\n server7 " + (double) server7Count / (double) commonCount
-                + "\n server8 " + (double) server8Count / (double) commonCount
-                + "\n server9 " + (double) server9Count / (double) commonCount
-                + "\n server10 " + (double) server10Count / (double) commonCount
-        );
+        System.out.println(weightedRoundRobin.snapshot());
 
         long finish = System.nanoTime();
         long timeConsumedMillis = finish - start;
@@ -109,18 +68,50 @@ public class WeightedRoundRobinArray implements UriComputer {
 
     public ServerDetails getNextServer() {
         //1.Рендомное число (равновероятное) где верхнее значение округлено до суммы весов(например 16)
-        int randNumb = random.nextInt(((serverDetailsList.size())));
+        int randNumb = ThreadLocalRandom.current().nextInt(((serverDetailsList.size())));
         return serverDetailsList.get(randNumb);
     }
 
+    @Override
+    public int getNextServers(ServerDetails[] out, int n) {
+        Batch.check(out.length, n);
+        List<ServerDetails> serverDetailsList = this.serverDetailsList;
+        int size = serverDetailsList.size();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < n; i++) {
+            out[i] = serverDetailsList.get(random.nextInt(size));
+        }
+        return n;
+    }
+
+    @Override
+    public int getNextServerIndexes(int[] out, int n) {
+        Batch.check(out.length, n);
+        int[] serverIndexes = this.serverIndexes;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < n; i++) {
+            out[i] = serverIndexes[random.nextInt(serverIndexes.length)];
+        }
+        return n;
+    }
+
+    /**
+     * повторные выборы элементов массива, см. DistinctSampler; веса - кол-во элементов сервера
+     */
+    @Override
+    public List<ServerDetails> getNextServers(int k) {
+        int[] serverIndexes = this.serverIndexes;
+        return distinctSampler.sample(k, random -> serverIndexes[random.nextInt(serverIndexes.length)]);
+    }
+
     public URI getNextServerUri() {
         return getNextServer().address;
     }
 
     public WeightedRoundRobinArray(List<ServerDetails> serverDetailsList, int precisionLimit) {
         this.precisionLimit = precisionLimit;
-        random = ThreadLocalRandom.current(); //для генерации числа в нужно диапазоне
         weights = new ArrayList<>();
+        List<ServerDetails> originals = serverDetailsList;
         serverDetailsList = optimizeValueCount(serverDetailsList);
 
         serverDetailsList.forEach(serverDetails -> {
@@ -130,7 +121,13 @@ public class WeightedRoundRobinArray implements UriComputer {
         maxWeight = weights.get(weights.size() - 1);
         sumOfWeights = computeSumOfWeights(weights);
         weightСoefficient = computeСoefficient(weights, this.precisionLimit);
-        this.serverDetailsList = initList(serverDetailsList);
+        this.serverDetailsList = initList(serverDetailsList, originals);
+        serverIndexes = initIndexes(serverDetailsList);
+        double[] elementWeights = new double[serverDetailsList.size()];
+        for (int index : serverIndexes) {
+            elementWeights[index]++;
+        }
+        distinctSampler = new DistinctSampler(originals.toArray(new ServerDetails[0]), elementWeights);
     }
 
     private double computeSumOfWeights(List<Weight> weights) {
@@ -141,33 +138,51 @@ public class WeightedRoundRobinArray implements UriComputer {
         return sum;
     }
 
-    private List<ServerDetails> initList(List<ServerDetails> serverDetailsListIn) {
+    /**
+     * кол-во повторов - по сокращенным весам, в массив попадают исходные сервера из конструктора
+     */
+    private List<ServerDetails> initList(List<ServerDetails> serverDetailsListIn, List<ServerDetails> originals) {
         List<ServerDetails> serverDetailsOut = new ArrayList<>();
-        int genGcd = 1;
 
         //заполняем массив
-        for (ServerDetails serverDetails : serverDetailsListIn) {
-            int addressValueCount = (int)(serverDetails.weight.value * weightСoefficient);
+        for (int i = 0; i < serverDetailsListIn.size(); i++) {
+            int addressValueCount = (int)(serverDetailsListIn.get(i).weight.value * weightСoefficient);
             for (int j = 0; j < addressValueCount; j++) {
-                serverDetailsOut.add(serverDetails);
+                serverDetailsOut.add(originals.get(i));
             }
         }
         return serverDetailsOut;
     }
 
+    /**
+     * индексы серверов в том же порядке и с тем же кол-вом повторов, что и initList
+     */
+    private int[] initIndexes(List<ServerDetails> serverDetailsListIn) {
+        int[] indexes = new int[serverDetailsList.size()];
+        int position = 0;
+        for (int i = 0; i < serverDetailsListIn.size(); i++) {
+            int addressValueCount = (int)(serverDetailsListIn.get(i).weight.value * weightСoefficient);
+            for (int j = 0; j < addressValueCount; j++) {
+                indexes[position++] = i;
+            }
+        }
+        return indexes;
+    }
+
     /**
      * оптмимизация кол-ва записией (общий множитель весов)
+     * множитель - НОД всех весов; если есть дробный вес, веса не делятся
      * @param serverDetailsListIn
      * @return
      */
     private List<ServerDetails> optimizeValueCount(List<ServerDetails> serverDetailsListIn){
         List<ServerDetails> optimizedServerDetailsList = serverDetailsListIn;
-        int genGcd = 1;
-        for (int i = 0; i < serverDetailsListIn.size() - 2; i++) { // ищем общий множитель
-            int curGcd = gcd(serverDetailsListIn.get(i).weight.value.intValue(),
-                    serverDetailsListIn.get(i + 1).weight.value.intValue());
-            if (curGcd > genGcd)
-                genGcd = curGcd;
+        int genGcd = 0;
+        for (ServerDetails serverDetails : serverDetailsListIn) { // ищем общий множитель
+            double value = serverDetails.weight.value;
+            if (value != Math.rint(value) || value > Integer.MAX_VALUE)
+                return serverDetailsListIn;
+            genGcd = gcd(genGcd, (int) value);
         }
 
         if (genGcd > 1){ // если есть общий множитель
@@ -175,7 +190,7 @@ public class WeightedRoundRobinArray implements UriComputer {
             optimizedServerDetailsList = serverDetailsListIn.stream()
                     .map(serverDetails -> new ServerDetails(
                             new Weight(serverDetails.weight.value / finalGenGcd),
-                            serverDetails.address))
+                            serverDetails.address, serverDetails.zone, serverDetails.region))
                     .collect(Collectors.toList());
         }
         return optimizedServerDetailsList;
@@ -0,0 +1,218 @@
+package uricomputer;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Вычисляет uri согласно приориетам весов
+ * Как WeightedRoundRobinArray, но с ограниченной памятью:
+ * веса сокращаются на НОД всех весов, кол-во ячеек ограничено maxSlots,
+ * в ячейках хранятся индексы серверов (short[] если серверов не больше 65536, иначе int[]).
+ * Если сумма весов больше maxSlots, ячейки распределяются методом наибольших остатков:
+ * доля каждого сервера отличается от заданной не больше чем на 1 / maxSlots
+ */
+public class WeightedRoundRobinCompactArray implements UriComputer {
+    static final int DEFAULT_PRECISION_LIMIT = 3;
+    static final int DEFAULT_MAX_SLOTS = 1 << 20;
+
+    private final ServerDetails[] servers;
+    private final short[] shortSlots; // null если используется intSlots
+    private final int[] intSlots;
+    private final int slotCount;
+    private final double maxShareError;
+    private final DistinctSampler distinctSampler;
+
+    public static void main(String[] args) throws URISyntaxException {
+        List<ServerDetails> serverDetails = asList(
+                new ServerDetails(new Weight(10000500.000), new URI("0.0.0.1"))
+                , new ServerDetails(new Weight(10000000.000), new URI("0.0.0.2"))
+                , new ServerDetails(new Weight(10000500.000), new URI("0.0.0.3"))
+                , new ServerDetails(new Weight(10000000.000), new URI("0.0.0.4"))
+                , new ServerDetails(new Weight(10500000.000), new URI("0.0.0.5"))
+                , new ServerDetails(new Weight(10000000.000), new URI("0.0.0.6"))
+                , new ServerDetails(new Weight(10000000.000), new URI("0.0.0.7"))
+                , new ServerDetails(new Weight(10000000.000), new URI("0.0.0.8"))
+                , new ServerDetails(new Weight(10000000.000), new URI("0.0.0.9"))
+                , new ServerDetails(new Weight(10005000.000), new URI("0.0.0.10"))
+        );
+
+        long start = System.nanoTime();
+        WeightedRoundRobinCompactArray weightedRoundRobin = new WeightedRoundRobinCompactArray(serverDetails, 5, 1 << 16);
+        long finish = System.nanoTime();
+        System.out.println("Slots " + weightedRoundRobin.getSlotCount()
+                + "\n max share error " + weightedRoundRobin.getMaxShareError()
+                + "\n Время построения" + (finish - start));
+    }
+
+    public ServerDetails getNextServer() {
+        int slot = ThreadLocalRandom.current().nextInt(slotCount);
+        return servers[shortSlots != null ? shortSlots[slot] & 0xFFFF : intSlots[slot]];
+    }
+
+    public URI getNextServerUri() {
+        return getNextServer().address;
+    }
+
+    @Override
+    public int getNextServers(ServerDetails[] out, int n) {
+        Batch.check(out.length, n);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        ServerDetails[] servers = this.servers;
+        int slotCount = this.slotCount;
+        short[] shortSlots = this.shortSlots;
+        if (shortSlots != null) {
+            for (int i = 0; i < n; i++) {
+                out[i] = servers[shortSlots[random.nextInt(slotCount)] & 0xFFFF];
+            }
+        } else {
+            int[] intSlots = this.intSlots;
+            for (int i = 0; i < n; i++) {
+                out[i] = servers[intSlots[random.nextInt(slotCount)]];
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public int getNextServerIndexes(int[] out, int n) {
+        Batch.check(out.length, n);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int slotCount = this.slotCount;
+        short[] shortSlots = this.shortSlots;
+        if (shortSlots != null) {
+            for (int i = 0; i < n; i++) {
+                out[i] = shortSlots[random.nextInt(slotCount)] & 0xFFFF;
+            }
+        } else {
+            int[] intSlots = this.intSlots;
+            for (int i = 0; i < n; i++) {
+                out[i] = intSlots[random.nextInt(slotCount)];
+            }
+        }
+        return n;
+    }
+
+    /**
+     * повторные выборы ячеек, см. DistinctSampler; веса - кол-во ячеек сервера
+     */
+    @Override
+    public List<ServerDetails> getNextServers(int k) {
+        return distinctSampler.sample(k, this::nextServerIndex);
+    }
+
+    private int nextServerIndex(ThreadLocalRandom random) {
+        int slot = random.nextInt(slotCount);
+        return shortSlots != null ? shortSlots[slot] & 0xFFFF : intSlots[slot];
+    }
+
+    public WeightedRoundRobinCompactArray(List<ServerDetails> serverDetailsList) {
+        this(serverDetailsList, DEFAULT_PRECISION_LIMIT, DEFAULT_MAX_SLOTS);
+    }
+
+    /**
+     * @param precisionLimit кол-во учитываемых знаков после запятой у весов
+     * @param maxSlots       максимальное кол-во ячеек таблицы
+     */
+    public WeightedRoundRobinCompactArray(List<ServerDetails> serverDetailsList, int precisionLimit, int maxSlots) {
+        if (maxSlots < 1)
+            throw new IllegalArgumentException("maxSlots must be more then 0");
+        servers = serverDetailsList.toArray(new ServerDetails[0]);
+        long[] integerWeights = Weights.toIntegerWeights(serverDetailsList, precisionLimit);
+        long sumOfWeights = Weights.sum(integerWeights);
+        int[] slotsPerServer = sumOfWeights <= maxSlots
+                ? toIntArray(integerWeights)
+                : apportion(integerWeights, sumOfWeights, maxSlots);
+
+        int slots = 0;
+        double error = 0.0;
+        for (int i = 0; i < slotsPerServer.length; i++) {
+            slots += slotsPerServer[i];
+        }
+        for (int i = 0; i < slotsPerServer.length; i++) {
+            error = Math.max(error, Math.abs((double) slotsPerServer[i] / slots - (double) integerWeights[i] / sumOfWeights));
+        }
+        slotCount = slots;
+        maxShareError = error;
+        if (servers.length <= 1 << 16) {
+            shortSlots = new short[slotCount];
+            intSlots = null;
+        } else {
+            shortSlots = null;
+            intSlots = new int[slotCount];
+        }
+        initSlots(slotsPerServer);
+        double[] slotWeights = new double[slotsPerServer.length];
+        for (int i = 0; i < slotsPerServer.length; i++) {
+            slotWeights[i] = slotsPerServer[i];
+        }
+        distinctSampler = new DistinctSampler(servers, slotWeights);
+    }
+
+    /**
+     * @return кол-во ячеек таблицы
+     */
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    /**
+     * @return максимальное отклонение доли сервера в таблице от доли его веса
+     */
+    public double getMaxShareError() {
+        return maxShareError;
+    }
+
+    private void initSlots(int[] slotsPerServer) {
+        int slot = 0;
+        for (int i = 0; i < slotsPerServer.length; i++) {
+            for (int j = 0; j < slotsPerServer[i]; j++, slot++) {
+                if (shortSlots != null)
+                    shortSlots[slot] = (short) i;
+                else
+                    intSlots[slot] = i;
+            }
+        }
+    }
+
+    /**
+     * метод наибольших остатков: каждый сервер получает floor(квоты) ячеек,
+     * оставшиеся ячейки отдаются серверам с наибольшей дробной частью квоты
+     * @return кол-во ячеек для каждого сервера, в сумме не больше maxSlots
+     */
+    private static int[] apportion(long[] integerWeights, long sumOfWeights, int maxSlots) {
+        int[] slotsPerServer = new int[integerWeights.length];
+        double[] remainders = new double[integerWeights.length];
+        int assigned = 0;
+        for (int i = 0; i < integerWeights.length; i++) {
+            double quota = (double) integerWeights[i] * maxSlots / sumOfWeights;
+            slotsPerServer[i] = (int) quota;
+            remainders[i] = quota - slotsPerServer[i];
+            assigned += slotsPerServer[i];
+        }
+        int remaining = maxSlots - assigned;
+        if (remaining > 0) {
+            Integer[] byRemainder = new Integer[integerWeights.length];
+            for (int i = 0; i < byRemainder.length; i++) {
+                byRemainder[i] = i;
+            }
+            Arrays.sort(byRemainder, (a, b) -> Double.compare(remainders[b], remainders[a]));
+            for (int i = 0; i < remaining && i < byRemainder.length; i++) {
+                slotsPerServer[byRemainder[i]]++;
+            }
+        }
+        return slotsPerServer;
+    }
+
+    private static int[] toIntArray(long[] values) {
+        int[] ints = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            ints[i] = (int) values[i];
+        }
+        return ints;
+    }
+}
@@ -0,0 +1,411 @@
+package uricomputer;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.StampedLock;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Вычисляет uri согласно приориетам весов
+ * Веса хранятся в дереве Фенвика (binary indexed tree) на примитивном массиве:
+ * выбор, setWeight, add и remove - O(log(n)), без перестроения всех префиксных сумм
+ * Выбор читает дерево под оптимистичной блокировкой StampedLock и не ждет писателя,
+ * если за время чтения дерево не менялось
+ */
+public class WeightedRoundRobinFenwickTree implements UpdatableUriComputer {
+    private static final int MIN_CAPACITY = 16;
+    private static final int MIN_REBUILD_PERIOD = 1024;
+
+    private final StampedLock lock = new StampedLock();
+    private Map<URI, Integer> indexByAddress;
+    private ServerDetails[] servers;
+    private double[] weights;
+    private double[] tree; // 1-based, tree.length - 1 == servers.length
+    private int size;
+    private double sumOfWeights;
+    private int updatesSinceRebuild;
+    private volatile DistinctSampler distinctSampler; // по текущему списку, null после любого изменения
+
+    public static void main(String[] args) throws URISyntaxException {
+        URI server1Uri = new URI("0.0.0.1");
+        URI server2Uri = new URI("0.0.0.2");
+        URI server3Uri = new URI("0.0.0.3");
+        WeightedRoundRobinFenwickTree weightedRoundRobinFenwickTree = new WeightedRoundRobinFenwickTree(asList(
+                new ServerDetails(new Weight(1.0), server1Uri)
+                , new ServerDetails(new Weight(1.0), server2Uri)
+        ));
+        weightedRoundRobinFenwickTree.setWeight(server1Uri, 3.0);
+        weightedRoundRobinFenwickTree.add(new ServerDetails(new Weight(4.0), server3Uri));
+
+        Map<URI, Integer> serverCount = new HashMap<>();
+        int commonCount = 0;
+        for (; commonCount < 1_000_000; commonCount++) {
+            serverCount.merge(weightedRoundRobinFenwickTree.getNextServerUri(), 1, Integer::sum);
+        }
+        System.out.println("All " + commonCount
+                + "\n server1 " + (double) serverCount.get(server1Uri) / (double) commonCount
+                + "\n server2 " + (double) serverCount.get(server2Uri) / (double) commonCount
+                + "\n server3 " + (double) serverCount.get(server3Uri) / (double) commonCount
+        );
+    }
+
+    public ServerDetails getNextServer() {
+        long stamp = lock.tryOptimisticRead();
+        ServerDetails serverDetails = pick();
+        if (!lock.validate(stamp) || serverDetails == null) {
+            stamp = lock.readLock();
+            try {
+                serverDetails = pick();
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            if (serverDetails == null)
+                throw new IllegalStateException("no servers with weight more then 0");
+        }
+        return serverDetails;
+    }
+
+    public URI getNextServerUri() {
+        return getNextServer().address;
+    }
+
+    /**
+     * весь пакет под одним оптимистичным чтением; при параллельной записи пакет выбирается заново под read lock
+     */
+    @Override
+    public int getNextServers(ServerDetails[] out, int n) {
+        Batch.check(out.length, n);
+        long stamp = lock.tryOptimisticRead();
+        boolean picked = pick(out, n);
+        if (!lock.validate(stamp) || !picked) {
+            stamp = lock.readLock();
+            try {
+                picked = pick(out, n);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            if (!picked)
+                throw new IllegalStateException("no servers with weight more then 0");
+        }
+        return n;
+    }
+
+    /**
+     * индексы в getServerDetailsList(); remove переносит последний сервер на место удаленного,
+     * поэтому при параллельных remove / update индексы пакета могут относиться к другому списку
+     */
+    @Override
+    public int getNextServerIndexes(int[] out, int n) {
+        Batch.check(out.length, n);
+        long stamp = lock.tryOptimisticRead();
+        boolean picked = pickIndexes(out, n);
+        if (!lock.validate(stamp) || !picked) {
+            stamp = lock.readLock();
+            try {
+                picked = pickIndexes(out, n);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            if (!picked)
+                throw new IllegalStateException("no servers with weight more then 0");
+        }
+        return n;
+    }
+
+    /**
+     * повторные спуски по дереву, см. DistinctSampler, под оптимистичным чтением;
+     * DistinctSampler текущего списка строится под read lock при первом вызове после изменения, O(n)
+     */
+    @Override
+    public List<ServerDetails> getNextServers(int k) {
+        long stamp = lock.tryOptimisticRead();
+        List<ServerDetails> sample;
+        try {
+            sample = sample(k);
+        } catch (RuntimeException e) { // несогласованное состояние; настоящая ошибка повторится под read lock
+            sample = null;
+        }
+        if (!lock.validate(stamp) || sample == null) {
+            stamp = lock.readLock();
+            try {
+                if (distinctSampler == null)
+                    distinctSampler = new DistinctSampler(Arrays.copyOf(servers, size));
+                sample = sample(k);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            if (sample == null)
+                throw new IllegalStateException("no servers with weight more then 0");
+        }
+        return sample;
+    }
+
+    public WeightedRoundRobinFenwickTree(List<ServerDetails> serverDetailsList) {
+        init(serverDetailsList);
+    }
+
+    /**
+     * меняет вес сервера, O(log(n))
+     * @throws IllegalArgumentException если сервера нет
+     */
+    public void setWeight(URI address, double weight) {
+        Weight newWeight = new Weight(weight);
+        Weights.checkWeight(newWeight);
+        long stamp = lock.writeLock();
+        try {
+            int index = indexOf(address);
+            double delta = weight - weights[index];
+            addToTree(index, delta);
+            weights[index] = weight;
+            ServerDetails old = servers[index];
+            servers[index] = new ServerDetails(newWeight, address, old.zone, old.region);
+            sumOfWeights += delta;
+            afterUpdate();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * добавляет сервер, O(log(n)) (амортизированно, с учетом роста массивов)
+     * @throws IllegalArgumentException если сервер с таким адресом уже есть
+     */
+    public void add(ServerDetails serverDetails) {
+        Weights.checkWeight(serverDetails.weight);
+        long stamp = lock.writeLock();
+        try {
+            if (indexByAddress.containsKey(serverDetails.address))
+                throw new IllegalArgumentException("server " + serverDetails.address + " is already added");
+            if (size == servers.length)
+                grow();
+            int index = size++;
+            servers[index] = serverDetails;
+            weights[index] = serverDetails.weight.value;
+            indexByAddress.put(serverDetails.address, index);
+            addToTree(index, serverDetails.weight.value);
+            sumOfWeights += serverDetails.weight.value;
+            afterUpdate();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * удаляет сервер, O(log(n)): на его место переносится последний сервер
+     * @return false если сервера не было
+     */
+    public boolean remove(URI address) {
+        long stamp = lock.writeLock();
+        try {
+            Integer index = indexByAddress.remove(address);
+            if (index == null)
+                return false;
+            int last = size - 1;
+            double removedWeight = weights[index];
+            if (index != last) { // последний сервер переезжает на место удаленного
+                double lastWeight = weights[last];
+                addToTree(index, lastWeight - removedWeight);
+                addToTree(last, -lastWeight);
+                servers[index] = servers[last];
+                weights[index] = lastWeight;
+                indexByAddress.put(servers[index].address, index);
+            } else {
+                addToTree(last, -removedWeight);
+            }
+            servers[last] = null;
+            weights[last] = 0.0;
+            size = last;
+            sumOfWeights -= removedWeight;
+            afterUpdate();
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * заменяет весь список, O(n)
+     */
+    public void update(List<ServerDetails> serverDetailsList) {
+        long stamp = lock.writeLock();
+        try {
+            init(serverDetailsList);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public List<ServerDetails> getServerDetailsList() {
+        long stamp = lock.readLock();
+        try {
+            return Collections.unmodifiableList(new ArrayList<>(asList(servers).subList(0, size)));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * выбор без блокировки, поля читаются один раз в локальные переменные
+     * @return null если прочитано несогласованное состояние (параллельная запись) или выбирать не из чего
+     */
+    private ServerDetails pick() {
+        double[] tree = this.tree;
+        ServerDetails[] servers = this.servers;
+        int size = this.size;
+        double sumOfWeights = this.sumOfWeights;
+        if (size == 0 || !(sumOfWeights > 0.0) || size > servers.length || tree.length != servers.length + 1)
+            return null;
+        int index = findIndex(tree, ThreadLocalRandom.current().nextDouble(sumOfWeights));
+        return servers[index < size ? index : size - 1]; // за пределы size выводит только погрешность double
+    }
+
+    /**
+     * пакетный pick(): поля читаются один раз на пакет
+     * @return false если прочитано несогласованное состояние или выбирать не из чего
+     */
+    private boolean pick(ServerDetails[] out, int n) {
+        double[] tree = this.tree;
+        ServerDetails[] servers = this.servers;
+        int size = this.size;
+        double sumOfWeights = this.sumOfWeights;
+        if (size == 0 || !(sumOfWeights > 0.0) || size > servers.length || tree.length != servers.length + 1)
+            return false;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < n; i++) {
+            int index = findIndex(tree, random.nextDouble(sumOfWeights));
+            out[i] = servers[index < size ? index : size - 1];
+        }
+        return true;
+    }
+
+    /**
+     * pick(out, n) для индексов
+     * @return false если прочитано несогласованное состояние или выбирать не из чего
+     */
+    private boolean pickIndexes(int[] out, int n) {
+        double[] tree = this.tree;
+        ServerDetails[] servers = this.servers;
+        int size = this.size;
+        double sumOfWeights = this.sumOfWeights;
+        if (size == 0 || !(sumOfWeights > 0.0) || size > servers.length || tree.length != servers.length + 1)
+            return false;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < n; i++) {
+            int index = findIndex(tree, random.nextDouble(sumOfWeights));
+            out[i] = index < size ? index : size - 1;
+        }
+        return true;
+    }
+
+    /**
+     * pick() для k разных серверов
+     * @return null если прочитано несогласованное состояние, выбирать не из чего или DistinctSampler еще не построен
+     */
+    private List<ServerDetails> sample(int k) {
+        DistinctSampler distinctSampler = this.distinctSampler;
+        double[] tree = this.tree;
+        ServerDetails[] servers = this.servers;
+        int size = this.size;
+        double sumOfWeights = this.sumOfWeights;
+        if (distinctSampler == null || size == 0 || !(sumOfWeights > 0.0) || size > servers.length
+                || tree.length != servers.length + 1)
+            return null;
+        return distinctSampler.sample(k, random -> {
+            int index = findIndex(tree, random.nextDouble(sumOfWeights));
+            return index < size ? index : size - 1;
+        });
+    }
+
+    /**
+     * спуск по дереву: первый индекс, префиксная сумма которого больше randNumb
+     * @param tree      дерево Фенвика, 1-based
+     * @param randNumb  от 0 до sum весов
+     * @return 0-based индекс сервера
+     */
+    private static int findIndex(double[] tree, double randNumb) {
+        int capacity = tree.length - 1;
+        int pos = 0;
+        for (int step = Integer.highestOneBit(capacity); step > 0; step >>= 1) {
+            int next = pos + step;
+            if (next <= capacity && tree[next] <= randNumb) {
+                pos = next;
+                randNumb -= tree[next];
+            }
+        }
+        return pos;
+    }
+
+    private void addToTree(int index, double delta) {
+        for (int i = index + 1; i < tree.length; i += i & -i) {
+            tree[i] += delta;
+        }
+    }
+
+    /**
+     * дельты копят погрешность double, поэтому раз в max(n, MIN_REBUILD_PERIOD) изменений
+     * дерево и сумма пересчитываются заново - амортизированно O(1) на изменение
+     */
+    private void afterUpdate() {
+        distinctSampler = null;
+        if (++updatesSinceRebuild >= Math.max(size, MIN_REBUILD_PERIOD))
+            rebuildTree();
+    }
+
+    private void grow() {
+        int capacity = servers.length * 2;
+        servers = Arrays.copyOf(servers, capacity);
+        weights = Arrays.copyOf(weights, capacity);
+        rebuildTree();
+    }
+
+    private void rebuildTree() {
+        double[] newTree = new double[weights.length + 1];
+        double sum = 0.0;
+        for (int i = 1; i < newTree.length; i++) {
+            newTree[i] += weights[i - 1];
+            sum += weights[i - 1];
+            int parent = i + (i & -i);
+            if (parent < newTree.length)
+                newTree[parent] += newTree[i];
+        }
+        tree = newTree;
+        sumOfWeights = sum;
+        updatesSinceRebuild = 0;
+    }
+
+    private int indexOf(URI address) {
+        Integer index = indexByAddress.get(address);
+        if (index == null)
+            throw new IllegalArgumentException("server " + address + " is not found");
+        return index;
+    }
+
+    private void init(List<ServerDetails> serverDetailsList) {
+        int capacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, serverDetailsList.size()) - 1) << 1);
+        Map<URI, Integer> newIndexByAddress = new HashMap<>();
+        ServerDetails[] newServers = new ServerDetails[capacity];
+        double[] newWeights = new double[capacity];
+        for (int i = 0; i < serverDetailsList.size(); i++) {
+            ServerDetails serverDetails = serverDetailsList.get(i);
+            Weights.checkWeight(serverDetails.weight);
+            if (newIndexByAddress.put(serverDetails.address, i) != null)
+                throw new IllegalArgumentException("server " + serverDetails.address + " is duplicated");
+            newServers[i] = serverDetails;
+            newWeights[i] = serverDetails.weight.value;
+        }
+        indexByAddress = newIndexByAddress;
+        servers = newServers;
+        weights = newWeights;
+        size = serverDetailsList.size();
+        distinctSampler = null;
+        rebuildTree();
+    }
+}
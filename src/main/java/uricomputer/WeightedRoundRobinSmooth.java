@@ -0,0 +1,147 @@
+package uricomputer;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Детерминированный smooth weighted round-robin (как в nginx)
+ * на каждом шаге current_weight каждого сервера увеличивается на его вес,
+ * выбирается сервер с максимальным current_weight и у него вычитается сумма весов.
+ * Последовательность периодична с периодом sum(weights), поэтому она вычисляется один раз в конструкторе,
+ * а выбор - это атомарный инкремент позиции и чтение из массива.
+ * В любом окне из sum(weights) подряд идущих выборов каждый сервер встречается ровно weight раз
+ * Веса переводятся в целые с точностью precisionLimit и сокращаются на общий НОД.
+ * getNextServers(k) не поддерживается (UnsupportedOperationException): последовательность детерминирована,
+ * а выбор без возвращения согласно весам случаен
+ */
+public class WeightedRoundRobinSmooth implements UriComputer {
+    static final int DEFAULT_PRECISION_LIMIT = 3;
+    static final int DEFAULT_MAX_PERIOD = 1 << 22;
+
+    private final ServerDetails[] servers;
+    private final int[] schedule;
+    private final AtomicLong position = new AtomicLong();
+
+    public static void main(String[] args) throws URISyntaxException {
+        List<ServerDetails> serverDetails = asList(
+                new ServerDetails(new Weight(5.0), new URI("0.0.0.1"))
+                , new ServerDetails(new Weight(1.0), new URI("0.0.0.2"))
+                , new ServerDetails(new Weight(1.0), new URI("0.0.0.3"))
+        );
+
+        WeightedRoundRobinSmooth weightedRoundRobinSmooth = new WeightedRoundRobinSmooth(serverDetails);
+        StringBuilder sequence = new StringBuilder("Sequence");
+        for (int i = 0; i < 14; i++) {
+            sequence.append(' ').append(weightedRoundRobinSmooth.getNextServerUri());
+        }
+        System.out.println(sequence); // a a b a c a a, a a b a c a a
+    }
+
+    public ServerDetails getNextServer() {
+        return servers[schedule[(int) (position.getAndIncrement() % schedule.length)]];
+    }
+
+    public URI getNextServerUri() {
+        return getNextServer().address;
+    }
+
+    /**
+     * один getAndAdd на пакет: пакет получает n подряд идущих позиций расписания
+     */
+    @Override
+    public int getNextServers(ServerDetails[] out, int n) {
+        Batch.check(out.length, n);
+        int step = (int) (position.getAndAdd(n) % schedule.length);
+        for (int i = 0; i < n; i++) {
+            out[i] = servers[schedule[step]];
+            if (++step == schedule.length)
+                step = 0;
+        }
+        return n;
+    }
+
+    @Override
+    public int getNextServerIndexes(int[] out, int n) {
+        Batch.check(out.length, n);
+        int step = (int) (position.getAndAdd(n) % schedule.length);
+        for (int i = 0; i < n; i++) {
+            out[i] = schedule[step];
+            if (++step == schedule.length)
+                step = 0;
+        }
+        return n;
+    }
+
+    public WeightedRoundRobinSmooth(List<ServerDetails> serverDetailsList) {
+        this(serverDetailsList, DEFAULT_PRECISION_LIMIT, DEFAULT_MAX_PERIOD);
+    }
+
+    /**
+     * @param precisionLimit кол-во учитываемых знаков после запятой у весов
+     * @param maxPeriod      ограничение на sum(weights) после сокращения (размер таблицы)
+     */
+    public WeightedRoundRobinSmooth(List<ServerDetails> serverDetailsList, int precisionLimit, int maxPeriod) {
+        long[] integerWeights = Weights.toIntegerWeights(serverDetailsList, precisionLimit);
+        long period = Weights.sum(integerWeights);
+        if (period > maxPeriod)
+            throw new IllegalArgumentException("sum of weights " + period + " is more then maxPeriod " + maxPeriod
+                    + ", reduce precisionLimit");
+        servers = serverDetailsList.toArray(new ServerDetails[0]);
+        schedule = initSchedule(integerWeights, (int) period);
+    }
+
+    /**
+     * вычисляет один период последовательности nginx smooth weighted round-robin
+     * effective_weight равен весу: обратная связь об ошибках здесь не учитывается.
+     * Сервера с одинаковым весом nginx выбирает по кругу в порядке индексов,
+     * поэтому current_weight считается на класс весов: O(sum(weights) * кол-во различных весов)
+     * @param integerWeights целые веса
+     * @param period         сумма весов
+     * @return индексы серверов в порядке выбора
+     */
+    private static int[] initSchedule(long[] integerWeights, int period) {
+        Map<Long, List<Integer>> serversByWeight = new LinkedHashMap<>();
+        for (int i = 0; i < integerWeights.length; i++) {
+            if (integerWeights[i] > 0) // сервер с нулевым весом nginx никогда не выбирает
+                serversByWeight.computeIfAbsent(integerWeights[i], weight -> new ArrayList<>()).add(i);
+        }
+        long[] classWeights = new long[serversByWeight.size()];
+        int[][] classServers = new int[serversByWeight.size()][];
+        int classCount = 0;
+        for (Map.Entry<Long, List<Integer>> entry : serversByWeight.entrySet()) {
+            classWeights[classCount] = entry.getKey();
+            classServers[classCount++] = entry.getValue().stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        long[] classPicks = new long[classCount];
+        int[] schedule = new int[period];
+        for (int step = 0; step < period; step++) {
+            long time = step + 1L;
+            int bestClass = -1;
+            long bestCurrentWeight = 0;
+            int bestServer = 0;
+            for (int c = 0; c < classCount; c++) {
+                int size = classServers[c].length;
+                // current_weight следующего по кругу сервера класса: time * weight - period * (кол-во его выборов)
+                long currentWeight = time * classWeights[c] - period * (classPicks[c] / size);
+                int server = classServers[c][(int) (classPicks[c] % size)];
+                if (bestClass == -1 || currentWeight > bestCurrentWeight
+                        || (currentWeight == bestCurrentWeight && server < bestServer)) {
+                    bestClass = c;
+                    bestCurrentWeight = currentWeight;
+                    bestServer = server;
+                }
+            }
+            classPicks[bestClass]++;
+            schedule[step] = bestServer;
+        }
+        return schedule;
+    }
+}
@@ -0,0 +1,111 @@
+package uricomputer;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Вычисляет uri согласно приориетам весов
+ * Как WeightedRoundRobinLinearDoubleInterval, но границы интервалов сравниваются со случайным числом
+ * сразу по несколько (DoubleVector из jdk.incubator.vector), номер интервала - кол-во границ не больше числа.
+ * Векторная реализация лежит в отдельном source set (src/vector/java, JDK 16+) и загружается по имени;
+ * если ее нет в classpath, JVM старше 16 или модуль jdk.incubator.vector не подключен (--add-modules),
+ * используется скалярный линейный поиск. Для пулов из сотен серверов
+ */
+public class WeightedRoundRobinVectorInterval implements UriComputer {
+    static final String VECTOR_SEARCH_CLASS = "uricomputer.VectorIntervalSearch";
+    private static final IntervalSearch INTERVAL_SEARCH = loadIntervalSearch();
+
+    private final CumulativeWeights cumulativeWeights;
+
+    public static void main(String[] args) throws URISyntaxException {
+        List<ServerDetails> serverDetails = new ArrayList<>();
+        for (int i = 1; i <= 300; i++) {
+            serverDetails.add(new ServerDetails(new Weight((double) (i % 10 + 1)), new URI("0.0." + (i >>> 8) + "." + (i & 0xFF))));
+        }
+        WeightedRoundRobinVectorInterval weightedRoundRobinVectorInterval = new WeightedRoundRobinVectorInterval(serverDetails);
+        long start = System.nanoTime();
+        int commonCount = 0;
+        for (; commonCount < 1_000_000; commonCount++) {
+            weightedRoundRobinVectorInterval.getNextServer();
+        }
+        long finish = System.nanoTime();
+        System.out.println("vectorized " + isVectorized()
+                + "\n Время выполнения" + (finish - start));
+    }
+
+    public ServerDetails getNextServer() {
+        return cumulativeWeights.server(cumulativeWeights.searchIndex(ThreadLocalRandom.current(), INTERVAL_SEARCH));
+    }
+
+    public URI getNextServerUri() {
+        return getNextServer().address;
+    }
+
+    @Override
+    public int getNextServers(ServerDetails[] out, int n) {
+        Batch.check(out.length, n);
+        CumulativeWeights cumulativeWeights = this.cumulativeWeights;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < n; i++) {
+            out[i] = cumulativeWeights.server(cumulativeWeights.searchIndex(random, INTERVAL_SEARCH));
+        }
+        return n;
+    }
+
+    @Override
+    public int getNextServerIndexes(int[] out, int n) {
+        Batch.check(out.length, n);
+        CumulativeWeights cumulativeWeights = this.cumulativeWeights;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < n; i++) {
+            out[i] = cumulativeWeights.searchIndex(random, INTERVAL_SEARCH);
+        }
+        return n;
+    }
+
+    @Override
+    public List<ServerDetails> getNextServers(int k) {
+        return cumulativeWeights.distinctServers(k);
+    }
+
+    public WeightedRoundRobinVectorInterval(List<ServerDetails> serverDetailsList) {
+        cumulativeWeights = new CumulativeWeights(serverDetailsList);
+    }
+
+    /**
+     * @return true если используется векторный поиск
+     */
+    public static boolean isVectorized() {
+        return !(INTERVAL_SEARCH instanceof ScalarSearch);
+    }
+
+    /**
+     * пробный поиск выполняется сразу: классы jdk.incubator.vector могут разрешаться только при первом вызове
+     */
+    private static IntervalSearch loadIntervalSearch() {
+        try {
+            IntervalSearch vectorSearch = (IntervalSearch) Class.forName(VECTOR_SEARCH_CLASS)
+                    .getDeclaredConstructor().newInstance();
+            double[] upperBounds = new double[67];
+            for (int i = 0; i < upperBounds.length; i++) {
+                upperBounds[i] = i + 1;
+            }
+            for (int i = 0; i < upperBounds.length; i++) {
+                if (vectorSearch.search(upperBounds, i + 0.5) != i)
+                    return new ScalarSearch();
+            }
+            return vectorSearch;
+        } catch (ReflectiveOperationException | LinkageError | ClassCastException e) {
+            return new ScalarSearch();
+        }
+    }
+
+    private static final class ScalarSearch implements IntervalSearch {
+        public int search(double[] upperBounds, double randNumb) {
+            return CumulativeWeights.linearSearch(upperBounds, randNumb);
+        }
+    }
+}
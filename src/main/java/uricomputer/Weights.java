@@ -0,0 +1,81 @@
+package uricomputer;
+
+import java.util.List;
+
+import uricomputer.UriComputer.ServerDetails;
+import uricomputer.UriComputer.Weight;
+
+/**
+ * Перевод весов в целые числа для реализаций на основе таблиц
+ */
+final class Weights {
+
+    private Weights() {
+    }
+
+    /**
+     * целые веса: value * 10^precisionLimit (с округлением), сокращенные на общий НОД всех весов
+     * @param serverDetailsList сервера с весами
+     * @param precisionLimit    кол-во учитываемых знаков после запятой
+     * @return целые веса в порядке списка
+     */
+    static long[] toIntegerWeights(List<ServerDetails> serverDetailsList, int precisionLimit) {
+        if (serverDetailsList.isEmpty())
+            throw new IllegalArgumentException("serverDetailsList must not be empty");
+        if (precisionLimit < 0 || precisionLimit > 9)
+            throw new IllegalArgumentException("precisionLimit must be from 0 to 9");
+        double coefficient = Math.pow(10, precisionLimit);
+        long[] integerWeights = new long[serverDetailsList.size()];
+        for (int i = 0; i < integerWeights.length; i++) {
+            Weight weight = serverDetailsList.get(i).weight;
+            checkWeight(weight);
+            double scaled = weight.value * coefficient;
+            if (scaled >= Long.MAX_VALUE)
+                throw new IllegalArgumentException("weight " + weight.value + " is too big for precision " + precisionLimit);
+            integerWeights[i] = Math.round(scaled);
+        }
+        long genGcd = gcd(integerWeights);
+        if (genGcd == 0)
+            throw new IllegalArgumentException("sum Of All weights must be more then 0");
+        for (int i = 0; i < integerWeights.length; i++) {
+            integerWeights[i] /= genGcd;
+        }
+        return integerWeights;
+    }
+
+    /**
+     * НОД всех значений (нули пропускаются)
+     * @return 0 если все значения 0
+     */
+    static long gcd(long[] values) {
+        long genGcd = 0;
+        for (long value : values) {
+            genGcd = gcd(genGcd, value);
+            if (genGcd == 1)
+                break;
+        }
+        return genGcd;
+    }
+
+    static long gcd(long a, long b) {
+        while (b != 0) {
+            long rest = a % b;
+            a = b;
+            b = rest;
+        }
+        return a;
+    }
+
+    static long sum(long[] values) {
+        long sum = 0;
+        for (long value : values) {
+            sum = Math.addExact(sum, value);
+        }
+        return sum;
+    }
+
+    static void checkWeight(Weight weight) {
+        if (weight.value == null || !(weight.value >= 0.0) || weight.value.isInfinite())
+            throw new IllegalArgumentException("weight must be finite and not less then 0");
+    }
+}
@@ -0,0 +1,341 @@
+package uricomputer;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Двухуровневый выбор с учетом зон (ServerDetails.zone / region): сначала зона, затем сервер внутри зоны
+ * отдельной реализацией UriComputer, построенной фабрикой по здоровым серверам зоны.
+ * Зоны делятся на уровни предпочтения: локальная зона, другие зоны локального региона, остальные регионы.
+ * Уровень с долей здорового веса h принимает min(1, h / failoverThreshold) оставшегося трафика,
+ * остаток уходит на следующий уровень: пока здорового веса в локальной зоне не меньше порога,
+ * весь трафик остается в ней, ниже порога - перетекает постепенно. Внутри уровня зона выбирается по здоровому весу.
+ * Если здоровых серверов не осталось совсем, выбор идет из всех (panic mode), а не падает.
+ * Таблица зон и сэмплеры перестраиваются при изменении здоровья или списка и публикуются volatile записью,
+ * выбор - одно случайное число, поиск по double[] зон и getNextServer сэмплера зоны
+ */
+public class ZoneAwareUriComputer implements UpdatableUriComputer {
+    static final double DEFAULT_FAILOVER_THRESHOLD = 0.7;
+
+    private final String localZone;
+    private final String localRegion;
+    private final double failoverThreshold;
+    private final Function<List<ServerDetails>, ? extends UriComputer> factory;
+    private final Set<URI> unhealthy = new HashSet<>();
+    private List<ServerDetails> serverDetailsList;
+    private volatile Table table;
+
+    public static void main(String[] args) throws URISyntaxException {
+        List<ServerDetails> serverDetails = asList(
+                new ServerDetails(new Weight(1.0), new URI("0.0.0.1"), "a", "eu")
+                , new ServerDetails(new Weight(1.0), new URI("0.0.0.2"), "a", "eu")
+                , new ServerDetails(new Weight(1.0), new URI("0.0.0.3"), "b", "eu")
+                , new ServerDetails(new Weight(1.0), new URI("0.0.0.4"), "c", "us")
+        );
+        ZoneAwareUriComputer zoneAware = new ZoneAwareUriComputer(serverDetails, "eu", "a", WeightedRoundRobinAlias::new);
+        System.out.println("healthy: " + zoneAware.zoneShares());
+        zoneAware.setHealthy(new URI("0.0.0.1"), false);
+        System.out.println("one of two servers in zone a unhealthy: " + zoneAware.zoneShares());
+        zoneAware.setHealthy(new URI("0.0.0.2"), false);
+        System.out.println("zone a unhealthy: " + zoneAware.zoneShares());
+    }
+
+    public ServerDetails getNextServer() {
+        Table table = this.table;
+        return table.pick(ThreadLocalRandom.current());
+    }
+
+    public URI getNextServerUri() {
+        return getNextServer().address;
+    }
+
+    @Override
+    public int getNextServers(ServerDetails[] out, int n) {
+        Batch.check(out.length, n);
+        Table table = this.table;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < n; i++) {
+            out[i] = table.pick(random);
+        }
+        return n;
+    }
+
+    /**
+     * индексы сэмплера зоны переводятся в индексы getServerDetailsList()
+     */
+    @Override
+    public int getNextServerIndexes(int[] out, int n) {
+        Batch.check(out.length, n);
+        Table table = this.table;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int[] zoneIndex = new int[1];
+        for (int i = 0; i < n; i++) {
+            int zone = table.zone(random);
+            table.samplers[zone].getNextServerIndexes(zoneIndex, 1);
+            out[i] = table.serverIndexes[zone][zoneIndex[0]];
+        }
+        return n;
+    }
+
+    /**
+     * k разных здоровых серверов последовательным выбором по весам серверов в общем распределении
+     * (доля зоны * вес сервера / здоровый вес зоны), поэтому первый сервер распределен как getNextServer();
+     * сервера уровней без трафика добавляются, только если серверов с долей трафика меньше k
+     * @throws IllegalArgumentException k меньше 1 или больше кол-ва здоровых серверов с ненулевым весом
+     */
+    @Override
+    public List<ServerDetails> getNextServers(int k) {
+        return table.distinctServers(k);
+    }
+
+    public ZoneAwareUriComputer(List<ServerDetails> serverDetailsList, String localRegion, String localZone,
+                                Function<List<ServerDetails>, ? extends UriComputer> factory) {
+        this(serverDetailsList, localRegion, localZone, factory, DEFAULT_FAILOVER_THRESHOLD);
+    }
+
+    /**
+     * @param localRegion       регион клиента
+     * @param localZone         зона клиента
+     * @param factory           строит сэмплер зоны по ее здоровым серверам, например WeightedRoundRobinAlias::new
+     * @param failoverThreshold доля здорового веса (от 0 до 1), ниже которой трафик начинает уходить на следующий уровень
+     */
+    public ZoneAwareUriComputer(List<ServerDetails> serverDetailsList, String localRegion, String localZone,
+                                Function<List<ServerDetails>, ? extends UriComputer> factory, double failoverThreshold) {
+        if (!(failoverThreshold > 0.0 && failoverThreshold <= 1.0))
+            throw new IllegalArgumentException("failoverThreshold must be from 0 to 1");
+        this.localRegion = localRegion;
+        this.localZone = localZone;
+        this.factory = factory;
+        this.failoverThreshold = failoverThreshold;
+        update(serverDetailsList);
+    }
+
+    /**
+     * отмечает сервер здоровым или нет (например, по активной проверке); адреса не из списка запоминаются
+     */
+    public synchronized void setHealthy(URI address, boolean healthy) {
+        if (healthy ? unhealthy.remove(address) : unhealthy.add(address))
+            publish();
+    }
+
+    public boolean isHealthy(URI address) {
+        return !table.unhealthy.contains(address);
+    }
+
+    /**
+     * заменяет список серверов, отметки здоровья сохраняются по адресам
+     */
+    public synchronized void update(List<ServerDetails> serverDetailsList) {
+        if (serverDetailsList.isEmpty())
+            throw new IllegalArgumentException("serverDetailsList must not be empty");
+        this.serverDetailsList = Collections.unmodifiableList(new ArrayList<>(serverDetailsList));
+        publish();
+    }
+
+    public List<ServerDetails> getServerDetailsList() {
+        return table.serverDetailsList;
+    }
+
+    /**
+     * @return доля трафика каждой зоны, ключ - "регион/зона"
+     */
+    public Map<String, Double> zoneShares() {
+        Table table = this.table;
+        Map<String, Double> shares = new LinkedHashMap<>();
+        double previous = 0.0;
+        for (int i = 0; i < table.zoneNames.length; i++) {
+            shares.put(table.zoneNames[i], table.upperBounds[i] - previous);
+            previous = table.upperBounds[i];
+        }
+        return shares;
+    }
+
+    /**
+     * если здоровых серверов с ненулевым весом не осталось (panic), выбор идет из всех серверов
+     */
+    private void publish() {
+        boolean panic = true;
+        for (ServerDetails serverDetails : serverDetailsList) {
+            Weights.checkWeight(serverDetails.weight);
+            if (serverDetails.weight.value > 0.0 && !unhealthy.contains(serverDetails.address))
+                panic = false;
+        }
+        Set<URI> excluded = panic ? Collections.emptySet() : unhealthy;
+        Map<String, List<ServerDetails>> healthyByZone = new LinkedHashMap<>();
+        Map<String, List<Integer>> healthyIndexesByZone = new HashMap<>(); // индексы в serverDetailsList
+        Map<String, double[]> weightsByZone = new HashMap<>(); // {вес зоны, здоровый вес}
+        Map<String, Integer> tierByZone = new HashMap<>();
+        for (int i = 0; i < serverDetailsList.size(); i++) {
+            ServerDetails serverDetails = serverDetailsList.get(i);
+            String zoneName = serverDetails.region + "/" + serverDetails.zone;
+            List<ServerDetails> healthy = healthyByZone.computeIfAbsent(zoneName, name -> new ArrayList<>());
+            double[] weights = weightsByZone.computeIfAbsent(zoneName, name -> new double[2]);
+            weights[0] += serverDetails.weight.value;
+            if (!excluded.contains(serverDetails.address)) {
+                healthy.add(serverDetails);
+                healthyIndexesByZone.computeIfAbsent(zoneName, name -> new ArrayList<>()).add(i);
+                weights[1] += serverDetails.weight.value;
+            }
+            tierByZone.put(zoneName, tier(serverDetails));
+        }
+
+        double[] tierWeights = new double[3];
+        double[] tierHealthyWeights = new double[3];
+        for (Map.Entry<String, double[]> entry : weightsByZone.entrySet()) {
+            int tier = tierByZone.get(entry.getKey());
+            tierWeights[tier] += entry.getValue()[0];
+            tierHealthyWeights[tier] += entry.getValue()[1];
+        }
+        double[] tierShares = new double[3];
+        double remaining = 1.0;
+        for (int tier = 0; tier < 3; tier++) {
+            if (!(tierHealthyWeights[tier] > 0.0))
+                continue;
+            double availability = Math.min(1.0, tierHealthyWeights[tier] / tierWeights[tier] / failoverThreshold);
+            tierShares[tier] = remaining * availability;
+            remaining -= tierShares[tier];
+        }
+        double assigned = 1.0 - remaining;
+        if (!(assigned > 0.0))
+            throw new IllegalArgumentException("sum Of All weights must be more then 0");
+
+        List<String> zoneNames = new ArrayList<>();
+        List<UriComputer> samplers = new ArrayList<>();
+        List<Double> shares = new ArrayList<>();
+        List<int[]> serverIndexes = new ArrayList<>();
+        List<ServerDetails> effective = new ArrayList<>();
+        Map<ServerDetails, ServerDetails> originals = new IdentityHashMap<>();
+        List<List<ServerDetails>> reserveTiers = asList(new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+        for (Map.Entry<String, List<ServerDetails>> entry : healthyByZone.entrySet()) {
+            double healthyWeight = weightsByZone.get(entry.getKey())[1];
+            if (!(healthyWeight > 0.0))
+                continue;
+            int tier = tierByZone.get(entry.getKey());
+            zoneNames.add(entry.getKey());
+            samplers.add(factory.apply(entry.getValue()));
+            serverIndexes.add(healthyIndexesByZone.get(entry.getKey()).stream().mapToInt(Integer::intValue).toArray());
+            // остаток после последнего уровня делится между уровнями пропорционально их долям
+            double share = tierShares[tier] / assigned * healthyWeight / tierHealthyWeights[tier];
+            shares.add(share);
+            for (ServerDetails serverDetails : entry.getValue()) {
+                ServerDetails copy = new ServerDetails(new Weight(share * serverDetails.weight.value / healthyWeight),
+                        serverDetails.address, serverDetails.zone, serverDetails.region);
+                originals.put(copy, serverDetails);
+                effective.add(copy);
+            }
+            if (tierShares[tier] == 0.0)
+                reserveTiers.get(tier).addAll(entry.getValue());
+        }
+        List<List<ServerDetails>> stages = new ArrayList<>();
+        stages.add(effective);
+        for (List<ServerDetails> reserve : reserveTiers) {
+            if (!reserve.isEmpty())
+                stages.add(reserve);
+        }
+        table = new Table(serverDetailsList, new HashSet<>(unhealthy), zoneNames, samplers, serverIndexes, shares,
+                stages, originals);
+    }
+
+    private int tier(ServerDetails serverDetails) {
+        if (!serverDetails.region.equals(localRegion))
+            return 2;
+        return serverDetails.zone.equals(localZone) ? 0 : 1;
+    }
+
+    /**
+     * зоны с верхними границами их долей и сэмплеры зон публикуются вместе.
+     * Для выбора без возвращения: первая ступень - копии здоровых серверов с весом в общем распределении,
+     * следующие - здоровые сервера уровней без трафика (их доля 0, пока предпочтительный уровень здоров) по своим весам
+     */
+    private static final class Table {
+        final List<ServerDetails> serverDetailsList;
+        final Set<URI> unhealthy;
+        final String[] zoneNames;
+        final UriComputer[] samplers;
+        final int[][] serverIndexes; // индексы серверов сэмплера зоны в serverDetailsList
+        final double[] upperBounds;
+        final CumulativeWeights[] stages;
+        final int[] stageSizes; // серверов с ненулевым весом в ступени
+        final int distinctCount;
+        final Map<ServerDetails, ServerDetails> originals;
+
+        Table(List<ServerDetails> serverDetailsList, Set<URI> unhealthy,
+              List<String> zoneNames, List<UriComputer> samplers, List<int[]> serverIndexes, List<Double> shares,
+              List<List<ServerDetails>> stages, Map<ServerDetails, ServerDetails> originals) {
+            this.serverDetailsList = serverDetailsList;
+            this.serverIndexes = serverIndexes.toArray(new int[0][]);
+            this.originals = originals;
+            List<CumulativeWeights> nonEmpty = new ArrayList<>();
+            List<Integer> sizes = new ArrayList<>();
+            int count = 0;
+            for (List<ServerDetails> stage : stages) {
+                int size = 0;
+                for (ServerDetails serverDetails : stage) {
+                    if (serverDetails.weight.value > 0.0)
+                        size++;
+                }
+                if (size > 0) {
+                    nonEmpty.add(new CumulativeWeights(stage));
+                    sizes.add(size);
+                    count += size;
+                }
+            }
+            this.stages = nonEmpty.toArray(new CumulativeWeights[0]);
+            stageSizes = new int[sizes.size()];
+            for (int i = 0; i < stageSizes.length; i++) {
+                stageSizes[i] = sizes.get(i);
+            }
+            distinctCount = count;
+            this.unhealthy = unhealthy;
+            this.zoneNames = zoneNames.toArray(new String[0]);
+            this.samplers = samplers.toArray(new UriComputer[0]);
+            upperBounds = new double[shares.size()];
+            double sum = 0.0;
+            for (int i = 0; i < upperBounds.length; i++) {
+                sum += shares.get(i);
+                upperBounds[i] = sum;
+            }
+        }
+
+        ServerDetails pick(ThreadLocalRandom random) {
+            return samplers[zone(random)].getNextServer();
+        }
+
+        int zone(ThreadLocalRandom random) {
+            if (samplers.length == 1)
+                return 0;
+            double randNumb = random.nextDouble(upperBounds[upperBounds.length - 1]);
+            return CumulativeWeights.branchlessSearch(upperBounds, randNumb);
+        }
+
+        /**
+         * ступени по очереди: из следующей берутся сервера, только если в предыдущих их не хватило
+         */
+        List<ServerDetails> distinctServers(int k) {
+            if (k < 1 || k > distinctCount)
+                throw new IllegalArgumentException("k must be from 1 to count of healthy servers with weight more then 0 ("
+                        + distinctCount + ")");
+            List<ServerDetails> sample = new ArrayList<>(k);
+            for (int i = 0; sample.size() < k; i++) {
+                for (ServerDetails serverDetails : stages[i].distinctServers(Math.min(k - sample.size(), stageSizes[i]))) {
+                    ServerDetails original = originals.get(serverDetails);
+                    sample.add(original != null ? original : serverDetails);
+                }
+            }
+            return sample;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package uricomputer;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uricomputer.UriComputer.ServerDetails;
+import uricomputer.UriComputer.Weight;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ActiveHealthCheckerTest {
+    static final long WAIT_SECONDS = 10;
+
+    private final AtomicInteger status = new AtomicInteger(200);
+    private final BlockingQueue<Boolean> changes = new LinkedBlockingQueue<>();
+    private final List<AutoCloseable> resources = new ArrayList<>();
+
+    @After
+    public void close() throws Exception {
+        for (AutoCloseable resource : resources) {
+            resource.close();
+        }
+    }
+
+    /**
+     * здоровый сервер -> 503 -> снова 200: обе смены состояния доходят до Listener
+     */
+    @Test
+    public void upDownUp() throws Exception {
+        URI address = startServer();
+        ActiveHealthChecker healthChecker = start(address, (uri, healthy) -> changes.add(healthy));
+        assertNull(changes.poll(300, TimeUnit.MILLISECONDS));
+        assertTrue(healthChecker.isHealthy(address));
+
+        status.set(503);
+        assertEquals(Boolean.FALSE, changes.poll(WAIT_SECONDS, TimeUnit.SECONDS));
+        assertFalse(healthChecker.isHealthy(address));
+
+        status.set(200);
+        assertEquals(Boolean.TRUE, changes.poll(WAIT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(healthChecker.isHealthy(address));
+    }
+
+    /**
+     * соединение принято, но ответа нет - проверка завершается по таймауту
+     */
+    @Test
+    public void timeoutMakesServerUnhealthy() throws Exception {
+        ServerSocketChannel silent = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        resources.add(silent);
+        URI address = URI.create("http://127.0.0.1:" + ((InetSocketAddress) silent.getLocalAddress()).getPort());
+        ActiveHealthChecker healthChecker = start(address, (uri, healthy) -> changes.add(healthy), 200);
+        assertEquals(Boolean.FALSE, changes.poll(WAIT_SECONDS, TimeUnit.SECONDS));
+        assertFalse(healthChecker.isHealthy(address));
+    }
+
+    /**
+     * порт закрыт (connection refused) или в URI нет хоста - сервер нездоров
+     */
+    @Test
+    public void unreachableServerIsUnhealthy() throws Exception {
+        ServerSocketChannel closed = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        URI refused = URI.create("http://127.0.0.1:" + ((InetSocketAddress) closed.getLocalAddress()).getPort());
+        closed.close();
+        start(refused, (uri, healthy) -> changes.add(healthy));
+        assertEquals(Boolean.FALSE, changes.poll(WAIT_SECONDS, TimeUnit.SECONDS));
+
+        start(URI.create("unix:/nowhere"), (uri, healthy) -> changes.add(healthy));
+        assertEquals(Boolean.FALSE, changes.poll(WAIT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    /**
+     * исключение Listener не останавливает поток проверки, имя localhost разрешается вне потока Selector
+     */
+    @Test
+    public void listenerExceptionDoesNotStopChecking() throws Exception {
+        URI address = URI.create("http://localhost:" + startServer().getPort());
+        ActiveHealthChecker healthChecker = start(address, (uri, healthy) -> {
+            changes.add(healthy);
+            throw new IllegalStateException("listener failed");
+        });
+        status.set(503);
+        assertEquals(Boolean.FALSE, changes.poll(WAIT_SECONDS, TimeUnit.SECONDS));
+        status.set(200);
+        assertEquals(Boolean.TRUE, changes.poll(WAIT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(healthChecker.isHealthy(address));
+    }
+
+    private ActiveHealthChecker start(URI address, ActiveHealthChecker.Listener listener) throws IOException {
+        return start(address, listener, 1_000);
+    }
+
+    private ActiveHealthChecker start(URI address, ActiveHealthChecker.Listener listener, long timeoutMillis)
+            throws IOException {
+        ActiveHealthChecker healthChecker = new ActiveHealthChecker(
+                Collections.singletonList(new ServerDetails(new Weight(1.0), address)), listener,
+                new ActiveHealthChecker.Settings()
+                        .interval(20, TimeUnit.MILLISECONDS)
+                        .timeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                        .resolveInterval(50, TimeUnit.MILLISECONDS)
+                        .thresholds(1, 1)
+                        .httpPath("/health"));
+        resources.add(healthChecker);
+        return healthChecker;
+    }
+
+    private URI startServer() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.sendResponseHeaders(status.get(), -1);
+            exchange.close();
+        });
+        server.start();
+        resources.add(() -> server.stop(0));
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+}
@@ -0,0 +1,155 @@
+package uricomputer;
+
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import uricomputer.UriComputer.ServerDetails;
+import uricomputer.UriComputer.Weight;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BatchSelectionTest {
+    static final double[] WEIGHTS = {4, 1, 0, 3, 2};
+    static final int PICKS = 200_000;
+    static final int BATCH = 32;
+
+    /**
+     * getNextServerIndexes поддерживается всеми реализациями и обертками, доли индексов совпадают с весами
+     */
+    @Test
+    public void indexesFollowWeights() {
+        List<Function<List<ServerDetails>, ? extends UriComputer>> factories = asList(
+                list -> new WeightedRoundRobinArray(list, 5)
+                , WeightedRoundRobinFenwickTree::new
+                , WeightedRoundRobinAlias::new
+                , WeightedRoundRobinCompactArray::new
+                , WeightedRoundRobinLinearDoubleInterval::new
+                , WeightedRoundRobinTreeDoubleInterval::new
+                , WeightedRoundRobinVectorInterval::new
+                , WeightedRoundRobinSmooth::new
+                , list -> new SwappableUriComputer(list, WeightedRoundRobinAlias::new)
+                , list -> new OutlierEjectingUriComputer(list, WeightedRoundRobinAlias::new)
+                , list -> new SlowStartUriComputer(list, WeightedRoundRobinAlias::new, 1, TimeUnit.MINUTES)
+                , list -> new ZoneAwareUriComputer(list, ServerDetails.UNKNOWN_LOCALITY,
+                        ServerDetails.UNKNOWN_LOCALITY, WeightedRoundRobinAlias::new)
+                , ConcurrencyLimitedUriComputer::new
+                , list -> new InstrumentedUriComputer(new WeightedRoundRobinAlias(list), list)
+        );
+        for (Function<List<ServerDetails>, ? extends UriComputer> factory : factories) {
+            UriComputer uriComputer = factory.apply(servers(WEIGHTS));
+            assertShares(uriComputer, WEIGHTS);
+        }
+    }
+
+    /**
+     * индексы после update() и исключения сервера относятся к новому списку getServerDetailsList()
+     */
+    @Test
+    public void outlierEjectingIndexesSkipEjectedServer() {
+        OutlierEjectingUriComputer outlierEjecting = new OutlierEjectingUriComputer(servers(1, 1),
+                WeightedRoundRobinAlias::new, new OutlierEjectingUriComputer.Settings().maxEjectionPercent(50));
+        outlierEjecting.update(servers(1, 1, 2, 4));
+        for (int i = 0; i < 10; i++) {
+            outlierEjecting.onFailure(URI.create("s0"));
+        }
+        assertTrue(outlierEjecting.isEjected(URI.create("s0")));
+        assertShares(outlierEjecting, new double[]{0, 1, 2, 4});
+    }
+
+    /**
+     * индексы сэмплеров зон переводятся в индексы общего списка
+     */
+    @Test
+    public void zoneAwareIndexesPointToLocalZone() {
+        List<ServerDetails> servers = asList(
+                new ServerDetails(new Weight(1.0), URI.create("s0"), "b", "eu")
+                , new ServerDetails(new Weight(3.0), URI.create("s1"), "a", "eu")
+                , new ServerDetails(new Weight(5.0), URI.create("s2"), "c", "us")
+                , new ServerDetails(new Weight(1.0), URI.create("s3"), "a", "eu")
+        );
+        ZoneAwareUriComputer zoneAware = new ZoneAwareUriComputer(servers, "eu", "a", WeightedRoundRobinAlias::new);
+        assertShares(zoneAware, new double[]{0, 3, 0, 1});
+    }
+
+    /**
+     * после remove последний сервер занимает место удаленного, индексы - по getServerDetailsList()
+     */
+    @Test
+    public void fenwickIndexesFollowCurrentList() {
+        WeightedRoundRobinFenwickTree fenwickTree = new WeightedRoundRobinFenwickTree(servers(1, 2, 3));
+        fenwickTree.remove(URI.create("s0"));
+        fenwickTree.setWeight(URI.create("s1"), 6.0);
+        List<ServerDetails> current = fenwickTree.getServerDetailsList();
+        assertEquals(URI.create("s2"), current.get(0).address);
+        assertShares(fenwickTree, new double[]{3, 6});
+    }
+
+    /**
+     * setWeight сохраняет зону и регион сервера
+     */
+    @Test
+    public void fenwickSetWeightKeepsLocality() {
+        URI address = URI.create("s0");
+        WeightedRoundRobinFenwickTree fenwickTree = new WeightedRoundRobinFenwickTree(
+                asList(new ServerDetails(new Weight(1.0), address, "a", "eu")));
+        fenwickTree.setWeight(address, 2.0);
+        assertEquals(new ServerDetails(new Weight(2.0), address, "a", "eu"), fenwickTree.getNextServer());
+        assertEquals("a", fenwickTree.getServerDetailsList().get(0).zone);
+    }
+
+    /**
+     * веса с общим делителем сокращаются, но выбираются исходные сервера вместе с зоной и регионом
+     */
+    @Test
+    public void arrayWithCommonDivisorReturnsConfiguredServers() {
+        List<ServerDetails> servers = asList(
+                new ServerDetails(new Weight(2.0), URI.create("s0"), "a", "eu")
+                , new ServerDetails(new Weight(4.0), URI.create("s1"), "b", "us"));
+        WeightedRoundRobinArray array = new WeightedRoundRobinArray(servers, 5);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(servers.contains(array.getNextServer()));
+        }
+        assertTrue(servers.containsAll(array.getNextServers(2)));
+    }
+
+    static List<ServerDetails> servers(double... weights) {
+        List<ServerDetails> servers = new ArrayList<>();
+        for (int i = 0; i < weights.length; i++) {
+            servers.add(new ServerDetails(new Weight(weights[i]), URI.create("s" + i)));
+        }
+        return servers;
+    }
+
+    /**
+     * доли индексов в пакетах против долей весов, с допуском 5 стандартных ошибок
+     */
+    static void assertShares(UriComputer uriComputer, double[] weights) {
+        double sum = 0.0;
+        for (double weight : weights) {
+            sum += weight;
+        }
+        long[] counts = new long[weights.length];
+        int[] out = new int[BATCH];
+        for (int i = 0; i < PICKS / BATCH; i++) {
+            assertEquals(BATCH, uriComputer.getNextServerIndexes(out, BATCH));
+            for (int index : out) {
+                counts[index]++;
+            }
+        }
+        int picks = PICKS / BATCH * BATCH;
+        String name = uriComputer.getClass().getSimpleName();
+        for (int i = 0; i < weights.length; i++) {
+            double p = weights[i] / sum;
+            double share = counts[i] / (double) picks;
+            double tolerance = 5 * Math.sqrt(Math.max(p * (1.0 - p), 1e-6) / picks);
+            assertEquals(name + " index " + i, p, share, tolerance);
+        }
+    }
+}
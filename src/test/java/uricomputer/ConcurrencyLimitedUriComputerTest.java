@@ -0,0 +1,71 @@
+package uricomputer;
+
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import uricomputer.UriComputer.ServerDetails;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ConcurrencyLimitedUriComputerTest {
+    static final double[] WEIGHTS = {1_000, 1, 3};
+    static final int PICKS = 100_000;
+
+    /**
+     * тяжелый сервер на лимите почти всегда выпадает при повторных выборах,
+     * поэтому работает поиск среди серверов ниже лимита - он тоже согласно весам, а не равномерно
+     */
+    @Test
+    public void fallbackFollowsWeightsBelowLimit() {
+        List<ServerDetails> servers = BatchSelectionTest.servers(WEIGHTS);
+        ConcurrencyLimitedUriComputer limited = new ConcurrencyLimitedUriComputer(servers, 1, 1, 1, 1, TimeUnit.MINUTES);
+        ServerLease heavy = acquireServer(limited, servers.get(0));
+        BatchSelectionTest.assertShares(limited, new double[]{0, 1, 3});
+
+        long[] counts = new long[WEIGHTS.length];
+        for (int i = 0; i < PICKS; i++) {
+            ServerLease lease = limited.acquire();
+            counts[Integer.parseInt(lease.getAddress().toString().substring(1))]++;
+            lease.complete();
+        }
+        assertEquals(0, counts[0]);
+        double p = 0.25;
+        assertEquals(p, counts[1] / (double) PICKS, 5 * Math.sqrt(p * (1.0 - p) / PICKS));
+        heavy.complete();
+    }
+
+    /**
+     * все сервера на лимите - отказ, после освобождения сервер снова выбирается
+     */
+    @Test
+    public void allServersAtLimitAreRejected() {
+        List<ServerDetails> servers = BatchSelectionTest.servers(2, 1);
+        ConcurrencyLimitedUriComputer limited = new ConcurrencyLimitedUriComputer(servers, 1, 1, 1, 1, TimeUnit.MINUTES);
+        ServerLease first = limited.acquire();
+        ServerLease second = limited.acquire();
+        assertNull(limited.tryAcquire());
+        second.complete();
+        ServerLease again = limited.acquire();
+        assertEquals(second.getAddress(), again.getAddress());
+        assertEquals(1, limited.getInFlight(URI.create("s0")));
+        assertEquals(1, limited.getInFlight(URI.create("s1")));
+        first.complete();
+        again.complete();
+    }
+
+    /**
+     * берет и отпускает lease, пока не достанется нужный сервер
+     */
+    private static ServerLease acquireServer(ConcurrencyLimitedUriComputer limited, ServerDetails server) {
+        ServerLease lease = limited.acquire();
+        while (lease.getServerDetails() != server) {
+            lease.complete();
+            lease = limited.acquire();
+        }
+        return lease;
+    }
+}
@@ -0,0 +1,73 @@
+package uricomputer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uricomputer.ConnectionPool.PooledConnection;
+import uricomputer.UriComputer.ServerDetails;
+import uricomputer.UriComputer.Weight;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionPoolTest {
+    private static final URI ADDRESS = URI.create("tcp://0.0.0.1:80");
+
+    private final AtomicInteger opened = new AtomicInteger();
+    private final Set<Integer> closed = Collections.synchronizedSet(new HashSet<>());
+    private final ConnectionPool<Integer> pool = new ConnectionPool<>(new ConnectionPool.Connector<Integer>() {
+        public Integer open(URI address) {
+            return opened.incrementAndGet();
+        }
+
+        public void close(Integer connection) {
+            closed.add(connection);
+        }
+    }, 2, 2, 60, TimeUnit.SECONDS);
+
+    @Test
+    public void reusesReleasedConnectionAndEnforcesMaxTotal() throws IOException {
+        PooledConnection<Integer> first = pool.borrow(ADDRESS);
+        first.release();
+        first.release(); // повторное освобождение ничего не делает
+        PooledConnection<Integer> again = pool.borrow(ADDRESS);
+        assertEquals(first.get(), again.get());
+        assertNotNull(pool.borrow(ADDRESS));
+        assertNull(pool.borrow(ADDRESS));
+        again.discard();
+        assertEquals(1, pool.getTotalCount(ADDRESS));
+        assertTrue(closed.contains(again.get()));
+    }
+
+    /**
+     * соединение удаленного и снова добавленного сервера закрывается и не попадает в новый пул
+     */
+    @Test
+    public void connectionOfRemovedServerIsClosedOnRelease() throws IOException {
+        PooledConnection<Integer> old = pool.borrow(ADDRESS);
+        pool.update(Collections.<ServerDetails>emptyList());
+        PooledConnection<Integer> current = pool.borrow(ADDRESS); // сервер добавлен заново
+        pool.update(Collections.singletonList(new ServerDetails(new Weight(1.0), ADDRESS)));
+
+        old.release();
+        assertTrue(closed.contains(old.get()));
+        assertEquals(0, pool.getIdleCount(ADDRESS));
+        assertEquals(1, pool.getTotalCount(ADDRESS));
+
+        current.release();
+        assertEquals(1, pool.getIdleCount(ADDRESS));
+        assertEquals(1, pool.getTotalCount(ADDRESS));
+        assertNotNull(pool.borrow(ADDRESS));
+        assertNotNull(pool.borrow(ADDRESS));
+        assertNull(pool.borrow(ADDRESS));
+    }
+}
@@ -0,0 +1,133 @@
+package uricomputer;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import uricomputer.UriComputer.ServerDetails;
+import uricomputer.UriComputer.Weight;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class CumulativeWeightsTest {
+    static final int CALLS = 1_000_000;
+
+    /**
+     * линейный и бинарный поиск совпадают с поиском по TreeMap верхних границ интервалов,
+     * в том числе на самих границах
+     */
+    @Test
+    public void searchMatchesTreeMap() {
+        Random random = new Random(42);
+        for (int n : new int[]{1, 2, 3, 7, 16, 100, 1000}) {
+            List<ServerDetails> servers = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                double weight = i % 5 == 4 ? 0.0 : random.nextInt(4) == 0 ? 1.0 : random.nextDouble() * 100;
+                servers.add(new ServerDetails(new Weight(weight), URI.create("s" + i)));
+            }
+            if (n > 1)
+                servers.set(0, new ServerDetails(new Weight(1.0), URI.create("s0")));
+            CumulativeWeights cumulativeWeights = new CumulativeWeights(servers);
+            TreeMap<Double, Integer> tree = treeMap(servers);
+            List<Double> randNumbs = new ArrayList<>();
+            randNumbs.add(0.0);
+            for (double upperBound : tree.keySet()) {
+                randNumbs.add(Math.nextDown(upperBound));
+                randNumbs.add(upperBound);
+            }
+            for (int i = 0; i < 10_000; i++) {
+                randNumbs.add(random.nextDouble() * cumulativeWeights.sumOfWeights());
+            }
+            for (double randNumb : randNumbs) {
+                if (randNumb >= cumulativeWeights.sumOfWeights())
+                    continue;
+                int expected = lookup(tree, randNumb);
+                assertEquals("linear n " + n + " randNumb " + randNumb, expected, cumulativeWeights.linearIndex(randNumb));
+                assertEquals("binary n " + n + " randNumb " + randNumb, expected, cumulativeWeights.binaryIndex(randNumb));
+            }
+        }
+    }
+
+    /**
+     * branchlessSearch и linearSearch на произвольных границах, включая повторяющиеся
+     */
+    @Test
+    public void branchlessSearchMatchesTreeMap() {
+        double[] upperBounds = {1.0, 2.0, 2.0, 3.5, 10.0, 10.0, 10.0, 11.0};
+        for (double randNumb = 0.0; randNumb < 11.0; randNumb += 0.25) {
+            int expected = 0;
+            while (expected < upperBounds.length - 1 && upperBounds[expected] <= randNumb) {
+                expected++;
+            }
+            assertEquals("randNumb " + randNumb, expected, CumulativeWeights.branchlessSearch(upperBounds, randNumb));
+            assertEquals("randNumb " + randNumb, expected, CumulativeWeights.linearSearch(upperBounds, randNumb));
+        }
+    }
+
+    /**
+     * горячий путь выбора не аллоцирует: меньше байта на вызов вместе с накладными расходами замера
+     */
+    @Test
+    public void selectionDoesNotAllocate() {
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threadMXBean;
+        assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        List<ServerDetails> servers = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            servers.add(new ServerDetails(new Weight(1.0 + i % 7), URI.create("s" + i)));
+        }
+        CumulativeWeights cumulativeWeights = new CumulativeWeights(servers);
+        long threadId = Thread.currentThread().getId();
+        int sink = 0;
+        for (int round = 0; round < 3; round++) { // первые раунды прогревают JIT
+            long before = allocations.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < CALLS; i++) {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                sink += cumulativeWeights.linearIndex(random);
+                sink += cumulativeWeights.binaryIndex(random);
+                sink += cumulativeWeights.searchIndex(random, CumulativeWeights::branchlessSearch);
+            }
+            long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+            if (round == 2)
+                assertEquals("bytes per call, allocated " + allocated, 0, allocated / CALLS);
+        }
+        assertTrue(sink != 0);
+    }
+
+    /**
+     * верхняя граница интервала -> индекс сервера; интервалы в том же порядке, что у CumulativeWeights (по убыванию веса)
+     */
+    private static TreeMap<Double, Integer> treeMap(List<ServerDetails> servers) {
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < servers.size(); i++) {
+            if (servers.get(i).weight.value > 0.0)
+                order.add(i);
+        }
+        order.sort(Comparator.comparingDouble((Integer i) -> servers.get(i).weight.value).reversed());
+        TreeMap<Double, Integer> tree = new TreeMap<>();
+        double sum = 0.0;
+        for (int index : order) {
+            sum += servers.get(index).weight.value;
+            tree.put(sum, index);
+        }
+        return tree;
+    }
+
+    private static int lookup(TreeMap<Double, Integer> tree, double randNumb) {
+        Map.Entry<Double, Integer> entry = tree.higherEntry(randNumb);
+        return entry != null ? entry.getValue() : tree.lastEntry().getValue();
+    }
+}
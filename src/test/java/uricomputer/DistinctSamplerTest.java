@@ -0,0 +1,264 @@
+package uricomputer;
+
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import uricomputer.UriComputer.ServerDetails;
+import uricomputer.UriComputer.Weight;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DistinctSamplerTest {
+    /**
+     * перекос весов: после первого сервера повторный выбор часто промахивается и работает A-ExpJ
+     */
+    static final double[] WEIGHTS = {100, 5, 3, 1, 1, 0, 2};
+    static final int SAMPLES = 200_000;
+    static final double MAX_Z = 5.0;
+    /**
+     * реже нормальное приближение не работает: ожидаемо меньше одного попадания, а 2-3 случайных дают большой z
+     */
+    static final double MIN_EXPECTED_COUNT = 20.0;
+
+    @Test
+    public void aliasMatchesSuccessiveSampling() {
+        checkSuccessiveSampling(WeightedRoundRobinAlias::new);
+    }
+
+    @Test
+    public void cumulativeWeightsMatchSuccessiveSampling() {
+        checkSuccessiveSampling(WeightedRoundRobinTreeDoubleInterval::new);
+        checkSuccessiveSampling(WeightedRoundRobinVectorInterval::new);
+    }
+
+    /**
+     * реализации с собственной таблицей или деревом: повторные выборы их же выбором индекса
+     */
+    @Test
+    public void tablesAndTreeMatchSuccessiveSampling() {
+        checkSuccessiveSampling(list -> new WeightedRoundRobinArray(list, 5));
+        checkSuccessiveSampling(WeightedRoundRobinCompactArray::new);
+        checkSuccessiveSampling(WeightedRoundRobinFenwickTree::new);
+        checkSuccessiveSampling(WeightedPowerOfTwoChoices::new);
+        checkSuccessiveSampling(WeightedPeakEwma::new);
+    }
+
+    /**
+     * после setWeight и remove выборка идет по новому списку
+     */
+    @Test
+    public void fenwickTreeSamplesCurrentWeights() {
+        WeightedRoundRobinFenwickTree fenwickTree = new WeightedRoundRobinFenwickTree(servers(1, 1, 1, 1, 1, 1, 1, 1));
+        assertEquals(8, fenwickTree.getNextServers(8).size());
+        fenwickTree.remove(URI.create("s7"));
+        for (int i = 0; i < WEIGHTS.length; i++) {
+            fenwickTree.setWeight(URI.create("s" + i), WEIGHTS[i]);
+        }
+        try {
+            fenwickTree.getNextServers(7);
+            fail("server with weight 0 must not be sampled");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertPrefixes(fenwickTree, WEIGHTS, 3, 3);
+    }
+
+    /**
+     * обертки без собственных ограничений сохраняют распределение делегата
+     */
+    @Test
+    public void wrappersMatchSuccessiveSampling() {
+        ConnectionPool<URI> connectionPool = new ConnectionPool<>(new ConnectionPool.Connector<URI>() {
+            public URI open(URI address) {
+                return address;
+            }
+
+            public void close(URI connection) {
+            }
+        });
+        checkSuccessiveSampling(list -> new InstrumentedUriComputer(new WeightedRoundRobinAlias(list), list));
+        checkSuccessiveSampling(list -> new OutlierEjectingUriComputer(list, WeightedRoundRobinAlias::new));
+        checkSuccessiveSampling(list -> new WarmConnectionUriComputer(new WeightedRoundRobinAlias(list), connectionPool));
+        checkSuccessiveSampling(ConcurrencyLimitedUriComputer::new);
+        checkSuccessiveSampling(list -> new ZoneAwareUriComputer(list, ServerDetails.UNKNOWN_LOCALITY,
+                ServerDetails.UNKNOWN_LOCALITY, WeightedRoundRobinAlias::new));
+    }
+
+    /**
+     * первый сервер из локальной зоны, остальные - из следующих уровней, когда локальных не хватает
+     */
+    @Test
+    public void zoneAwarePrefersLocalZone() {
+        URI local1 = URI.create("l1");
+        URI local2 = URI.create("l2");
+        URI remote = URI.create("r");
+        ZoneAwareUriComputer zoneAware = new ZoneAwareUriComputer(asList(
+                new ServerDetails(new Weight(1.0), local1, "a", "eu")
+                , new ServerDetails(new Weight(1.0), local2, "a", "eu")
+                , new ServerDetails(new Weight(5.0), remote, "b", "us")
+        ), "eu", "a", WeightedRoundRobinAlias::new);
+        for (int i = 0; i < 1_000; i++) {
+            List<ServerDetails> sample = zoneAware.getNextServers(3);
+            assertEquals(new HashSet<>(asList(local1, local2)),
+                    new HashSet<>(asList(sample.get(0).address, sample.get(1).address)));
+            assertEquals(remote, sample.get(2).address);
+        }
+        zoneAware.setHealthy(local1, false);
+        assertEquals(2, zoneAware.getNextServers(2).size());
+        try {
+            zoneAware.getNextServers(3);
+            fail("unhealthy server must not be sampled");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+     * сервер на лимите не выбирается, если ниже лимита серверов меньше k - отказ
+     */
+    @Test
+    public void concurrencyLimitedSkipsSaturatedServers() {
+        List<ServerDetails> servers = servers(10, 1, 1);
+        ConcurrencyLimitedUriComputer limited = new ConcurrencyLimitedUriComputer(servers, 1, 1, 1, 1, TimeUnit.MINUTES);
+        ServerLease lease = limited.acquire();
+        while (lease.getServerDetails() != servers.get(0)) {
+            lease.complete();
+            lease = limited.acquire();
+        }
+        for (int i = 0; i < 1_000; i++) {
+            List<ServerDetails> sample = limited.getNextServers(2);
+            assertFalse(sample.contains(servers.get(0)));
+            assertEquals(2, new HashSet<>(sample).size());
+        }
+        try {
+            limited.getNextServers(3);
+            fail("saturated server must not be sampled");
+        } catch (RejectedExecutionException expected) {
+        }
+        lease.complete();
+        assertEquals(3, limited.getNextServers(3).size());
+    }
+
+    /**
+     * среди серверов ниже лимита порядок - последовательный выбор согласно их весам
+     */
+    @Test
+    public void concurrencyLimitedMatchesSuccessiveSamplingBelowLimit() {
+        List<ServerDetails> servers = servers(WEIGHTS);
+        ConcurrencyLimitedUriComputer limited = new ConcurrencyLimitedUriComputer(servers, 1, 1, 1, 1, TimeUnit.MINUTES);
+        ServerLease lease = limited.acquire();
+        while (lease.getServerDetails() != servers.get(0)) {
+            lease.complete();
+            lease = limited.acquire();
+        }
+        double[] belowLimit = WEIGHTS.clone();
+        belowLimit[0] = 0.0;
+        assertPrefixes(limited, belowLimit, 3, 3);
+        assertPrefixes(limited, belowLimit, 5, 2);
+    }
+
+    /**
+     * k больше LINEAR_CHECK_LIMIT - выбранные отмечаются битовой маской
+     */
+    @Test
+    public void largeSampleIsDistinct() {
+        List<ServerDetails> servers = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            servers.add(new ServerDetails(new Weight(i % 10 == 0 ? 50.0 : 1.0), URI.create("s" + i)));
+        }
+        UriComputer uriComputer = new WeightedRoundRobinAlias(servers);
+        for (int k : new int[]{DistinctSampler.LINEAR_CHECK_LIMIT + 1, 60, 100}) {
+            for (int i = 0; i < 1_000; i++) {
+                List<ServerDetails> sample = uriComputer.getNextServers(k);
+                assertEquals(k, sample.size());
+                assertEquals(k, new HashSet<>(sample).size());
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void kAbovePositiveCountIsRejected() {
+        new WeightedRoundRobinAlias(servers(WEIGHTS)).getNextServers(7);
+    }
+
+    /**
+     * порядок выборки (упорядоченные тройки) и первые два сервера полной выборки
+     * совпадают с точными вероятностями последовательного выбора согласно весам
+     */
+    static void checkSuccessiveSampling(Function<List<ServerDetails>, ? extends UriComputer> factory) {
+        UriComputer uriComputer = factory.apply(servers(WEIGHTS));
+        assertPrefixes(uriComputer, WEIGHTS, 3, 3);
+        assertPrefixes(uriComputer, WEIGHTS, 6, 2);
+    }
+
+    static List<ServerDetails> servers(double... weights) {
+        List<ServerDetails> servers = new ArrayList<>();
+        for (int i = 0; i < weights.length; i++) {
+            servers.add(new ServerDetails(new Weight(weights[i]), URI.create("s" + i)));
+        }
+        return servers;
+    }
+
+    /**
+     * частоты первых length серверов выборки k против точных вероятностей, отклонение в стандартных ошибках;
+     * невозможные префиксы не допускаются, редкие не сравниваются
+     */
+    static void assertPrefixes(UriComputer uriComputer, double[] weights, int k, int length) {
+        Map<List<Integer>, Integer> counts = new HashMap<>();
+        for (int i = 0; i < SAMPLES; i++) {
+            List<ServerDetails> sample = uriComputer.getNextServers(k);
+            assertEquals(k, sample.size());
+            assertEquals(k, new HashSet<>(sample).size());
+            List<Integer> prefix = new ArrayList<>(length);
+            for (int j = 0; j < length; j++) {
+                prefix.add(Integer.parseInt(sample.get(j).address.toString().substring(1)));
+            }
+            counts.merge(prefix, 1, Integer::sum);
+        }
+        Map<List<Integer>, Double> exact = new HashMap<>();
+        exactPrefixes(weights, new ArrayList<>(), 1.0, length, exact);
+        for (List<Integer> prefix : counts.keySet()) {
+            assertTrue("impossible prefix " + prefix, exact.containsKey(prefix));
+        }
+        for (Map.Entry<List<Integer>, Double> entry : exact.entrySet()) {
+            double p = entry.getValue();
+            if (p * SAMPLES < MIN_EXPECTED_COUNT)
+                continue;
+            double frequency = counts.getOrDefault(entry.getKey(), 0) / (double) SAMPLES;
+            double z = Math.abs(frequency - p) / Math.sqrt(p * (1.0 - p) / SAMPLES);
+            assertTrue(uriComputer.getClass().getSimpleName() + " k " + k + " prefix " + entry.getKey()
+                    + " frequency " + frequency + " expected " + p, z < MAX_Z);
+        }
+    }
+
+    private static void exactPrefixes(double[] weights, List<Integer> prefix, double p, int length,
+                                      Map<List<Integer>, Double> exact) {
+        if (prefix.size() == length) {
+            exact.put(new ArrayList<>(prefix), p);
+            return;
+        }
+        double remaining = 0.0;
+        for (int i = 0; i < weights.length; i++) {
+            if (!prefix.contains(i))
+                remaining += weights[i];
+        }
+        for (int i = 0; i < weights.length; i++) {
+            if (weights[i] > 0.0 && !prefix.contains(i)) {
+                prefix.add(i);
+                exactPrefixes(weights, prefix, p * weights[i] / remaining, length, exact);
+                prefix.remove(prefix.size() - 1);
+            }
+        }
+    }
+}
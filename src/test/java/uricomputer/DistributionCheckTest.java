@@ -0,0 +1,300 @@
+package uricomputer;
+
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.List;
+import java.util.function.Function;
+
+import uricomputer.UriComputer.ServerDetails;
+import uricomputer.UriComputer.Weight;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Проверка точности распределения: N выборов из UriComputer сравниваются с долями заданных весов
+ * критерием хи-квадрат (критическое значение по аппроксимации Уилсона-Хилферти),
+ * дополнительно считаются KL-дивергенция и максимальное отклонение доли.
+ * Выборы считаются по позиции сервера в списке (getNextServerIndexes), поэтому одинаковые адреса не сливаются
+ */
+public class DistributionCheckTest {
+    static final double DEFAULT_SIGNIFICANCE = 0.001;
+    static final int DRAWS = 1_000_000;
+    static final int BATCH = 1024;
+
+    static final List<ServerDetails> SERVERS = asList(
+            new ServerDetails(new Weight(1.0), URI.create("0.0.0.1"))
+            , new ServerDetails(new Weight(2.0), URI.create("0.0.0.2"))
+            , new ServerDetails(new Weight(3.0), URI.create("0.0.0.3"))
+            , new ServerDetails(new Weight(4.0), URI.create("0.0.0.4"))
+            , new ServerDetails(new Weight(5.5), URI.create("0.0.0.5"))
+    );
+
+    @Test
+    public void array() {
+        assertPassed(SERVERS, list -> new WeightedRoundRobinArray(list, 1));
+    }
+
+    /**
+     * общий множитель ищется по всем весам, а не по соседним парам:
+     * у 3, 6, 1 общий делитель соседних 3 и 6 превращал 1 в 0.333 и искажал доли
+     */
+    @Test
+    public void arrayCommonDivisorOfAllWeights() {
+        assertPassed(asList(
+                new ServerDetails(new Weight(3.0), URI.create("0.0.0.1"))
+                , new ServerDetails(new Weight(6.0), URI.create("0.0.0.2"))
+                , new ServerDetails(new Weight(1.0), URI.create("0.0.0.3"))
+        ), list -> new WeightedRoundRobinArray(list, 1));
+    }
+
+    /**
+     * precisionLimit 1 у WeightedRoundRobinArray отбрасывает сотые доли: 1.04 и 1.0 становятся равны
+     */
+    @Test
+    public void arrayPrecisionLossIsDetected() {
+        List<ServerDetails> precisionLoss = asList(
+                new ServerDetails(new Weight(1.04), URI.create("0.0.0.1"))
+                , new ServerDetails(new Weight(1.0), URI.create("0.0.0.2"))
+                , new ServerDetails(new Weight(1.0), URI.create("0.0.0.3"))
+        );
+        Report report = run(new WeightedRoundRobinArray(precisionLoss, 1), precisionLoss, DRAWS);
+        assertFalse(report.toString(), report.isPassed());
+    }
+
+    /**
+     * одинаковые адреса считаются отдельно
+     */
+    @Test
+    public void duplicateAddressesAreCountedByPosition() {
+        URI address = URI.create("0.0.0.1");
+        assertPassed(asList(
+                new ServerDetails(new Weight(1.0), address)
+                , new ServerDetails(new Weight(3.0), address)
+                , new ServerDetails(new Weight(2.0), URI.create("0.0.0.2"))
+        ), WeightedRoundRobinAlias::new);
+    }
+
+    @Test
+    public void intervals() {
+        assertPassed(SERVERS, WeightedRoundRobinLinearDoubleInterval::new);
+        assertPassed(SERVERS, WeightedRoundRobinTreeDoubleInterval::new);
+        assertPassed(SERVERS, WeightedRoundRobinVectorInterval::new);
+    }
+
+    @Test
+    public void alias() {
+        assertPassed(SERVERS, WeightedRoundRobinAlias::new);
+    }
+
+    @Test
+    public void smooth() {
+        assertPassed(SERVERS, WeightedRoundRobinSmooth::new);
+    }
+
+    @Test
+    public void fenwick() {
+        assertPassed(SERVERS, WeightedRoundRobinFenwickTree::new);
+    }
+
+    @Test
+    public void compactArray() {
+        assertPassed(SERVERS, WeightedRoundRobinCompactArray::new);
+    }
+
+    @Test
+    public void powerOfTwoChoices() {
+        assertPassed(SERVERS, WeightedPowerOfTwoChoices::new);
+    }
+
+    @Test
+    public void peakEwma() {
+        assertPassed(SERVERS, WeightedPeakEwma::new);
+    }
+
+    @Test
+    public void maglev() {
+        assertPassed(SERVERS, WeightedMaglev::new);
+    }
+
+    private static void assertPassed(List<ServerDetails> serverDetails,
+                                     Function<List<ServerDetails>, ? extends UriComputer> factory) {
+        UriComputer uriComputer = factory.apply(serverDetails);
+        Report report = run(uriComputer, serverDetails, DRAWS);
+        assertTrue(uriComputer.getClass().getSimpleName() + ": " + report, report.isPassed());
+    }
+
+    static Report run(UriComputer uriComputer, List<ServerDetails> serverDetailsList, int draws) {
+        return run(uriComputer, serverDetailsList, draws, DEFAULT_SIGNIFICANCE);
+    }
+
+    /**
+     * @param uriComputer       проверяемая реализация
+     * @param serverDetailsList заданные сервера и веса (ожидаемое распределение)
+     * @param draws             кол-во выборов
+     * @param significance      уровень значимости критерия хи-квадрат, например 0.001
+     * @return счетчики и результат проверки
+     */
+    static Report run(UriComputer uriComputer, List<ServerDetails> serverDetailsList, int draws, double significance) {
+        if (draws < 1)
+            throw new IllegalArgumentException("draws must be more then 0");
+        if (!(significance > 0.0 && significance < 1.0))
+            throw new IllegalArgumentException("significance must be from 0 to 1");
+        double[] expectedShares = new double[serverDetailsList.size()];
+        double sumOfWeights = 0.0;
+        for (int i = 0; i < serverDetailsList.size(); i++) {
+            expectedShares[i] = serverDetailsList.get(i).weight.value;
+            sumOfWeights += expectedShares[i];
+        }
+        for (int i = 0; i < expectedShares.length; i++) {
+            expectedShares[i] /= sumOfWeights;
+        }
+
+        long[] counts = new long[serverDetailsList.size()];
+        long unknown = 0;
+        int[] indexes = new int[BATCH];
+        for (int remaining = draws; remaining > 0; ) {
+            int filled = uriComputer.getNextServerIndexes(indexes, Math.min(BATCH, remaining));
+            for (int i = 0; i < filled; i++) {
+                if (indexes[i] >= 0 && indexes[i] < counts.length)
+                    counts[indexes[i]]++;
+                else
+                    unknown++;
+            }
+            remaining -= filled;
+        }
+        return new Report(counts, expectedShares, draws, unknown, significance);
+    }
+
+    /**
+     * квантиль хи-квадрат распределения (аппроксимация Уилсона-Хилферти)
+     */
+    static double chiSquareQuantile(double probability, int degreesOfFreedom) {
+        double k = degreesOfFreedom;
+        double z = normalQuantile(probability);
+        double term = 1.0 - 2.0 / (9.0 * k) + z * Math.sqrt(2.0 / (9.0 * k));
+        return k * term * term * term;
+    }
+
+    /**
+     * квантиль стандартного нормального распределения (рациональная аппроксимация Acklam, погрешность ~1e-9)
+     */
+    static double normalQuantile(double p) {
+        double[] a = {-3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02,
+                1.383577518672690e+02, -3.066479806614716e+01, 2.506628277459239e+00};
+        double[] b = {-5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02,
+                6.680131188771972e+01, -1.328068155288572e+01};
+        double[] c = {-7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00,
+                -2.549732539343734e+00, 4.374664141464968e+00, 2.938163982698783e+00};
+        double[] d = {7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00,
+                3.754408661907416e+00};
+        double low = 0.02425;
+        if (p < low) {
+            double q = Math.sqrt(-2 * Math.log(p));
+            return (((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5])
+                    / ((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+        }
+        if (p > 1 - low) {
+            double q = Math.sqrt(-2 * Math.log(1 - p));
+            return -(((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5])
+                    / ((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+        }
+        double q = p - 0.5;
+        double r = q * q;
+        return (((((a[0] * r + a[1]) * r + a[2]) * r + a[3]) * r + a[4]) * r + a[5]) * q
+                / (((((b[0] * r + b[1]) * r + b[2]) * r + b[3]) * r + b[4]) * r + 1);
+    }
+
+    /**
+     * результат проверки; сервер с нулевым весом, выбранный хотя бы раз, или индекс не из списка - сразу провал
+     */
+    static final class Report {
+        private final long[] counts;
+        private final double[] expectedShares;
+        private final long draws;
+        private final long unknown;
+        private final double chiSquare;
+        private final int degreesOfFreedom;
+        private final double criticalValue;
+        private final double klDivergence;
+        private final double maxShareError;
+        private final boolean passed;
+
+        Report(long[] counts, double[] expectedShares, long draws, long unknown, double significance) {
+            this.counts = counts;
+            this.expectedShares = expectedShares;
+            this.draws = draws;
+            this.unknown = unknown;
+            double chiSquare = 0.0;
+            double klDivergence = 0.0;
+            double maxShareError = 0.0;
+            int categories = 0;
+            boolean impossible = unknown > 0;
+            for (int i = 0; i < counts.length; i++) {
+                double observedShare = (double) counts[i] / draws;
+                maxShareError = Math.max(maxShareError, Math.abs(observedShare - expectedShares[i]));
+                if (expectedShares[i] == 0.0) {
+                    impossible |= counts[i] > 0;
+                    continue;
+                }
+                categories++;
+                double expected = expectedShares[i] * draws;
+                chiSquare += (counts[i] - expected) * (counts[i] - expected) / expected;
+                if (counts[i] > 0)
+                    klDivergence += observedShare * Math.log(observedShare / expectedShares[i]);
+            }
+            this.chiSquare = chiSquare;
+            this.degreesOfFreedom = Math.max(1, categories - 1);
+            this.criticalValue = chiSquareQuantile(1.0 - significance, degreesOfFreedom);
+            this.klDivergence = klDivergence;
+            this.maxShareError = maxShareError;
+            this.passed = !impossible && chiSquare <= criticalValue;
+        }
+
+        /**
+         * @return кол-во выборов каждого сервера в порядке заданного списка
+         */
+        public long[] getCounts() {
+            return counts.clone();
+        }
+
+        public double getChiSquare() {
+            return chiSquare;
+        }
+
+        public double getCriticalValue() {
+            return criticalValue;
+        }
+
+        public double getKlDivergence() {
+            return klDivergence;
+        }
+
+        public double getMaxShareError() {
+            return maxShareError;
+        }
+
+        public boolean isPassed() {
+            return passed;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder(passed ? "PASS" : "FAIL")
+                    .append(" All ").append(draws)
+                    .append(" chi2 ").append(chiSquare).append(" (critical ").append(criticalValue)
+                    .append(", df ").append(degreesOfFreedom).append(')')
+                    .append(" KL ").append(klDivergence)
+                    .append(" max share error ").append(maxShareError);
+            if (unknown > 0)
+                report.append(" unknown ").append(unknown);
+            for (int i = 0; i < counts.length; i++) {
+                report.append("\n server").append(i + 1).append(' ')
+                        .append((double) counts[i] / draws).append(" expected ").append(expectedShares[i]);
+            }
+            return report.toString();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package uricomputer;
+
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import uricomputer.UriComputer.ServerDetails;
+import uricomputer.UriComputer.Weight;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OutlierEjectingUriComputerTest {
+    private static final URI SERVER1 = URI.create("0.0.0.1");
+    private static final URI SERVER2 = URI.create("0.0.0.2");
+    private static final URI SERVER3 = URI.create("0.0.0.3");
+
+    /**
+     * ошибки lease, выданного до update(), учитываются у того же адреса, а не у сервера с тем же индексом
+     */
+    @Test
+    public void leaseResultAfterUpdateCountsAgainstLeasedAddress() {
+        OutlierEjectingUriComputer outlierEjecting = new OutlierEjectingUriComputer(
+                servers(SERVER1), WeightedRoundRobinAlias::new,
+                new OutlierEjectingUriComputer.Settings().consecutiveFailures(3).maxEjectionPercent(50));
+        List<ServerLease> leases = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            leases.add(outlierEjecting.acquire());
+        }
+        // SERVER1 теперь под индексом 2, под индексом 0 - SERVER2
+        outlierEjecting.update(servers(SERVER2, SERVER3, SERVER1));
+        for (ServerLease lease : leases) {
+            lease.fail();
+        }
+        assertFalse(outlierEjecting.isEjected(SERVER2));
+        assertTrue(outlierEjecting.isEjected(SERVER1));
+    }
+
+    @Test
+    public void zeroMaxEjectionPercentDisablesEjection() {
+        OutlierEjectingUriComputer outlierEjecting = new OutlierEjectingUriComputer(
+                servers(SERVER1, SERVER2, SERVER3), WeightedRoundRobinAlias::new,
+                new OutlierEjectingUriComputer.Settings().maxEjectionPercent(0));
+        for (int i = 0; i < 100; i++) {
+            outlierEjecting.onFailure(SERVER1);
+        }
+        assertFalse(outlierEjecting.isEjected(SERVER1));
+    }
+
+    private static List<ServerDetails> servers(URI... addresses) {
+        List<ServerDetails> servers = new ArrayList<>();
+        for (URI address : asList(addresses)) {
+            servers.add(new ServerDetails(new Weight(1.0), address));
+        }
+        return servers;
+    }
+}
@@ -0,0 +1,126 @@
+package uricomputer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import uricomputer.UriComputer.ServerDetails;
+import uricomputer.UriComputer.Weight;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+public class TcpProxyTest {
+    static final int CONNECTIONS = 50;
+
+    private final List<AutoCloseable> resources = new ArrayList<>();
+
+    @After
+    public void close() throws Exception {
+        for (AutoCloseable resource : resources) {
+            resource.close();
+        }
+    }
+
+    /**
+     * половина весов у закрытого порта: connection refused, соединение уходит на другой сервер;
+     * имя localhost разрешается в фоне
+     */
+    @Test
+    public void refusedConnectIsRetriedOnAnotherServer() throws Exception {
+        TcpProxy tcpProxy = start(new TcpProxy.Settings().workerThreads(2).connectAttempts(20),
+                new ServerDetails(new Weight(1.0), URI.create("tcp://127.0.0.1:" + closedPort()))
+                , new ServerDetails(new Weight(1.0), URI.create("tcp://localhost:" + startEchoServer())));
+        for (int i = 0; i < CONNECTIONS; i++) {
+            assertEquals("ping " + i, echo(tcpProxy, "ping " + i));
+        }
+    }
+
+    /**
+     * попытки кончились - клиент закрывается
+     */
+    @Test
+    public void clientIsClosedWhenAttemptsRunOut() throws Exception {
+        TcpProxy tcpProxy = start(new TcpProxy.Settings().workerThreads(1).connectAttempts(2),
+                new ServerDetails(new Weight(1.0), URI.create("tcp://127.0.0.1:" + closedPort())));
+        assertEquals("", echo(tcpProxy, "ping"));
+    }
+
+    /**
+     * URI без порта (порт 80 по умолчанию) или без хоста не оставляет клиента висеть: попытки кончаются, клиент закрывается
+     */
+    @Test
+    public void serverWithoutPortOrHostDoesNotHangClient() throws Exception {
+        TcpProxy tcpProxy = start(new TcpProxy.Settings().workerThreads(1).connectAttempts(4),
+                new ServerDetails(new Weight(1.0), URI.create("tcp://127.0.0.1"))
+                , new ServerDetails(new Weight(1.0), URI.create("tcp:/nowhere")));
+        for (int i = 0; i < 5; i++) {
+            assertEquals("", echo(tcpProxy, "ping"));
+        }
+    }
+
+    private TcpProxy start(TcpProxy.Settings settings, ServerDetails... servers) throws IOException {
+        TcpProxy tcpProxy = new TcpProxy(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                new WeightedRoundRobinAlias(asList(servers)), settings);
+        resources.add(tcpProxy);
+        return tcpProxy;
+    }
+
+    /**
+     * отправляет строку, закрывает запись и читает ответ до конца
+     */
+    private static String echo(TcpProxy tcpProxy, String message) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), tcpProxy.getLocalAddress().getPort())) {
+            socket.setSoTimeout(10_000);
+            socket.getOutputStream().write(message.getBytes(StandardCharsets.UTF_8));
+            socket.shutdownOutput();
+            InputStream in = socket.getInputStream();
+            StringBuilder response = new StringBuilder();
+            byte[] buffer = new byte[256];
+            for (int read; (read = in.read(buffer)) >= 0; ) {
+                response.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
+            }
+            return response.toString();
+        } catch (java.net.SocketException e) {
+            return ""; // соединение сброшено прокси
+        }
+    }
+
+    private static int closedPort() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return serverSocket.getLocalPort();
+        }
+    }
+
+    private int startEchoServer() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+        resources.add(serverSocket);
+        Thread acceptor = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try (Socket socket = serverSocket.accept();
+                     InputStream in = socket.getInputStream(); OutputStream out = socket.getOutputStream()) {
+                    byte[] buffer = new byte[256];
+                    for (int read; (read = in.read(buffer)) >= 0; ) {
+                        out.write(buffer, 0, read);
+                    }
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }, "echo");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return serverSocket.getLocalPort();
+    }
+}
@@ -0,0 +1,160 @@
+package uricomputer;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import uricomputer.UriComputer.ServerDetails;
+import uricomputer.UriComputer.Weight;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UriComputerClientTest {
+    private static final long SLOW_MILLIS = 300;
+
+    private HttpServer fast;
+    private HttpServer slow;
+    private ServerDetails fastServer;
+    private ServerDetails slowServer;
+    private ExecutorService ioExecutor;
+
+    @Before
+    public void setUp() throws IOException {
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        fast = startServer("fast", 0);
+        slow = startServer("slow", SLOW_MILLIS);
+        fastServer = new ServerDetails(new Weight(1.0), URI.create("http://127.0.0.1:" + fast.getAddress().getPort()));
+        slowServer = new ServerDetails(new Weight(1.0), URI.create("http://127.0.0.1:" + slow.getAddress().getPort()));
+        ioExecutor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        ioExecutor.shutdownNow();
+        fast.stop(0);
+        slow.stop(0);
+    }
+
+    /**
+     * проигравшая hedging попытка отменяется и не считается ошибкой сервера
+     */
+    @Test
+    public void hedgedCallReportsOnlyServersThatAnswered() throws Exception {
+        ScriptedUriComputer uriComputer = new ScriptedUriComputer(fastServer);
+        List<String> reports = Collections.synchronizedList(new ArrayList<>());
+        try (UriComputerClient<String, String> client = new UriComputerClient.Builder<String, String>(
+                uriComputer, UriComputerClient.Transport.blocking(UriComputerClientTest::httpGet, ioExecutor))
+                .hedging(95, 20, TimeUnit.MILLISECONDS)
+                .listener((address, latencyNanos, success) -> reports.add(address + " " + success))
+                .build()) {
+            // задержка hedging считается по успешным ответам
+            for (int i = 0; i < UriComputerClient.HEDGE_DELAY_UPDATE_INTERVAL; i++) {
+                assertEquals("fast", client.execute("/").get());
+            }
+            assertTrue(client.getHedgeDelayNanos() < TimeUnit.MILLISECONDS.toNanos(SLOW_MILLIS));
+            reports.clear();
+
+            uriComputer.script.add(slowServer);
+            assertEquals("fast", client.execute("/").get(5, TimeUnit.SECONDS));
+            Thread.sleep(2 * SLOW_MILLIS); // медленный сервер успевает ответить
+            assertEquals(Collections.singletonList(fastServer.address + " true"), reports);
+        }
+    }
+
+    /**
+     * отмена результата отменяет выполняющиеся попытки
+     */
+    @Test
+    public void cancellingResultCancelsAttempts() throws Exception {
+        List<CompletableFuture<String>> attempts = Collections.synchronizedList(new ArrayList<>());
+        UriComputerClient.Transport<String, String> blocking =
+                UriComputerClient.Transport.blocking(UriComputerClientTest::httpGet, ioExecutor);
+        List<String> reports = Collections.synchronizedList(new ArrayList<>());
+        try (UriComputerClient<String, String> client = new UriComputerClient.Builder<String, String>(
+                new ScriptedUriComputer(slowServer), (server, request) -> {
+            CompletableFuture<String> attempt = blocking.send(server, request);
+            attempts.add(attempt);
+            return attempt;
+        })
+                .listener((address, latencyNanos, success) -> reports.add(address + " " + success))
+                .build()) {
+            CompletableFuture<String> result = client.execute("/");
+            result.cancel(true);
+            assertEquals(1, attempts.size());
+            assertTrue(attempts.get(0).isCancelled());
+            Thread.sleep(2 * SLOW_MILLIS);
+            assertEquals(Collections.emptyList(), reports);
+        }
+    }
+
+    private static HttpServer startServer(String name, long delayMillis) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = name.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        return server;
+    }
+
+    private static String httpGet(URI server, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) server.resolve(path).toURL().openConnection();
+        try (InputStream in = connection.getInputStream()) {
+            byte[] buffer = new byte[64];
+            int length = 0;
+            for (int read; (read = in.read(buffer, length, buffer.length - length)) > 0; ) {
+                length += read;
+            }
+            return new String(buffer, 0, length, StandardCharsets.UTF_8);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * сначала отдает сервера из script, затем всегда defaultServer
+     */
+    private static final class ScriptedUriComputer implements UriComputer {
+        final Queue<ServerDetails> script = new ConcurrentLinkedQueue<>();
+        final ServerDetails defaultServer;
+
+        ScriptedUriComputer(ServerDetails defaultServer) {
+            this.defaultServer = defaultServer;
+        }
+
+        public ServerDetails getNextServer() {
+            ServerDetails next = script.poll();
+            return next != null ? next : defaultServer;
+        }
+
+        public URI getNextServerUri() {
+            return getNextServer().address;
+        }
+    }
+}
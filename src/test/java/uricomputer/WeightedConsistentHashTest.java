@@ -0,0 +1,104 @@
+package uricomputer;
+
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import uricomputer.UriComputer.ServerDetails;
+import uricomputer.UriComputer.Weight;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class WeightedConsistentHashTest {
+    static final int KEYS = 100_000;
+
+    /**
+     * конструктор по умолчанию: после добавления сервера переезжают только ключи этого сервера,
+     * хотя средний вес списка немного меняется
+     */
+    @Test
+    public void defaultRingMovesOnlyKeysOfChangedServer() {
+        List<ServerDetails> servers = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            servers.add(new ServerDetails(new Weight(1.0 + i), URI.create("s" + i)));
+        }
+        ServerDetails added = new ServerDetails(new Weight(8.0), URI.create("added"));
+        List<ServerDetails> withAdded = new ArrayList<>(servers);
+        withAdded.add(added);
+        assertEquals(WeightedConsistentHash.defaultVirtualNodesPerWeight(servers),
+                WeightedConsistentHash.defaultVirtualNodesPerWeight(withAdded), 0.0);
+
+        WeightedConsistentHash before = new WeightedConsistentHash(servers);
+        WeightedConsistentHash after = new WeightedConsistentHash(withAdded);
+        int movedToAdded = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String key = "key-" + i;
+            ServerDetails server = after.getNextServer(key);
+            if (server == added)
+                movedToAdded++;
+            else
+                assertSame(key, before.getNextServer(key), server);
+        }
+        double share = movedToAdded / (double) KEYS;
+        assertEquals(8.0 / (55.0 + 8.0), share, 0.05);
+    }
+
+    /**
+     * конструктор по умолчанию нормирует веса: и веса меньше 1, и веса порядка 1e7
+     * дают около DEFAULT_VIRTUAL_NODES узлов на сервер и доли ключей по весу (расстояние по вариации меньше 0.1)
+     */
+    @Test
+    public void defaultRingIsBalancedForSmallAndLargeWeights() {
+        assertBalanced(0.01);
+        assertBalanced(1e7);
+    }
+
+    private static void assertBalanced(double unit) {
+        List<ServerDetails> servers = new ArrayList<>();
+        double sumOfWeights = 0.0;
+        for (int i = 0; i < 10; i++) {
+            servers.add(new ServerDetails(new Weight(unit * (1 + i)), URI.create("s" + i)));
+            sumOfWeights += unit * (1 + i);
+        }
+        double virtualNodesPerWeight = WeightedConsistentHash.defaultVirtualNodesPerWeight(servers);
+        double nodes = sumOfWeights * virtualNodesPerWeight;
+        assertEquals(WeightedConsistentHash.DEFAULT_VIRTUAL_NODES * servers.size(), nodes, nodes / 2);
+
+        WeightedConsistentHash consistentHash = new WeightedConsistentHash(servers);
+        int[] counts = new int[servers.size()];
+        for (int i = 0; i < KEYS; i++) {
+            counts[servers.indexOf(consistentHash.getNextServer("key-" + i))]++;
+        }
+        double distance = 0.0;
+        for (int i = 0; i < counts.length; i++) {
+            distance += Math.abs(counts[i] / (double) KEYS - unit * (1 + i) / sumOfWeights) / 2;
+        }
+        assertTrue("unit " + unit + " distance " + distance, distance < 0.1);
+    }
+
+    /**
+     * масштаб по среднему весу считается один раз и передается тот же при изменении списка
+     */
+    @Test
+    public void explicitScaleIsKeptAcrossUpdates() {
+        List<ServerDetails> servers = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            servers.add(new ServerDetails(new Weight(1_000.0 * (1 + i)), URI.create("s" + i)));
+        }
+        double virtualNodesPerWeight = WeightedConsistentHash.virtualNodesPerWeight(servers, 100);
+        assertEquals(100 / 5_500.0, virtualNodesPerWeight, 1e-12);
+        WeightedConsistentHash before = new WeightedConsistentHash(servers, virtualNodesPerWeight, 0.0);
+        ServerDetails removed = servers.remove(0);
+        WeightedConsistentHash after = new WeightedConsistentHash(servers, virtualNodesPerWeight, 0.0);
+        for (int i = 0; i < KEYS; i++) {
+            String key = "key-" + i;
+            ServerDetails server = before.getNextServer(key);
+            if (server != removed)
+                assertSame(key, server, after.getNextServer(key));
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package uricomputer;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Векторный линейный поиск интервала: граница сравнивается со случайным числом по SPECIES_PREFERRED.length() за раз.
+ * Границы возрастают, поэтому границы не больше числа идут подряд от начала блока
+ * и их кол-во (trueCount маски) - смещение искомого интервала в блоке.
+ * Загружается WeightedRoundRobinVectorInterval по имени, требует --add-modules jdk.incubator.vector
+ */
+final class VectorIntervalSearch implements IntervalSearch {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    public int search(double[] upperBounds, double randNumb) {
+        int last = upperBounds.length - 1;
+        int lanes = SPECIES.length();
+        int loopBound = SPECIES.loopBound(last);
+        int i = 0;
+        for (; i < loopBound; i += lanes) {
+            int passed = DoubleVector.fromArray(SPECIES, upperBounds, i)
+                    .compare(VectorOperators.LE, randNumb)
+                    .trueCount();
+            if (passed < lanes)
+                return i + passed;
+        }
+        for (; i < last; i++) {
+            if (randNumb < upperBounds[i])
+                return i;
+        }
+        return last;
+    }
+}